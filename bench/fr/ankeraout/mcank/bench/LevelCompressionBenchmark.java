@@ -0,0 +1,157 @@
+package fr.ankeraout.mcank.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import fr.ankeraout.mcank.Blocks;
+import fr.ankeraout.mcank.world.BlockStorage;
+import fr.ankeraout.mcank.world.ByteArrayBlockStorage;
+import fr.ankeraout.mcank.world.ParallelLevelCompressor;
+import fr.ankeraout.mcank.worldgen.FlatgrassWorldGenerator;
+
+/**
+ * This benchmark compares the throughput of the single-threaded gzip
+ * compression of the level data with the throughput of the
+ * {@link ParallelLevelCompressor}. It also checks that the output of the
+ * parallel compressor decodes to the expected level data.
+ * 
+ * Usage: <code>LevelCompressionBenchmark [width] [height] [depth]
+ * [iterations]</code>
+ * 
+ * @author Ankeraout
+ *
+ */
+public class LevelCompressionBenchmark {
+	/**
+	 * The entry point of the benchmark.
+	 * 
+	 * @param args The dimensions of the world, and the amount of iterations.
+	 * @throws IOException If the compressed data cannot be decoded.
+	 */
+	public static void main(String[] args) throws IOException {
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+		int depth = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		int volume = width * height * depth;
+		byte[] blocks = LevelCompressionBenchmark.generateBlocks(width, height, depth);
+		ParallelLevelCompressor compressor = new ParallelLevelCompressor();
+		ParallelLevelCompressor.BlockSource source = (blockIndex, buffer, bufferOffset,
+				length) -> System.arraycopy(blocks, blockIndex, buffer, bufferOffset, length);
+
+		System.out.println("World: " + width + "x" + height + "x" + depth + " (" + volume + " blocks), "
+				+ Runtime.getRuntime().availableProcessors() + " CPUs");
+
+		// Check the correctness of the parallel compressor
+		byte[] expected = LevelCompressionBenchmark.compressSequential(volume, blocks);
+		byte[] actual = compressor.compress(volume, source);
+
+		if (!Arrays.equals(LevelCompressionBenchmark.decompress(expected),
+				LevelCompressionBenchmark.decompress(actual))) {
+			throw new IllegalStateException("The parallel compressor produced different level data.");
+		}
+
+		// Warm up, then measure
+		for (int i = 0; i < 2; i++) {
+			LevelCompressionBenchmark.compressSequential(volume, blocks);
+			compressor.compress(volume, source);
+		}
+
+		long sequentialTime = 0;
+		long parallelTime = 0;
+
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			LevelCompressionBenchmark.compressSequential(volume, blocks);
+			sequentialTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			compressor.compress(volume, source);
+			parallelTime += System.nanoTime() - start;
+		}
+
+		LevelCompressionBenchmark.report("GZIPOutputStream", volume, iterations, sequentialTime, expected.length);
+		LevelCompressionBenchmark.report("ParallelLevelCompressor", volume, iterations, parallelTime, actual.length);
+		System.out.printf("Speedup: %.2fx%n", (double) sequentialTime / parallelTime);
+	}
+
+	/**
+	 * Generates the blocks of a flatgrass world with some random blocks in it, so
+	 * that the data is not trivially compressible.
+	 * 
+	 * @param width  The width of the world.
+	 * @param height The height of the world.
+	 * @param depth  The depth of the world.
+	 * @return The block IDs of the world.
+	 */
+	private static byte[] generateBlocks(int width, int height, int depth) {
+		BlockStorage storage = new ByteArrayBlockStorage(width, height, depth);
+		new FlatgrassWorldGenerator().generateWorld(storage, 0);
+
+		byte[] blocks = new byte[storage.getVolume()];
+		storage.getBlocks(0, blocks, 0, blocks.length);
+		Random random = new Random(0);
+
+		for (int i = 0; i < blocks.length; i++) {
+			if (random.nextInt(64) == 0) {
+				blocks[i] = (byte) Blocks.values()[random.nextInt(Blocks.values().length)].getBlockId();
+			}
+		}
+
+		return blocks;
+	}
+
+	/**
+	 * Compresses the level data with a single {@link GZIPOutputStream}, like the
+	 * server did before the parallel compressor was introduced.
+	 * 
+	 * @param volume The volume of the world.
+	 * @param blocks The block IDs of the world.
+	 * @return The compressed level data.
+	 * @throws IOException This should never happen.
+	 */
+	private static byte[] compressSequential(int volume, byte[] blocks) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(new GZIPOutputStream(baos, 65536));
+		dos.writeInt(volume);
+		dos.write(blocks);
+		dos.close();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Decompresses gzip data.
+	 * 
+	 * @param data The compressed data.
+	 * @return The decompressed data.
+	 * @throws IOException If the data is not a valid gzip stream.
+	 */
+	private static byte[] decompress(byte[] data) throws IOException {
+		GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(data));
+		byte[] result = gzis.readAllBytes();
+		gzis.close();
+		return result;
+	}
+
+	/**
+	 * Prints the result of a measurement.
+	 * 
+	 * @param name           The name of the measured compressor.
+	 * @param volume         The volume of the world.
+	 * @param iterations     The amount of iterations.
+	 * @param time           The total time of the iterations in nanoseconds.
+	 * @param compressedSize The size of the compressed data.
+	 */
+	private static void report(String name, int volume, int iterations, long time, int compressedSize) {
+		double seconds = time / 1e9 / iterations;
+		System.out.printf("%-24s %8.1f ms/op %8.1f MiB/s %10d bytes%n", name, seconds * 1000,
+				volume / seconds / (1 << 20), compressedSize);
+	}
+}
@@ -0,0 +1,291 @@
+package fr.ankeraout.mcank.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import fr.ankeraout.mcank.net.ClientPacketDecoder;
+import fr.ankeraout.mcank.net.ClientPacketDispatcher;
+import fr.ankeraout.mcank.net.ClientPacketListener;
+import fr.ankeraout.mcank.net.PacketHandler;
+
+/**
+ * This benchmark measures how many client packets per second the
+ * {@link ClientPacketDispatcher} decodes, with the blocking transport (a
+ * {@link DataInputStream} read with one read per packet) and with the
+ * non-blocking transport (a {@link ClientPacketDecoder} fed with the raw data).
+ * The packets are a mix of the packets sent by a playing client: mostly
+ * position updates, some block changes and a few messages. It also checks that
+ * every packet was decoded with the expected fields.
+ * 
+ * Usage: <code>PacketDecodingBenchmark [packets] [iterations]</code>
+ * 
+ * @author Ankeraout
+ *
+ */
+public class PacketDecodingBenchmark {
+	/**
+	 * The entry point of the benchmark.
+	 * 
+	 * @param args The amount of packets, and the amount of iterations.
+	 * @throws IOException This should never happen.
+	 */
+	public static void main(String[] args) throws IOException {
+		int packetCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		CountingListener listener = new CountingListener();
+		byte[] data = PacketDecodingBenchmark.generatePackets(packetCount, listener);
+		long expectedChecksum = listener.checksum;
+
+		System.out.println("Packets: " + packetCount + " (" + data.length + " bytes)");
+
+		// Check the correctness of both paths, and warm up
+		for (int i = 0; i < 3; i++) {
+			PacketDecodingBenchmark.check(PacketDecodingBenchmark.decodeBlocking(data, listener), packetCount,
+					listener.checksum, expectedChecksum);
+			PacketDecodingBenchmark.check(PacketDecodingBenchmark.decodeNonBlocking(data, listener), packetCount,
+					listener.checksum, expectedChecksum);
+		}
+
+		long blockingTime = 0;
+		long nonBlockingTime = 0;
+
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			PacketDecodingBenchmark.decodeBlocking(data, listener);
+			blockingTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			PacketDecodingBenchmark.decodeNonBlocking(data, listener);
+			nonBlockingTime += System.nanoTime() - start;
+		}
+
+		PacketDecodingBenchmark.report("Blocking (readFully)", packetCount, iterations, blockingTime);
+		PacketDecodingBenchmark.report("Non-blocking (decoder)", packetCount, iterations, nonBlockingTime);
+	}
+
+	/**
+	 * Generates the raw data sent by a client, and computes the checksum of the
+	 * fields that the listener must see.
+	 * 
+	 * @param packetCount The amount of packets.
+	 * @param listener    The listener whose expected checksum is computed.
+	 * @return The raw data.
+	 * @throws IOException This should never happen.
+	 */
+	private static byte[] generatePackets(int packetCount, CountingListener listener) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		Random random = new Random(0);
+		byte[] message = new byte[64];
+
+		listener.reset();
+
+		for (int i = 0; i < packetCount; i++) {
+			int kind = random.nextInt(100);
+
+			if (kind < 90) {
+				int x = random.nextInt(32768);
+				int y = random.nextInt(32768);
+				int z = random.nextInt(32768);
+				int yaw = random.nextInt(256);
+				int pitch = random.nextInt(256);
+				dos.writeByte(0x08);
+				dos.writeByte(0xff);
+				dos.writeShort(x);
+				dos.writeShort(y);
+				dos.writeShort(z);
+				dos.writeByte(yaw);
+				dos.writeByte(pitch);
+				listener.handlePositionOrientation(0xff, x, y, z, yaw, pitch);
+			} else if (kind < 99) {
+				int x = random.nextInt(1024);
+				int y = random.nextInt(1024);
+				int z = random.nextInt(1024);
+				int mode = random.nextInt(2);
+				int blockId = random.nextInt(50);
+				dos.writeByte(0x05);
+				dos.writeShort(x);
+				dos.writeShort(y);
+				dos.writeShort(z);
+				dos.writeByte(mode);
+				dos.writeByte(blockId);
+				listener.handleSetBlock(x, y, z, mode, blockId);
+			} else {
+				random.nextBytes(message);
+				dos.writeByte(0x0d);
+				dos.writeByte(0xff);
+				dos.write(message);
+				listener.handleMessage(0xff, message, 0);
+			}
+		}
+
+		dos.close();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Decodes the given data like the blocking transport does.
+	 * 
+	 * @param data     The raw data.
+	 * @param listener The listener of the packets.
+	 * @return The amount of decoded packets.
+	 * @throws IOException This should never happen.
+	 */
+	private static int decodeBlocking(byte[] data, CountingListener listener) throws IOException {
+		DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
+		byte[] packet = new byte[ClientPacketDecoder.MAX_PACKET_LENGTH];
+
+		listener.reset();
+
+		while (inputStream.available() > 0) {
+			ClientPacketDispatcher.readPacket(inputStream, packet, listener);
+		}
+
+		return listener.count;
+	}
+
+	/**
+	 * Decodes the given data like the non-blocking transport does, in segments
+	 * of the size of the read buffer of the event loops.
+	 * 
+	 * @param data     The raw data.
+	 * @param listener The listener of the packets.
+	 * @return The amount of decoded packets.
+	 * @throws IOException This should never happen.
+	 */
+	private static int decodeNonBlocking(byte[] data, CountingListener listener) throws IOException {
+		ClientPacketDecoder decoder = new ClientPacketDecoder();
+		PacketHandler handler = new PacketHandler() {
+			@Override
+			public void handlePacket(byte[] packet, int length) throws IOException {
+				ClientPacketDispatcher.dispatch(packet, listener);
+			}
+
+			@Override
+			public void handleDisconnect() {
+				// Nothing to do
+			}
+		};
+
+		listener.reset();
+
+		for (int offset = 0; offset < data.length; offset += 8192) {
+			decoder.decode(ByteBuffer.wrap(data, offset, Math.min(8192, data.length - offset)), handler);
+		}
+
+		return listener.count;
+	}
+
+	/**
+	 * Checks that all the packets were decoded with the expected fields.
+	 * 
+	 * @param count            The amount of decoded packets.
+	 * @param expectedCount    The amount of packets.
+	 * @param checksum         The checksum of the decoded fields.
+	 * @param expectedChecksum The checksum of the encoded fields.
+	 */
+	private static void check(int count, int expectedCount, long checksum, long expectedChecksum) {
+		if (count != expectedCount || checksum != expectedChecksum) {
+			throw new IllegalStateException("The packets were not decoded correctly.");
+		}
+	}
+
+	/**
+	 * Prints the result of a measurement.
+	 * 
+	 * @param name        The name of the measured path.
+	 * @param packetCount The amount of packets.
+	 * @param iterations  The amount of iterations.
+	 * @param time        The total time of the iterations in nanoseconds.
+	 */
+	private static void report(String name, int packetCount, int iterations, long time) {
+		double seconds = time / 1e9 / iterations;
+		System.out.printf("%-24s %8.1f ms/op %8.2f Mpackets/s%n", name, seconds * 1000, packetCount / seconds / 1e6);
+	}
+
+	/**
+	 * This listener counts the decoded packets and computes a checksum of their
+	 * fields, so that the decoding cannot be optimized away.
+	 * 
+	 * @author Ankeraout
+	 *
+	 */
+	private static class CountingListener implements ClientPacketListener {
+		/**
+		 * The amount of decoded packets.
+		 */
+		private int count;
+
+		/**
+		 * The checksum of the decoded fields.
+		 */
+		private long checksum;
+
+		/**
+		 * Resets the counters.
+		 */
+		private void reset() {
+			this.count = 0;
+			this.checksum = 0;
+		}
+
+		/**
+		 * Adds the given value to the checksum.
+		 * 
+		 * @param value The value.
+		 */
+		private void add(int value) {
+			this.checksum = this.checksum * 31 + value;
+		}
+
+		@Override
+		public void handlePlayerIdentification(int protocolVersion, byte[] packet, int nameOffset, int keyOffset,
+				int clientType) {
+			this.count++;
+			this.add(protocolVersion);
+		}
+
+		@Override
+		public void handleSetBlock(int x, int y, int z, int mode, int blockId) {
+			this.count++;
+			this.add(x);
+			this.add(y);
+			this.add(z);
+			this.add(mode);
+			this.add(blockId);
+		}
+
+		@Override
+		public void handlePositionOrientation(int playerId, int x, int y, int z, int yaw, int pitch) {
+			this.count++;
+			this.add(playerId);
+			this.add(x);
+			this.add(y);
+			this.add(z);
+			this.add(yaw);
+			this.add(pitch);
+		}
+
+		@Override
+		public void handleMessage(int playerId, byte[] packet, int messageOffset) {
+			this.count++;
+			this.add(playerId);
+
+			for (int i = 0; i < 64; i++) {
+				this.add(packet[messageOffset + i]);
+			}
+		}
+
+		@Override
+		public void handleUnknownPacket(int packetId) {
+			this.count++;
+			this.add(-packetId);
+		}
+	}
+}
@@ -1,24 +1,33 @@
 package fr.ankeraout.mcank;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import fr.ankeraout.mcank.io.ClassicubeString;
+import fr.ankeraout.mcank.net.NioNetworkServer;
+import fr.ankeraout.mcank.net.TokenBucket;
 import fr.ankeraout.mcank.util.StringUtils;
+import fr.ankeraout.mcank.util.ThreadUtils;
 import fr.ankeraout.mcank.world.World;
-import fr.ankeraout.mcank.world.WorldLoaderFactory;
+import fr.ankeraout.mcank.world.WorldManager;
 import fr.ankeraout.mcank.worldgen.WorldGeneratorFactory;
 
 /**
@@ -41,6 +50,12 @@ public final class ClassicubeServer {
 	 */
 	public static final int PROTOCOL_VERSION = 0x07;
 
+	/**
+	 * The amount of map data in bytes that can be sent at once, without waiting
+	 * for the bandwidth limits, after a pause.
+	 */
+	private static final int LEVEL_DATA_BURST_SIZE = 8192;
+
 	/**
 	 * The only instance of this class.
 	 */
@@ -66,6 +81,51 @@ public final class ClassicubeServer {
 	 */
 	private Thread listenThread;
 
+	/**
+	 * The factory used for creating the listen thread and the threads of the
+	 * players. Depending on the thread-mode property, it creates either platform
+	 * threads or virtual threads.
+	 */
+	private ThreadFactory threadFactory;
+
+	/**
+	 * The non-blocking network transport. This is <code>null</code> unless the
+	 * network-mode property is set to "nio".
+	 */
+	private NioNetworkServer nioServer;
+
+	/**
+	 * The token bucket that limits the rate at which the map data is sent to all
+	 * the players (see the map-upload-rate property). This is <code>null</code>
+	 * until the server is started.
+	 */
+	private TokenBucket mapUploadBucket;
+
+	/**
+	 * The name of the server, encoded once for the SERVER_IDENTIFICATION packets.
+	 * This is <code>null</code> until the server is started.
+	 */
+	private ClassicubeString encodedName;
+
+	/**
+	 * The message of the day of the server, encoded once for the
+	 * SERVER_IDENTIFICATION packets. This is <code>null</code> until the server is
+	 * started.
+	 */
+	private ClassicubeString encodedMotd;
+
+	/**
+	 * The executor that saves the worlds periodically. This is <code>null</code>
+	 * if the save-interval property is 0 or if the server is not started.
+	 */
+	private ScheduledExecutorService saveScheduler;
+
+	/**
+	 * The scheduler that runs the server ticks (see the tick-interval property).
+	 * This is <code>null</code> if the server is not started.
+	 */
+	private TickScheduler tickScheduler;
+
 	/**
 	 * The server properties. This is basically a dictionary that contains all of
 	 * the values of the server properties file. All the values in
@@ -82,9 +142,10 @@ public final class ClassicubeServer {
 	private String salt;
 
 	/**
-	 * The list of all the worlds of the server.
+	 * The manager of all the worlds of the server. This is <code>null</code> until
+	 * the server is started.
 	 */
-	private HashMap<String, World> worlds;
+	private WorldManager worldManager;
 
 	/**
 	 * The list of all the ranks of the server.
@@ -101,9 +162,12 @@ public final class ClassicubeServer {
 		// Initialize the server state
 		this.state = ClassicubeServerState.STOPPED;
 
+		// Platform threads are used until the server is started
+		this.threadFactory = ThreadUtils.getPlatformThreadFactory();
+
 		// Initialize the server data structures
 		this.properties = new ClassicubeServerProperties();
-		this.worlds = new HashMap<String, World>();
+		this.worldManager = null;
 		this.ranks = new HashMap<String, Rank>();
 
 		// The salt is not generated yet.
@@ -171,23 +235,83 @@ public final class ClassicubeServer {
 			this.state = ClassicubeServerState.STARTING;
 		}
 
+		// Select the kind of threads used for the connections
+		if (this.properties.getThreadMode().equalsIgnoreCase("virtual")) {
+			if (ThreadUtils.isVirtualThreadSupported()) {
+				this.threadFactory = ThreadUtils.getVirtualThreadFactory();
+			} else {
+				Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.WARNING,
+						"Virtual threads are not supported by this JRE (Java 21 or later is required). Using platform threads instead.");
+				this.threadFactory = ThreadUtils.getPlatformThreadFactory();
+			}
+		} else if (this.properties.getThreadMode().equalsIgnoreCase("platform")) {
+			this.threadFactory = ThreadUtils.getPlatformThreadFactory();
+		} else {
+			throw new RuntimeException("Unknown thread mode \"" + this.properties.getThreadMode() + "\".");
+		}
+
+		// Encode the strings sent to every player
+		this.encodedName = new ClassicubeString(this.properties.getName());
+		this.encodedMotd = new ClassicubeString(this.properties.getMotd());
+
+		// Create the bandwidth limit shared by all the map downloads
+		this.mapUploadBucket = new TokenBucket(this.properties.getMapUploadRate() * 1024L,
+				ClassicubeServer.LEVEL_DATA_BURST_SIZE, null);
+
 		// Detect worlds
-		try {
-			this.loadWorlds();
-		} catch (IOException e) {
-			throw new RuntimeException("Failed to load worlds.", e);
+		this.worldManager = new WorldManager(this.properties.getWorldMemoryBudget() * 1048576L);
+
+		boolean stagedDiscovery = false;
+
+		if (this.properties.getStartupMode().equalsIgnoreCase("staged")) {
+			// Only the default world is needed before binding the socket
+			File defaultWorldFile = new File("worlds", this.properties.getDefaultWorld());
+			stagedDiscovery = true;
+
+			if (defaultWorldFile.isFile()
+					&& !this.worldManager.discoverWorld(defaultWorldFile).getName()
+							.equals(this.properties.getDefaultWorld())) {
+				// The default world may be stored in any other file, so all the worlds must
+				// be discovered before knowing whether it exists
+				Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.WARNING, "The world file "
+						+ defaultWorldFile + " does not contain the default world. Discovering all the worlds.");
+				stagedDiscovery = false;
+			}
+		} else if (!this.properties.getStartupMode().equalsIgnoreCase("full")) {
+			throw new RuntimeException("Unknown startup mode \"" + this.properties.getStartupMode() + "\".");
+		}
+
+		if (!stagedDiscovery) {
+			try {
+				this.loadWorlds();
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to load worlds.", e);
+			}
 		}
 
 		// If the main world does not exist, generate a 128^3 flatgrass map.
-		if (!this.worlds.containsKey(this.properties.getDefaultWorld())) {
+		if (!this.worldManager.containsWorld(this.properties.getDefaultWorld())) {
+			File defaultWorldFile = new File("worlds", this.properties.getDefaultWorld());
+
+			// Never replace another world with the generated world
+			if (defaultWorldFile.exists()) {
+				throw new RuntimeException("The default world \"" + this.properties.getDefaultWorld()
+						+ "\" does not exist, and the file " + defaultWorldFile + " contains another world.");
+			}
+
 			Random random = new Random();
-			this.worlds.put(this.properties.getDefaultWorld(), new World(this.properties.getDefaultWorld(), 128, 128,
-					128, WorldGeneratorFactory.getInstance().getGenerator("flatgrass"), random.nextLong()));
+			this.worldManager.addWorld(new World(this.properties.getDefaultWorld(), 128, 128, 128,
+					WorldGeneratorFactory.getInstance().getGenerator("flatgrass"), random.nextLong(),
+					defaultWorldFile));
 		}
 
-		// Load main world
-		if (!this.getWorldByName(this.properties.getDefaultWorld()).isLoaded()) {
-			this.getWorldByName(this.properties.getDefaultWorld()).load();
+		// Load main world, so that the first player does not wait for it. The other
+		// worlds are loaded when a player enters them.
+		this.worldManager.loadWorld(this.getWorldByName(this.properties.getDefaultWorld()));
+
+		// Discover the other worlds while the server starts accepting players
+		if (stagedDiscovery) {
+			this.worldManager.discoverWorldsAsync(new File("worlds"), this.threadFactory);
 		}
 
 		// TODO: Detect and load ranks
@@ -210,8 +334,21 @@ public final class ClassicubeServer {
 
 		// Bind the server socket
 		try {
-			this.socket = new ServerSocket(this.properties.getPort(), this.properties.getBacklog(),
-					InetAddress.getByName(this.properties.getIP()));
+			if (this.properties.getNetworkMode().equalsIgnoreCase("nio")) {
+				ServerSocketChannel serverChannel = ServerSocketChannel.open();
+				serverChannel.bind(new InetSocketAddress(InetAddress.getByName(this.properties.getIP()),
+						this.properties.getPort()), this.properties.getBacklog());
+				this.socket = serverChannel.socket();
+
+				this.nioServer = new NioNetworkServer(this.properties.getNetworkThreads(),
+						this.properties.getTcpNoDelay(), this.properties.getOutboundQueueSize() * 1024L);
+				this.nioServer.start();
+			} else if (this.properties.getNetworkMode().equalsIgnoreCase("blocking")) {
+				this.socket = new ServerSocket(this.properties.getPort(), this.properties.getBacklog(),
+						InetAddress.getByName(this.properties.getIP()));
+			} else {
+				throw new RuntimeException("Unknown network mode \"" + this.properties.getNetworkMode() + "\".");
+			}
 		} catch (IOException e) {
 			// Reset the server state
 			synchronized (this.stateLock) {
@@ -222,8 +359,24 @@ public final class ClassicubeServer {
 			throw e;
 		}
 
+		// Schedule the world saves
+		if (this.properties.getSaveInterval() > 0) {
+			this.saveScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "World save scheduler");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+			this.saveScheduler.scheduleWithFixedDelay(() -> this.saveWorlds(), this.properties.getSaveInterval(),
+					this.properties.getSaveInterval(), TimeUnit.MILLISECONDS);
+		}
+
+		// Start the server ticks
+		this.tickScheduler = new TickScheduler(() -> this.tick(), this.properties.getTickInterval());
+		this.tickScheduler.start();
+
 		// Create the listener thread
-		this.listenThread = new Thread(() -> listenThreadMain());
+		this.listenThread = this.threadFactory.newThread(() -> listenThreadMain());
 
 		// Start the listener thread
 		this.listenThread.start();
@@ -235,29 +388,13 @@ public final class ClassicubeServer {
 	}
 
 	/**
-	 * Detects and loads the worlds. If the main world does not exist, then this
-	 * method will create it.
+	 * Detects the worlds, and reads the header of their world files in parallel.
+	 * Their block data is not loaded.
 	 * 
 	 * @throws IOException If an exception occurs while loading a world.
 	 */
 	private void loadWorlds() throws IOException {
-		File worldsDirectory = new File("worlds");
-		File[] worldFiles = worldsDirectory.listFiles();
-
-		if (worldFiles == null) {
-			// No worlds to load
-			return;
-		}
-
-		for (File file : worldFiles) {
-			// Read file magic value
-			FileInputStream fis = new FileInputStream(file);
-			DataInputStream dis = new DataInputStream(fis);
-			long magic = dis.readLong();
-			dis.close();
-
-			this.worlds.put(file.getName(), WorldLoaderFactory.getInstance().getWorldLoader(magic).loadWorld(file));
-		}
+		this.worldManager.discoverWorlds(new File("worlds"), this.threadFactory);
 	}
 
 	/**
@@ -307,6 +444,35 @@ public final class ClassicubeServer {
 			throw e;
 		}
 
+		// Stop the non-blocking transport. This closes all of its connections.
+		if (this.nioServer != null) {
+			this.nioServer.stop();
+			this.nioServer = null;
+		}
+
+		// Stop the server ticks
+		if (this.tickScheduler != null) {
+			this.tickScheduler.stop();
+			this.tickScheduler = null;
+		}
+
+		// Stop the periodic saves, and unload the worlds, which saves them one last
+		// time and closes their journals
+		if (this.saveScheduler != null) {
+			this.saveScheduler.shutdown();
+			this.saveScheduler = null;
+		}
+
+		for (World world : this.worldManager.getWorlds()) {
+			if (world.isLoaded()) {
+				try {
+					world.unload();
+				} catch (IOException | RuntimeException e) {
+					Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.SEVERE, "Failed to save a world.", e);
+				}
+			}
+		}
+
 		// Set the server state to STOPPED
 		synchronized (this.stateLock) {
 			this.state = ClassicubeServerState.STOPPED;
@@ -316,6 +482,46 @@ public final class ClassicubeServer {
 		}
 	}
 
+	/**
+	 * Runs a server tick: every loaded world sends the updates collected since the
+	 * last tick to its players. The worlds that are not loaded have no players, so
+	 * they are not ticked. This method is called periodically by the tick
+	 * scheduler.
+	 */
+	private void tick() {
+		for (World world : this.worldManager.getLoadedWorlds()) {
+			world.tick();
+		}
+	}
+
+	/**
+	 * Returns the scheduler that runs the server ticks. Its metrics (tick
+	 * duration, overrun count) describe the load of the server.
+	 * 
+	 * @return The scheduler that runs the server ticks, or <code>null</code> if
+	 *         the server is not started.
+	 */
+	public TickScheduler getTickScheduler() {
+		return this.tickScheduler;
+	}
+
+	/**
+	 * Saves all the loaded worlds in the background. Only the worlds that were
+	 * modified since their last save are actually written. This method is called
+	 * periodically by the save scheduler.
+	 */
+	private void saveWorlds() {
+		for (World world : this.worldManager.getLoadedWorlds()) {
+			if (world.isLoaded()) {
+				try {
+					world.saveAsync();
+				} catch (RuntimeException e) {
+					// The world was unloaded in the meantime
+				}
+			}
+		}
+	}
+
 	/**
 	 * Returns the server properties object.
 	 * 
@@ -325,6 +531,37 @@ public final class ClassicubeServer {
 		return this.properties;
 	}
 
+	/**
+	 * Returns the name of the server, encoded as a Classicube string.
+	 * 
+	 * @return The name of the server, encoded as a Classicube string.
+	 */
+	public ClassicubeString getEncodedName() {
+		return this.encodedName;
+	}
+
+	/**
+	 * Returns the message of the day of the server, encoded as a Classicube
+	 * string.
+	 * 
+	 * @return The message of the day of the server, encoded as a Classicube
+	 *         string.
+	 */
+	public ClassicubeString getEncodedMotd() {
+		return this.encodedMotd;
+	}
+
+	/**
+	 * Returns the factory that must be used for creating the threads of the
+	 * players.
+	 * 
+	 * @return The factory that must be used for creating the threads of the
+	 *         players.
+	 */
+	public ThreadFactory getThreadFactory() {
+		return this.threadFactory;
+	}
+
 	/**
 	 * This method contains the main code for the listen thread. It is in charge for
 	 * waiting for incoming client connections, and accepting them.
@@ -332,7 +569,24 @@ public final class ClassicubeServer {
 	private void listenThreadMain() {
 		while (true) {
 			try {
+				if (this.nioServer != null) {
+					SocketChannel clientChannel = this.socket.getChannel().accept();
+
+					try {
+						Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO,
+								clientChannel.getRemoteAddress().toString() + " is connecting...");
+
+						this.nioServer.accept(clientChannel);
+					} catch (IOException e) {
+						// The client has probably disconnected already
+						clientChannel.close();
+					}
+
+					continue;
+				}
+
 				Socket clientSocket = ClassicubeServer.this.socket.accept();
+				clientSocket.setTcpNoDelay(this.properties.getTcpNoDelay());
 
 				Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO,
 						clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort()
@@ -352,6 +606,11 @@ public final class ClassicubeServer {
 								e);
 					}
 				}
+
+				// The listen thread cannot do anything once the server socket is closed
+				if (this.socket.isClosed()) {
+					return;
+				}
 			}
 		}
 	}
@@ -407,7 +666,28 @@ public final class ClassicubeServer {
 	 * @return The world with the given name.
 	 */
 	public World getWorldByName(String worldName) {
-		return this.worlds.get(worldName);
+		return this.worldManager.getWorld(worldName);
+	}
+
+	/**
+	 * Creates the token bucket that limits the rate at which the map data is sent
+	 * to a player. Its rate is set by the map-download-rate property, and its
+	 * parent is the bucket shared by all the players.
+	 * 
+	 * @return The token bucket of the map downloads of a player.
+	 */
+	public TokenBucket createLevelDataBucket() {
+		return new TokenBucket(this.properties.getMapDownloadRate() * 1024L, ClassicubeServer.LEVEL_DATA_BURST_SIZE,
+				this.mapUploadBucket);
+	}
+
+	/**
+	 * Returns the manager of the worlds of the server.
+	 * 
+	 * @return The manager of the worlds of the server.
+	 */
+	public WorldManager getWorldManager() {
+		return this.worldManager;
 	}
 
 	/**
@@ -33,7 +33,15 @@ public class ClassicubeServerProperties extends Properties {
 			new PropertyRecord("whitelist", "BOOLEAN"), new PropertyRecord("save-interval", "INTEGER"),
 			new PropertyRecord("tcp-no-delay", "BOOLEAN"), new PropertyRecord("max-players", "INTEGER"),
 			new PropertyRecord("mark-new-lines", "BOOLEAN"), new PropertyRecord("tick-interval", "INTEGER"),
-			new PropertyRecord("backlog", "INTEGER") };
+			new PropertyRecord("backlog", "INTEGER"), new PropertyRecord("network-mode", "STRING"),
+			new PropertyRecord("network-threads", "INTEGER"), new PropertyRecord("thread-mode", "STRING"),
+			new PropertyRecord("mapped-storage-volume", "INTEGER"), new PropertyRecord("block-storage", "STRING"),
+			new PropertyRecord("journal-commit-interval", "INTEGER"),
+			new PropertyRecord("world-memory-budget", "INTEGER"), new PropertyRecord("startup-mode", "STRING"),
+			new PropertyRecord("level-send-mode", "STRING"), new PropertyRecord("map-download-rate", "INTEGER"),
+			new PropertyRecord("map-upload-rate", "INTEGER"), new PropertyRecord("outbound-queue-size", "INTEGER"),
+			new PropertyRecord("movement-radius", "INTEGER"),
+			new PropertyRecord("distant-movement-interval", "INTEGER") };
 
 	/**
 	 * The path to the server properties file.
@@ -131,7 +139,7 @@ public class ClassicubeServerProperties extends Properties {
 	 */
 	public void loadDefaultProperties() {
 		try {
-			this.load(System.class.getResourceAsStream(ClassicubeServerProperties.DEFAULT_PROPERTIES_FILE_PATH));
+			this.load(ClassicubeServerProperties.class.getResourceAsStream(ClassicubeServerProperties.DEFAULT_PROPERTIES_FILE_PATH));
 		} catch (IOException e) {
 			throw new RuntimeException("An exception occurred while loading the default properties file.", e);
 		}
@@ -154,7 +162,7 @@ public class ClassicubeServerProperties extends Properties {
 		// If the properties file does not exist, create it with the default values
 		if (!propertiesFilePath.exists()) {
 			// Copy the default properties file
-			Files.copy(System.class.getResourceAsStream(ClassicubeServerProperties.DEFAULT_PROPERTIES_FILE_PATH),
+			Files.copy(ClassicubeServerProperties.class.getResourceAsStream(ClassicubeServerProperties.DEFAULT_PROPERTIES_FILE_PATH),
 					new File(ClassicubeServerProperties.PROPERTIES_FILE_PATH).toPath());
 
 			// Send a warning to the user
@@ -394,6 +402,155 @@ public class ClassicubeServerProperties extends Properties {
 		return Integer.parseInt((String) this.get("tick-interval"));
 	}
 
+	/**
+	 * Returns the network transport used for the player connections. This is
+	 * either "blocking" or "nio".
+	 * 
+	 * @return The network transport used for the player connections.
+	 */
+	public String getNetworkMode() {
+		return (String) this.get("network-mode");
+	}
+
+	/**
+	 * Returns the amount of event loop threads used by the non-blocking network
+	 * transport.
+	 * 
+	 * @return The amount of event loop threads used by the non-blocking network
+	 *         transport.
+	 */
+	public int getNetworkThreads() {
+		return Integer.parseInt((String) this.get("network-threads"));
+	}
+
+	/**
+	 * Returns the kind of threads used for the player connections. This is either
+	 * "platform" or "virtual".
+	 * 
+	 * @return The kind of threads used for the player connections.
+	 */
+	public String getThreadMode() {
+		return (String) this.get("thread-mode");
+	}
+
+	/**
+	 * Returns the minimum volume (in blocks) of the worlds that are saved in the
+	 * memory-mapped world file format. If this is 0, the worlds are never saved in
+	 * this format.
+	 * 
+	 * @return The minimum volume of the worlds that are saved in the memory-mapped
+	 *         world file format.
+	 */
+	public int getMappedStorageVolume() {
+		return Integer.parseInt((String) this.get("mapped-storage-volume"));
+	}
+
+	/**
+	 * Returns the kind of storage used for the block data of the worlds that are
+	 * not memory-mapped. This is either "array" or "sectioned".
+	 * 
+	 * @return The kind of storage used for the block data of the worlds.
+	 */
+	public String getBlockStorage() {
+		return (String) this.get("block-storage");
+	}
+
+	/**
+	 * Returns the interval of time between two writes of the block change journal
+	 * of the worlds in milliseconds. If this is 0, the block changes are not
+	 * journaled.
+	 * 
+	 * @return The interval of time between two writes of the block change journal
+	 *         in milliseconds.
+	 */
+	public int getJournalCommitInterval() {
+		return Integer.parseInt((String) this.get("journal-commit-interval"));
+	}
+
+	/**
+	 * Returns the maximum amount of memory (in MiB) used by the block data of the
+	 * loaded worlds before the idle worlds are unloaded. If this is 0, the worlds
+	 * are never unloaded.
+	 * 
+	 * @return The maximum amount of memory used by the loaded worlds in MiB.
+	 */
+	public int getWorldMemoryBudget() {
+		return Integer.parseInt((String) this.get("world-memory-budget"));
+	}
+
+	/**
+	 * Returns the way the worlds are discovered when the server starts. This is
+	 * either "full" or "staged".
+	 * 
+	 * @return The way the worlds are discovered when the server starts.
+	 */
+	public String getStartupMode() {
+		return (String) this.get("startup-mode");
+	}
+
+	/**
+	 * Returns the way the level data is sent to the players. This is either
+	 * "cached" or "streaming".
+	 * 
+	 * @return The way the level data is sent to the players.
+	 */
+	public String getLevelSendMode() {
+		return (String) this.get("level-send-mode");
+	}
+
+	/**
+	 * Returns the maximum rate at which the map data is sent to a player in KiB/s.
+	 * If this is 0, the rate is not limited.
+	 * 
+	 * @return The maximum rate at which the map data is sent to a player in KiB/s.
+	 */
+	public int getMapDownloadRate() {
+		return Integer.parseInt((String) this.get("map-download-rate"));
+	}
+
+	/**
+	 * Returns the maximum rate at which the map data is sent to all the players in
+	 * KiB/s. If this is 0, the rate is not limited.
+	 * 
+	 * @return The maximum rate at which the map data is sent to all the players in
+	 *         KiB/s.
+	 */
+	public int getMapUploadRate() {
+		return Integer.parseInt((String) this.get("map-upload-rate"));
+	}
+
+	/**
+	 * Returns the maximum amount of data waiting to be sent to a player in KiB.
+	 * The player is disconnected if this amount is exceeded.
+	 * 
+	 * @return The maximum amount of data waiting to be sent to a player in KiB.
+	 */
+	public int getOutboundQueueSize() {
+		return Integer.parseInt((String) this.get("outbound-queue-size"));
+	}
+
+	/**
+	 * Returns the distance in blocks within which the movements of the players
+	 * are sent on every tick. The value 0 means that all the movements are sent on
+	 * every tick.
+	 * 
+	 * @return The distance in blocks within which the movements of the players
+	 *         are sent on every tick.
+	 */
+	public int getMovementRadius() {
+		return Integer.parseInt((String) this.get("movement-radius"));
+	}
+
+	/**
+	 * Returns the amount of ticks between 2 updates of the movements of the
+	 * players who are farther than the movement radius.
+	 * 
+	 * @return The amount of ticks between 2 updates of the distant movements.
+	 */
+	public int getDistantMovementInterval() {
+		return Integer.parseInt((String) this.get("distant-movement-interval"));
+	}
+
 	/**
 	 * This class defines a property record, that is basically an association
 	 * between a property name and a property type.
@@ -10,36 +10,44 @@ package fr.ankeraout.mcank;
  *
  */
 public enum PacketID {
-	PLAYER_IDENTIFICATION(0x00),
-	SERVER_IDENTIFICATION(0x00),
-	PING(0x01),
-	LEVEL_INITIALIZE(0x02),
-	LEVEL_DATA_CHUNK(0x03),
-	LEVEL_FINALIZE(0x04),
-	CLIENT_SET_BLOCK(0x05),
-	SERVER_SET_BLOCK(0x06),
-	SPAWN_PLAYER(0x07),
-	POSITION_ORIENTATION_ABSOLUTE(0x08),
-	POSITION_ORIENTATION_RELATIVE(0x09),
-	POSITION_RELATIVE(0x0a),
-	ORIENTATION(0x0b),
-	DESPAWN_PLAYER(0x0c),
-	MESSAGE(0x0d),
-	KICK(0x0e),
-	UPDATE_USER_TYPE(0x0f);
+	PLAYER_IDENTIFICATION(0x00, 131),
+	SERVER_IDENTIFICATION(0x00, 131),
+	PING(0x01, 1),
+	LEVEL_INITIALIZE(0x02, 1),
+	LEVEL_DATA_CHUNK(0x03, 1028),
+	LEVEL_FINALIZE(0x04, 7),
+	CLIENT_SET_BLOCK(0x05, 9),
+	SERVER_SET_BLOCK(0x06, 8),
+	SPAWN_PLAYER(0x07, 74),
+	POSITION_ORIENTATION_ABSOLUTE(0x08, 10),
+	POSITION_ORIENTATION_RELATIVE(0x09, 7),
+	POSITION_RELATIVE(0x0a, 5),
+	ORIENTATION(0x0b, 4),
+	DESPAWN_PLAYER(0x0c, 2),
+	MESSAGE(0x0d, 66),
+	KICK(0x0e, 65),
+	UPDATE_USER_TYPE(0x0f, 2);
 
 	/**
 	 * The packet ID of the current value in the enum.
 	 */
 	private int id;
 
+	/**
+	 * The length of the packet, packet ID included. Every packet of the protocol
+	 * has a fixed length.
+	 */
+	private int length;
+
 	/**
 	 * Creates a new value in the {@link PacketID} enum with the given packet ID.
 	 * 
-	 * @param id The ID of the packet type to declare.
+	 * @param id     The ID of the packet type to declare.
+	 * @param length The length of the packet, packet ID included.
 	 */
-	private PacketID(int id) {
+	private PacketID(int id, int length) {
 		this.id = id;
+		this.length = length;
 	}
 
 	/**
@@ -50,4 +58,14 @@ public enum PacketID {
 	public int getID() {
 		return this.id;
 	}
+
+	/**
+	 * Returns the length of the packet for the current value of the enum, packet
+	 * ID included.
+	 * 
+	 * @return The length of the packet.
+	 */
+	public int getLength() {
+		return this.length;
+	}
 }
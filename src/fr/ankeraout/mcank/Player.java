@@ -1,40 +1,88 @@
 package fr.ankeraout.mcank;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 import fr.ankeraout.mcank.io.ClassicubeInputStream;
-import fr.ankeraout.mcank.io.ClassicubeOutputStream;
-import fr.ankeraout.mcank.math.Orientation;
-import fr.ankeraout.mcank.math.Position;
+import fr.ankeraout.mcank.io.ClassicubeString;
+import fr.ankeraout.mcank.io.LevelDataChunkOutputStream;
+import fr.ankeraout.mcank.math.FixedOrientation;
+import fr.ankeraout.mcank.math.FixedPosition;
+import fr.ankeraout.mcank.net.ClientPacketDecoder;
+import fr.ankeraout.mcank.net.ClientPacketDispatcher;
+import fr.ankeraout.mcank.net.ClientPacketListener;
+import fr.ankeraout.mcank.net.Connection;
+import fr.ankeraout.mcank.net.NioConnection;
+import fr.ankeraout.mcank.net.PacketCodec;
+import fr.ankeraout.mcank.net.PacketHandler;
+import fr.ankeraout.mcank.net.SocketConnection;
+import fr.ankeraout.mcank.net.TokenBucket;
+import fr.ankeraout.mcank.world.BlockStorage;
 import fr.ankeraout.mcank.world.World;
 
 /**
  * This class represents a connected ClassiCube player. It is in charge for
  * managing communication with the client by receiving its packets and sending
  * the appropriate responses. This class can then be seen as an abstraction
- * layer over the client socket.
+ * layer over the client connection.
  * 
  * @author Ankeraout
  *
  */
 public class Player {
+	/**
+	 * The size of the buffers used for compressing the level data while it is
+	 * sent (see the level-send-mode property).
+	 */
+	private static final int LEVEL_STREAMING_BUFFER_SIZE = 4096;
+
 	/**
 	 * The name of the player (login)
 	 */
 	private String name;
 
 	/**
-	 * The current position of the player
+	 * The name of the player, encoded once for all the packets that contain it.
+	 */
+	private ClassicubeString encodedName;
+
+	/**
+	 * The current position of the player. This object is updated in place for
+	 * every position packet of the client.
+	 */
+	private FixedPosition position;
+
+	/**
+	 * The current orientation of the player. This object is updated in place for
+	 * every position packet of the client.
+	 */
+	private FixedOrientation orientation;
+
+	/**
+	 * This value is <code>true</code> when the client has sent a new position or
+	 * orientation that was not sent to the other players yet. It is set by the
+	 * thread that reads the packets of the client, and cleared by the tick thread
+	 * (see {@link Player#pollMovement()}).
 	 */
-	private Position position;
+	private volatile boolean movementPending;
 
 	/**
-	 * The current orientation of the player
+	 * The ID of the player in its current world, as sent to the other players of
+	 * the world, or -1 if the player is not visible to them.
 	 */
-	private Orientation orientation;
+	private volatile int entityId;
 
 	/**
 	 * The current world of the player
@@ -47,47 +95,89 @@ public class Player {
 	private Rank rank;
 
 	/**
-	 * The network socket connected to the player
+	 * The network connection of the player
 	 */
-	private Socket socket;
+	private Connection connection;
 
 	/**
 	 * The thread that will be responsible for reading the incoming data from the
-	 * client, raising player events, and communicating with the client.
+	 * client, raising player events, and communicating with the client. This is
+	 * <code>null</code> when the player uses the non-blocking transport.
 	 */
 	private Thread playerMainLoopThread;
 
 	/**
 	 * The thread that will be responsible for kicking the client if he has not
-	 * logged in before the end of the login timer.
+	 * logged in before the end of the login timer. This is <code>null</code> when
+	 * the player uses the non-blocking transport.
 	 */
 	private Thread playerloginTimeoutThread;
 
 	/**
-	 * The input stream that will be used for reading incoming client packets.
+	 * The executor of the non-blocking transport, used for scheduling the login
+	 * timeout of the player. The other tasks of the player (such as the map
+	 * download) get their own thread, because they may wait. This is
+	 * <code>null</code> when the player uses the blocking transport, which has a
+	 * login timeout thread instead.
+	 */
+	private ScheduledExecutorService executor;
+
+	/**
+	 * The scheduled login timeout task when the player uses the non-blocking
+	 * transport.
+	 */
+	private ScheduledFuture<?> loginTimeoutFuture;
+
+	/**
+	 * This value is <code>true</code> once the player has logged in. It is only
+	 * used by the non-blocking transport, where there is no main loop to keep
+	 * track of the login phase.
+	 */
+	private boolean loggedIn;
+
+	/**
+	 * This value is <code>true</code> once the connection with the player was
+	 * closed. A world change that starts after the disconnection does nothing.
+	 */
+	private volatile boolean disconnected;
+
+	/**
+	 * The input stream that will be used for reading incoming client packets. This
+	 * is <code>null</code> when the player uses the non-blocking transport.
 	 */
 	private ClassicubeInputStream inputStream;
 
 	/**
-	 * The output stream that will be used for sending packets to the client.
+	 * The listener that receives the fields of the packets sent by the client
+	 * after the login phase.
 	 */
-	private ClassicubeOutputStream outputStream;
+	private ClientPacketListener packetListener;
 
 	/**
-	 * The lock for the output stream. This prevents packet data from being written
-	 * in the wrong order if at least two threads try to write at the same moment.
+	 * The lock for sending packets. This prevents packets from being sent in the
+	 * wrong order if at least two threads try to send a sequence of packets at
+	 * the same moment. This is a {@link Lock} rather than a monitor so that a
+	 * virtual thread that waits while holding it does not pin its carrier thread.
 	 */
-	private Object outputStreamLock;
+	private ReentrantLock outputStreamLock;
+
+	/**
+	 * The token bucket that limits the rate at which the level data is sent to
+	 * the player (see the map-download-rate property). Its parent is the bucket
+	 * shared by all the players (see the map-upload-rate property).
+	 */
+	private TokenBucket levelDataBucket;
 
 	/**
 	 * This lock prevents the {@link Player#setWorldAsync()} from being executed
 	 * more than once at a time.
 	 */
-	private Object setWorldLock;
+	private Lock setWorldLock;
 
 	/**
 	 * Creates a new {@link Player} object. Two threads will be started after
-	 * calling this constructor:
+	 * calling this constructor. They are created by the thread factory of the
+	 * server, so they are virtual threads if the server is configured so:
 	 * <ul>
 	 * <li>The first thread will be constantly reading the incoming data from the
 	 * client</li>
@@ -100,25 +190,78 @@ public class Player {
 	 *                     socket.
 	 */
 	public Player(Socket socket) throws IOException {
-		this.socket = socket;
+		SocketConnection socketConnection = new SocketConnection(socket,
+				ClassicubeServer.getInstance().getThreadFactory(),
+				ClassicubeServer.getInstance().getProperties().getOutboundQueueSize() * 1024L);
+		this.connection = socketConnection;
 
 		// Initialize the locks
-		this.outputStreamLock = new Object();
-		this.setWorldLock = new Object();
-
-		// Retrieve the socket streams.
-		this.inputStream = new ClassicubeInputStream(socket.getInputStream());
-		this.outputStream = new ClassicubeOutputStream(socket.getOutputStream());
+		this.outputStreamLock = new ReentrantLock();
+		this.setWorldLock = new ReentrantLock();
+		this.disconnected = false;
+		this.levelDataBucket = ClassicubeServer.getInstance().createLevelDataBucket();
+		this.packetListener = this.createPacketListener();
+		this.entityId = -1;
+		this.position = new FixedPosition();
+		this.orientation = new FixedOrientation();
+
+		// Retrieve the socket input stream.
+		this.inputStream = new ClassicubeInputStream(socketConnection.getInputStream());
 
 		// Create the player main thread and run it
-		this.playerMainLoopThread = new Thread(() -> this.mainLoop());
+		this.playerMainLoopThread = ClassicubeServer.getInstance().getThreadFactory().newThread(() -> this.mainLoop());
 		this.playerMainLoopThread.start();
 
 		// Create the player login timeout thread and run it
-		this.playerloginTimeoutThread = new Thread(() -> this.loginWait());
+		this.playerloginTimeoutThread = ClassicubeServer.getInstance().getThreadFactory()
+				.newThread(() -> this.loginWait());
 		this.playerloginTimeoutThread.start();
 	}
 
+	/**
+	 * Creates a new {@link Player} object that uses the non-blocking transport. No
+	 * thread is started: the incoming packets are decoded by the event loop of the
+	 * connection and passed to {@link Player#handlePacket(byte[], int)}, and the
+	 * login timeout is scheduled on the executor of the connection.
+	 * 
+	 * @param connection The non-blocking connection of the player. It must not be
+	 *                   registered on its event loop yet.
+	 */
+	public Player(NioConnection connection) {
+		this.connection = connection;
+
+		// Initialize the locks
+		this.outputStreamLock = new ReentrantLock();
+		this.setWorldLock = new ReentrantLock();
+		this.disconnected = false;
+		this.levelDataBucket = ClassicubeServer.getInstance().createLevelDataBucket();
+		this.packetListener = this.createPacketListener();
+		this.entityId = -1;
+		this.position = new FixedPosition();
+		this.orientation = new FixedOrientation();
+
+		// The incoming data is pushed to the player, there is no input stream
+		this.inputStream = null;
+		this.executor = connection.getExecutor();
+		this.loggedIn = false;
+
+		connection.setPacketHandler(new PacketHandler() {
+			@Override
+			public void handlePacket(byte[] packet, int length) throws IOException {
+				Player.this.handlePacket(packet, length);
+			}
+
+			@Override
+			public void handleDisconnect() {
+				Player.this.handleDisconnect();
+			}
+		});
+
+		// Schedule the login timeout
+		this.loginTimeoutFuture = this.executor.schedule(() -> this.loginTimedOut(),
+				ClassicubeServer.getInstance().getProperties().getLoginTimeout(), TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * This method contains the code for name verification. If this option is
 	 * enabled on the server, this method will be called and will check if the
@@ -152,31 +295,36 @@ public class Player {
 	 * This method contains the code for the login phase of the player connection.
 	 * It is in charge for receiving client information, checking it, and
 	 * registering the player in the player list. At the end of its execution, this
-	 * method also kills the player login timeout thread to make sure the player
-	 * does not get disconnected for taking too long to login if he has logged in.
+	 * method returns whether the player has logged in, so that the caller can stop
+	 * the login timeout.
 	 * 
+	 * @param inputStream The stream from which the player identification packet
+	 *                    is read.
+	 * @return <code>true</code> if the player has logged in, <code>false</code> if
+	 *         the player was kicked.
 	 * @throws IOException if an exception occurs while communicating with the
 	 *                     client. This can happen if the player disconnects during
 	 *                     the login phase.
 	 */
-	private void doLogin() throws IOException {
+	private boolean doLogin(ClassicubeInputStream inputStream) throws IOException {
 		// Wait for client identification packet and read it
-		if (this.inputStream.read() != PacketID.PLAYER_IDENTIFICATION.getID()) {
+		if (inputStream.read() != PacketID.PLAYER_IDENTIFICATION.getID()) {
 			this.kick("Expected first packet to be player identification.");
-			return;
+			return false;
 		}
 
 		// Check client protocol version
-		if (this.inputStream.read() != ClassicubeServer.PROTOCOL_VERSION) {
+		if (inputStream.read() != ClassicubeServer.PROTOCOL_VERSION) {
 			this.kick("Connection refused: wrong protocol version.");
-			return;
+			return false;
 		}
 
 		// Get player username
-		this.name = this.inputStream.readClassicubeString();
+		this.name = inputStream.readClassicubeString();
+		this.encodedName = new ClassicubeString(this.name);
 
 		// Read the verification key
-		String mppass = this.inputStream.readClassicubeString();
+		String mppass = inputStream.readClassicubeString();
 
 		// Do name verification
 		if (ClassicubeServer.getInstance().getProperties().getNameVerification()) {
@@ -184,14 +332,14 @@ public class Player {
 				this.verifyName(mppass);
 			} catch (Exception e) {
 				this.kick(e.getMessage());
-				return;
+				return false;
 			}
 		}
 
 		Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO, this.name + " is connecting...");
 
 		// Do CPE negotiation if the client supports it.
-		if (this.inputStream.read() == 0x42) {
+		if (inputStream.read() == 0x42) {
 			this.doCPENegotiation();
 		}
 
@@ -201,11 +349,11 @@ public class Player {
 				.getRankByName(ClassicubeServer.getInstance().getProperties().getDefaultRank());
 
 		// Send the server identification packet
-		this.outputStream.writeByte(PacketID.SERVER_IDENTIFICATION.getID());
-		this.outputStream.writeByte(ClassicubeServer.PROTOCOL_VERSION);
-		this.outputStream.writeClassicubeString(ClassicubeServer.getInstance().getProperties().getName());
-		this.outputStream.writeClassicubeString(ClassicubeServer.getInstance().getProperties().getMotd());
-		this.outputStream.writeByte(this.rank.isOp() ? 0x64 : 0x00);
+		this.connection.sendPacket(PacketCodec.serverIdentification(ClassicubeServer.PROTOCOL_VERSION,
+				ClassicubeServer.getInstance().getEncodedName(), ClassicubeServer.getInstance().getEncodedMotd(),
+				this.rank.isOp()));
+
+		return true;
 	}
 
 	/**
@@ -217,11 +365,15 @@ public class Player {
 	private void mainLoop() {
 		try {
 			// Do player login phase
-			this.doLogin();
+			if (!this.doLogin(this.inputStream)) {
+				// The player was kicked, the login timeout is not needed anymore
+				this.playerloginTimeoutThread.interrupt();
+				return;
+			}
 		} catch (IOException e) {
 			// Log an error message
 			Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO,
-					this.socket.getRemoteSocketAddress().toString() + " disconnected during the login phase.");
+					this.connection.getRemoteAddress().toString() + " disconnected during the login phase.");
 
 			// Terminate the thread
 			return;
@@ -234,30 +386,197 @@ public class Player {
 		this.setWorld(ClassicubeServer.getInstance()
 				.getWorldByName(ClassicubeServer.getInstance().getProperties().getDefaultWorld()));
 
-		// TODO: Read incoming player packets
+		// Read the incoming player packets, until the client disconnects or sends
+		// an unknown packet
+		byte[] packet = new byte[ClientPacketDecoder.MAX_PACKET_LENGTH];
+
 		try {
-			while(true) {
-				int packetId = this.inputStream.readByte();
-				
-				switch(packetId) {
-				case 0x00:
-					this.kick("Login packet not allowed.");
-					break;
-				case 0x05:
-					break;
-				case 0x08:
-					break;
-				case 0x0d:
-					break;
-				default:
-					this.kick("Unknown packet ID 0x" + String.format("%02X", packetId));
-				}
+			while (ClientPacketDispatcher.readPacket(this.inputStream, packet, this.packetListener)) {
+				// The packet was handled by the listener
 			}
-		} catch(IOException e) {
+		} catch (IOException e) {
 			// Player has disconnected
 		}
-		
-		// TODO: Player disconnect
+
+		this.handleDisconnect();
+	}
+
+	/**
+	 * Creates the listener that receives the fields of the packets sent by the
+	 * client after the login phase.
+	 * 
+	 * @return The listener of the packets of the client.
+	 */
+	private ClientPacketListener createPacketListener() {
+		return new ClientPacketListener() {
+			@Override
+			public void handlePlayerIdentification(int protocolVersion, byte[] packet, int nameOffset,
+					int keyOffset, int clientType) throws IOException {
+				Player.this.kick("Login packet not allowed.");
+			}
+
+			@Override
+			public void handleSetBlock(int x, int y, int z, int mode, int blockId) throws IOException {
+				Player.this.handleSetBlock(x, y, z, mode, blockId);
+			}
+
+			@Override
+			public void handlePositionOrientation(int playerId, int x, int y, int z, int yaw, int pitch) {
+				Player.this.handlePositionOrientation(x, y, z, yaw, pitch);
+			}
+
+			@Override
+			public void handleMessage(int playerId, byte[] packet, int messageOffset) throws IOException {
+				Player.this.handleMessage(packet, messageOffset);
+			}
+
+			@Override
+			public void handleUnknownPacket(int packetId) throws IOException {
+				Player.this.kick("Unknown packet ID 0x" + String.format("%02X", packetId));
+			}
+		};
+	}
+
+	/**
+	 * Handles a chat message sent by the player. The message is logged, and sent
+	 * to all the players of the world of the player, including the player, with
+	 * the next tick of the world.
+	 * 
+	 * @param packet        The buffer that contains the packet.
+	 * @param messageOffset The offset of the message in the buffer.
+	 */
+	private void handleMessage(byte[] packet, int messageOffset) {
+		World world = this.world;
+		String message = ClassicubeString.decode(packet, messageOffset);
+
+		if (world == null || message.isEmpty()) {
+			return;
+		}
+
+		Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO, this.name + ": " + message);
+
+		// The message is truncated if the name and the message do not fit in a
+		// packet
+		world.queueBroadcast(PacketCodec.message(this.entityId,
+				new ClassicubeString("&" + this.rank.getColor() + this.name + ": &f" + message)), null);
+	}
+
+	/**
+	 * Handles a block change made by the player. The change is applied on the
+	 * next tick of the world. The client has already displayed the change, so if
+	 * the change is refused, the block is sent again to cancel it.
+	 * 
+	 * @param x       The position of the block on the X axis.
+	 * @param y       The position of the block on the Y axis.
+	 * @param z       The position of the block on the Z axis.
+	 * @param mode    0 if the block was destroyed, 1 if it was created.
+	 * @param blockId The ID of the block held by the player.
+	 */
+	private void handleSetBlock(int x, int y, int z, int mode, int blockId) {
+		World world = this.world;
+
+		// The client cannot show a block outside of the world, so there is nothing
+		// to cancel
+		if (world == null || !world.containsBlock(x, y, z)) {
+			return;
+		}
+
+		if (this.rank.getPermissionLevel() < world.getBuildPermission() || mode > 1
+				|| (mode == 1 && (blockId <= Blocks.AIR.getBlockId() || blockId > Blocks.OBSIDIAN.getBlockId()))) {
+			world.queueBlockRefresh(x, y, z);
+		} else {
+			world.queueBlockChange(x, y, z, mode == 0 ? Blocks.AIR.getBlockId() : blockId, this.name);
+		}
+	}
+
+	/**
+	 * Updates the position and the orientation of the player, as sent by the
+	 * client. The coordinates are in 1/32 of block and the angles in 1/256 of
+	 * turn. The update is ignored if the player has not entered a world yet. The
+	 * values are stored as they are received, without any conversion and without
+	 * creating any object.
+	 * 
+	 * @param x     The X coordinate of the player.
+	 * @param y     The Y coordinate of the player.
+	 * @param z     The Z coordinate of the player.
+	 * @param yaw   The yaw of the player.
+	 * @param pitch The pitch of the player.
+	 */
+	private void handlePositionOrientation(int x, int y, int z, int yaw, int pitch) {
+		if (this.world == null) {
+			return;
+		}
+
+		this.position.set(x, y, z);
+		this.orientation.set(yaw, pitch);
+
+		// This publishes the new values to the tick thread
+		this.movementPending = true;
+	}
+
+	/**
+	 * Handles a complete packet decoded by the non-blocking transport. The first
+	 * packet is handled as the player identification packet, and the following
+	 * ones are decoded by the {@link ClientPacketDispatcher}.
+	 * 
+	 * @param packet The buffer that contains the packet.
+	 * @param length The length of the packet in the buffer.
+	 * @throws IOException If an I/O error occurs while communicating with the
+	 *                     client.
+	 */
+	private void handlePacket(byte[] packet, int length) throws IOException {
+		if (this.loggedIn) {
+			ClientPacketDispatcher.dispatch(packet, this.packetListener);
+			return;
+		}
+
+		if (!this.doLogin(new ClassicubeInputStream(new ByteArrayInputStream(packet, 0, length)))) {
+			return;
+		}
+
+		this.loggedIn = true;
+
+		// Cancel the login timeout
+		this.loginTimeoutFuture.cancel(false);
+
+		// Teleport player to the main world
+		this.setWorld(ClassicubeServer.getInstance()
+				.getWorldByName(ClassicubeServer.getInstance().getProperties().getDefaultWorld()));
+	}
+
+	/**
+	 * This method is called once the connection with the player was closed.
+	 */
+	private void handleDisconnect() {
+		if (this.loginTimeoutFuture != null) {
+			this.loginTimeoutFuture.cancel(false);
+		}
+
+		this.disconnected = true;
+
+		// The disconnection may be detected by a thread that must not wait, such as an
+		// event loop of the non-blocking transport or the tick thread, while the level
+		// data is being sent. The world is left by another thread.
+		ClassicubeServer.getInstance().getThreadFactory().newThread(() -> this.leaveWorld()).start();
+	}
+
+	/**
+	 * Removes the disconnected player from its current world, so that the world
+	 * can be unloaded. This waits until the world change in progress, if any, is
+	 * over.
+	 */
+	private void leaveWorld() {
+		this.setWorldLock.lock();
+
+		try {
+			if (this.world != null) {
+				this.world.removePlayer(this);
+				ClassicubeServer.getInstance().getWorldManager().leaveWorld(this.world);
+				this.world = null;
+			}
+		} finally {
+			this.setWorldLock.unlock();
+		}
 	}
 
 	/**
@@ -279,84 +598,222 @@ public class Player {
 		}
 
 		if (kick) {
-			Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO,
-					this.socket.getRemoteSocketAddress().toString() + " took too long to login.");
+			this.loginTimedOut();
+		}
+	}
 
-			try {
-				this.kick("You took too long to login.");
-			} catch (IOException e) {
-				Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.WARNING,
-						"Failed to send kick message to " + this.socket.getRemoteSocketAddress().toString() + ".");
-			}
+	/**
+	 * Kicks the player because the login timeout has expired.
+	 */
+	private void loginTimedOut() {
+		Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO,
+				this.connection.getRemoteAddress().toString() + " took too long to login.");
+
+		try {
+			this.kick("You took too long to login.");
+		} catch (IOException e) {
+			Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.WARNING,
+					"Failed to send kick message to " + this.connection.getRemoteAddress().toString() + ".");
 		}
 	}
 
+	/**
+	 * Sends the given world to the player. The world is loaded by the world
+	 * manager if it is not loaded yet. The compressed world data is retrieved from
+	 * the cache of the world, so the world lock is only held while the data is
+	 * retrieved, and neither while it is compressed nor while it is sent.
+	 * 
+	 * @param w The world to send to the player.
+	 * @throws IOException If an I/O error occurs while sending the world.
+	 */
 	private void setWorldAsync(World w) throws IOException {
-		synchronized (this.setWorldLock) {
-			w.getLock().lock();
+		this.setWorldLock.lock();
 
-			synchronized (this.outputStreamLock) {
-				this.outputStream.writeByte(PacketID.LEVEL_INITIALIZE.getID());
+		try {
+			// The player has left the world, or will leave it, in Player#leaveWorld()
+			if (this.disconnected) {
+				return;
 			}
 
-			byte[] worldData = world.getCompressedWorldDataSynchronized();
+			try {
+				ClassicubeServer.getInstance().getWorldManager().enterWorld(w);
+			} catch (IOException e) {
+				Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.SEVERE,
+						"Failed to load world \"" + w.getName() + "\".", e);
+				this.kick("Failed to load the world.");
+				return;
+			}
 
-			this.world = w;
+			// The player count of the new world must be given back if the player does
+			// not switch to it
+			World previousWorld = this.world;
+			boolean adopted = false;
 
-			int chunkCount = worldData.length / 1024;
+			Supplier<byte[]> worldData = null;
+			BlockStorage blocks = null;
+			boolean streaming = this.isLevelStreamingEnabled();
 
-			if (worldData.length % 1024 != 0) {
-				chunkCount++;
-			}
+			try {
+				// Stop receiving the packets of the previous world before the level data
+				if (previousWorld != null) {
+					previousWorld.removePlayer(this);
+				}
 
-			for (int i = 0; i < chunkCount; i++) {
-				int chunkStart = i * 1024;
-				int chunkEnd = Math.min(chunkStart + 1024, worldData.length);
-				int chunkLength = chunkEnd - chunkStart;
-				int progress = (i + 1) * 100 / chunkCount;
+				this.outputStreamLock.lock();
 
-				synchronized (this.outputStreamLock) {
-					this.outputStream.writeByte(PacketID.LEVEL_DATA_CHUNK.getID());
-					this.outputStream.writeShort(chunkLength);
-					this.outputStream.write(worldData, chunkStart, chunkLength);
+				try {
+					this.connection.sendPacket(PacketCodec.levelInitialize());
+				} finally {
+					this.outputStreamLock.unlock();
+				}
+
+				w.getLock().lock();
 
-					while (chunkLength < 1024) {
-						this.outputStream.writeByte(0x00);
-						chunkLength++;
+				try {
+					// The blocks that change from now on are sent once the level data is sent
+					w.addLoadingPlayerSynchronized(this);
+
+					if (streaming) {
+						blocks = w.getBlockSnapshotSynchronized();
+					}
+
+					if (blocks == null) {
+						worldData = w.getCompressedWorldDataSynchronized(this);
 					}
 
-					this.outputStream.writeByte(progress);
+					this.world = w;
+					adopted = true;
+					this.position.setBlockCoordinates(w.getSpawnX(), w.getSpawnY(), w.getSpawnZ());
+					this.orientation.setDegrees(w.getSpawnYaw(), w.getSpawnPitch());
+				} finally {
+					w.getLock().unlock();
+				}
+			} finally {
+				if (!adopted) {
+					ClassicubeServer.getInstance().getWorldManager().leaveWorld(w);
 				}
 			}
 
-			synchronized (this.outputStreamLock) {
-				this.outputStream.writeByte(PacketID.LEVEL_FINALIZE.getID());
-				this.outputStream.writeShort(w.getWidth());
-				this.outputStream.writeShort(w.getHeight());
-				this.outputStream.writeShort(w.getDepth());
+			if (previousWorld != null) {
+				ClassicubeServer.getInstance().getWorldManager().leaveWorld(previousWorld);
 			}
 
-			this.position = new Position(w.getSpawnX(), w.getSpawnY(), w.getSpawnZ());
-			this.orientation = new Orientation(w.getSpawnYaw(), w.getSpawnPitch());
+			if (blocks != null) {
+				this.streamLevelData(blocks);
+			} else {
+				// The world data is compressed outside of the lock of the world
+				this.sendLevelData(worldData.get());
+			}
+
+			this.outputStreamLock.lock();
+
+			try {
+				this.connection.sendPacket(PacketCodec.levelFinalize(w.getWidth(), w.getHeight(), w.getDepth()));
+			} finally {
+				this.outputStreamLock.unlock();
+			}
+
+			this.outputStreamLock.lock();
+
+			try {
+				this.connection.sendPacket(PacketCodec.spawnPlayer(255, this.encodedName, this.position.getX(),
+						this.position.getY(), this.position.getZ(), this.orientation.getYaw(),
+						this.orientation.getPitch()));
+			} finally {
+				this.outputStreamLock.unlock();
+			}
+
+			// The player has the level data, it can receive the packets of the world
+			w.addPlayer(this);
+		} finally {
+			this.setWorldLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a boolean value that determines whether the level data must be
+	 * compressed while it is sent, according to the level-send-mode property.
+	 * 
+	 * @return A boolean value that determines whether the level data must be
+	 *         compressed while it is sent.
+	 * @throws RuntimeException If the level-send-mode property has an unknown
+	 *                          value.
+	 */
+	private boolean isLevelStreamingEnabled() {
+		String levelSendMode = ClassicubeServer.getInstance().getProperties().getLevelSendMode();
 
-			w.getLock().unlock();
+		if (levelSendMode.equalsIgnoreCase("streaming")) {
+			return true;
+		} else if (levelSendMode.equalsIgnoreCase("cached")) {
+			return false;
+		} else {
+			throw new RuntimeException("Unknown level send mode \"" + levelSendMode + "\".");
+		}
+	}
 
-			synchronized (this.outputStreamLock) {
-				this.outputStream.writeByte(PacketID.SPAWN_PLAYER.getID());
-				this.outputStream.writeByte(255);
-				this.outputStream.writeClassicubeString(this.name);
-				this.outputStream.writeShort(this.position.getShortX());
-				this.outputStream.writeShort(this.position.getShortY());
-				this.outputStream.writeShort(this.position.getShortZ());
-				this.outputStream.writeByte(this.orientation.getByteYaw());
-				this.outputStream.writeByte(this.orientation.getBytePitch());
+	/**
+	 * Sends the given compressed level data to the player, in LEVEL_DATA_CHUNK
+	 * packets.
+	 * 
+	 * @param worldData The compressed level data.
+	 * @throws IOException If an I/O error occurs while sending the level data.
+	 */
+	private void sendLevelData(byte[] worldData) throws IOException {
+		try (LevelDataChunkOutputStream chunkStream = this.createLevelDataChunkOutputStream()) {
+			for (int chunkStart = 0; chunkStart < worldData.length; chunkStart += 1024) {
+				int chunkLength = Math.min(1024, worldData.length - chunkStart);
+				chunkStream.setProgress((int) ((chunkStart + (long) chunkLength) * 100 / worldData.length));
+				chunkStream.write(worldData, chunkStart, chunkLength);
+			}
+		}
+	}
+
+	/**
+	 * Creates the stream that sends the level data to the player, at the rate
+	 * allowed by the bandwidth limits of the player and of the server.
+	 * 
+	 * @return The stream that sends the level data to the player.
+	 */
+	private LevelDataChunkOutputStream createLevelDataChunkOutputStream() {
+		return new LevelDataChunkOutputStream(this.connection, this.levelDataBucket);
+	}
+
+	/**
+	 * Compresses the level data of the given block data and sends it to the player
+	 * at the same time, in LEVEL_DATA_CHUNK packets. A packet is sent as soon as
+	 * the compressor has produced 1024 bytes, so the memory used does not depend
+	 * on the size of the world. The progress sent in the packets is the amount of
+	 * blocks given to the compressor.
+	 * 
+	 * @param blocks The block data, that must not be modified while it is sent.
+	 * @throws IOException If an I/O error occurs while sending the level data.
+	 */
+	private void streamLevelData(BlockStorage blocks) throws IOException {
+		int volume = blocks.getVolume();
+		byte[] buffer = new byte[Math.min(volume, Player.LEVEL_STREAMING_BUFFER_SIZE)];
+		LevelDataChunkOutputStream chunkStream = this.createLevelDataChunkOutputStream();
+
+		try (DataOutputStream levelStream = new DataOutputStream(
+				new GZIPOutputStream(chunkStream, Player.LEVEL_STREAMING_BUFFER_SIZE))) {
+			levelStream.writeInt(volume);
+
+			for (int offset = 0; offset < volume; offset += buffer.length) {
+				int length = Math.min(buffer.length, volume - offset);
+				blocks.getBlocks(offset, buffer, 0, length);
+				levelStream.write(buffer, 0, length);
+				chunkStream.setProgress((int) ((offset + (long) length) * 100 / volume));
 			}
 		}
 	}
 
 	public void setWorld(World w) {
-		synchronized (this.setWorldLock) {
-			new Thread(() -> {
+		this.setWorldLock.lock();
+
+		try {
+			// The map download waits for the bandwidth limits, so it gets its own thread
+			// even with the non-blocking transport, rather than blocking its shared
+			// executor.
+			ClassicubeServer.getInstance().getThreadFactory().newThread(() -> {
 				try {
 					this.setWorldAsync(w);
 				} catch (IOException e) {
@@ -364,7 +821,118 @@ public class Player {
 							"Player " + this.name + " has left the game while receiving map data.");
 				}
 			}).start();
+		} finally {
+			this.setWorldLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the given encoded packet to the player. The packet is never queued in
+	 * the middle of a sequence of packets sent by another thread.
+	 * 
+	 * @param packet The encoded packet (see {@link PacketCodec}). It must not be
+	 *               modified after calling this method.
+	 * @throws IOException If the connection of the player is closed.
+	 */
+	public void sendPacket(ByteBuffer packet) throws IOException {
+		this.outputStreamLock.lock();
+
+		try {
+			this.connection.sendPacket(packet);
+		} finally {
+			this.outputStreamLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the given encoded packets to the player at once, so that they are sent
+	 * together. The packets are never queued in the middle of a sequence of
+	 * packets sent by another thread.
+	 * 
+	 * @param packets The array that contains the encoded packets (see
+	 *                {@link PacketCodec}). They must not be modified after calling
+	 *                this method.
+	 * @param offset  The index of the first packet in the array.
+	 * @param count   The amount of packets.
+	 * @throws IOException If the connection of the player is closed.
+	 */
+	public void sendPackets(ByteBuffer[] packets, int offset, int count) throws IOException {
+		this.outputStreamLock.lock();
+
+		try {
+			this.connection.sendPackets(packets, offset, count);
+		} finally {
+			this.outputStreamLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the name of the player, encoded for the packets that contain it.
+	 * 
+	 * @return The encoded name of the player.
+	 */
+	public ClassicubeString getEncodedName() {
+		return this.encodedName;
+	}
+
+	/**
+	 * Returns the current position of the player. It is the spawn point of the
+	 * world until the client has sent its position, and it is meaningless until
+	 * the player has entered a world. The returned object is updated in place.
+	 * 
+	 * @return The current position of the player.
+	 */
+	public FixedPosition getPosition() {
+		return this.position;
+	}
+
+	/**
+	 * Returns the current orientation of the player. It is the spawn orientation
+	 * of the world until the client has sent its orientation, and it is
+	 * meaningless until the player has entered a world. The returned object is
+	 * updated in place.
+	 * 
+	 * @return The current orientation of the player.
+	 */
+	public FixedOrientation getOrientation() {
+		return this.orientation;
+	}
+
+	/**
+	 * Returns the ID of the player in its current world.
+	 * 
+	 * @return The ID of the player in its current world, or -1 if the player is
+	 *         not visible to the other players.
+	 */
+	public int getEntityId() {
+		return this.entityId;
+	}
+
+	/**
+	 * Sets the ID of the player in its current world. This is only called by the
+	 * world when the player joins or leaves it.
+	 * 
+	 * @param entityId The ID of the player in its current world, or -1 if the
+	 *                 player is not visible to the other players.
+	 */
+	public void setEntityId(int entityId) {
+		this.entityId = entityId;
+	}
+
+	/**
+	 * Returns whether the client has sent a new position or orientation since the
+	 * last call, and clears this state. This is called by the tick thread, which
+	 * then sends the new position to the other players.
+	 * 
+	 * @return <code>true</code> if the player has moved since the last call.
+	 */
+	public boolean pollMovement() {
+		if (!this.movementPending) {
+			return false;
 		}
+
+		this.movementPending = false;
+		return true;
 	}
 
 	/**
@@ -378,7 +946,7 @@ public class Player {
 		String identifier = null;
 
 		if (this.name == null) {
-			identifier = this.socket.getRemoteSocketAddress().toString();
+			identifier = this.connection.getRemoteAddress().toString();
 		} else {
 			identifier = this.name;
 		}
@@ -386,14 +954,16 @@ public class Player {
 		Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO,
 				"Player \"" + identifier + "\" was kicked. Reason: " + reason);
 
-		synchronized (this.outputStreamLock) {
+		this.outputStreamLock.lock();
+
+		try {
 			// Send the kick packet
-			this.outputStream.write(PacketID.KICK.getID());
-			this.outputStream.writeClassicubeString(reason);
-			this.outputStream.flush();
+			this.connection.sendPacket(PacketCodec.kick(new ClassicubeString(reason)));
 
 			// Close the connection
-			this.socket.close();
+			this.connection.close();
+		} finally {
+			this.outputStreamLock.unlock();
 		}
 	}
 }
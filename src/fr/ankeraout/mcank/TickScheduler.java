@@ -0,0 +1,244 @@
+package fr.ankeraout.mcank;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class runs the server ticks at a fixed rate, in a dedicated thread. The
+ * start of every tick is computed from the start of the first tick rather than
+ * from the end of the previous tick, so the time spent in the ticks does not
+ * make the tick rate drift. When a tick takes longer than the tick interval,
+ * it is counted as an overrun, and the ticks that were missed are skipped
+ * instead of being run in a burst to catch up.
+ * 
+ * The duration of the ticks and the amount of overruns can be read at any time
+ * from any thread, to monitor the load of the server.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class TickScheduler {
+	/**
+	 * The weight of the last tick in the average tick duration, as a power of 2
+	 * (the last tick counts for 1/16 of the average).
+	 */
+	private static final int AVERAGE_SHIFT = 4;
+
+	/**
+	 * The code that is run on every tick.
+	 */
+	private Runnable tick;
+
+	/**
+	 * The time interval between the start of 2 ticks, in nanoseconds.
+	 */
+	private long interval;
+
+	/**
+	 * The thread that runs the ticks. This is <code>null</code> until the
+	 * scheduler is started.
+	 */
+	private Thread thread;
+
+	/**
+	 * This value is <code>true</code> while the scheduler runs.
+	 */
+	private volatile boolean running;
+
+	/**
+	 * The amount of ticks that were run.
+	 */
+	private volatile long tickCount;
+
+	/**
+	 * The amount of ticks that took longer than the tick interval.
+	 */
+	private volatile long overrunCount;
+
+	/**
+	 * The duration of the last tick, in nanoseconds.
+	 */
+	private volatile long lastTickDuration;
+
+	/**
+	 * The exponential moving average of the duration of the ticks, in
+	 * nanoseconds.
+	 */
+	private volatile long averageTickDuration;
+
+	/**
+	 * The longest duration of a tick, in nanoseconds.
+	 */
+	private volatile long maxTickDuration;
+
+	/**
+	 * Creates a new tick scheduler. The scheduler does not run until
+	 * {@link TickScheduler#start()} is called.
+	 * 
+	 * @param tick     The code that is run on every tick.
+	 * @param interval The time interval between the start of 2 ticks, in
+	 *                 milliseconds.
+	 * @throws IllegalArgumentException If the interval is not positive.
+	 */
+	public TickScheduler(Runnable tick, long interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("The tick interval must be positive.");
+		}
+
+		this.tick = tick;
+		this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+		this.thread = null;
+		this.running = false;
+	}
+
+	/**
+	 * Starts the tick thread. The first tick is run immediately.
+	 */
+	public void start() {
+		this.running = true;
+
+		// The ticks are not run by the virtual threads of the server, because a
+		// virtual thread may wake up late when all the carrier threads are busy.
+		this.thread = new Thread(() -> this.run(), "Tick thread");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops the tick thread and waits until the current tick, if any, is over.
+	 */
+	public void stop() {
+		this.running = false;
+
+		if (this.thread == null) {
+			return;
+		}
+
+		LockSupport.unpark(this.thread);
+
+		try {
+			this.thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		this.thread = null;
+	}
+
+	/**
+	 * The main loop of the tick thread.
+	 */
+	private void run() {
+		long nextTickTime = System.nanoTime();
+
+		while (this.running) {
+			long tickStartTime = System.nanoTime();
+
+			try {
+				this.tick.run();
+			} catch (RuntimeException e) {
+				Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.SEVERE, "A server tick has failed.", e);
+			}
+
+			long tickEndTime = System.nanoTime();
+			this.recordTick(tickEndTime - tickStartTime);
+
+			// The next tick is scheduled from the planned start time of this tick, so the
+			// duration of the tick does not delay the following ones
+			nextTickTime += this.interval;
+
+			if (tickEndTime - nextTickTime > 0) {
+				// Skip the ticks that should already have started
+				this.overrunCount++;
+				nextTickTime += ((tickEndTime - nextTickTime) / this.interval + 1) * this.interval;
+			}
+
+			// Sleep until the next tick. The thread may wake up early, so the
+			// remaining time is checked again.
+			long remainingTime;
+
+			while (this.running && (remainingTime = nextTickTime - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, remainingTime);
+			}
+		}
+	}
+
+	/**
+	 * Updates the tick duration metrics with the duration of the last tick. This
+	 * is only called by the tick thread.
+	 * 
+	 * @param duration The duration of the last tick, in nanoseconds.
+	 */
+	private void recordTick(long duration) {
+		long tickCount = this.tickCount;
+
+		if (tickCount == 0) {
+			this.averageTickDuration = duration;
+		} else {
+			this.averageTickDuration += (duration - this.averageTickDuration) >> TickScheduler.AVERAGE_SHIFT;
+		}
+
+		this.lastTickDuration = duration;
+		this.maxTickDuration = Math.max(this.maxTickDuration, duration);
+		this.tickCount = tickCount + 1;
+	}
+
+	/**
+	 * Returns the time interval between the start of 2 ticks.
+	 * 
+	 * @return The time interval between the start of 2 ticks, in nanoseconds.
+	 */
+	public long getInterval() {
+		return this.interval;
+	}
+
+	/**
+	 * Returns the amount of ticks that were run since the scheduler was started.
+	 * 
+	 * @return The amount of ticks that were run.
+	 */
+	public long getTickCount() {
+		return this.tickCount;
+	}
+
+	/**
+	 * Returns the amount of ticks that took longer than the tick interval. Every
+	 * overrun delays the following ticks, and the ticks that were missed are
+	 * skipped.
+	 * 
+	 * @return The amount of ticks that took longer than the tick interval.
+	 */
+	public long getOverrunCount() {
+		return this.overrunCount;
+	}
+
+	/**
+	 * Returns the duration of the last tick.
+	 * 
+	 * @return The duration of the last tick, in nanoseconds.
+	 */
+	public long getLastTickDuration() {
+		return this.lastTickDuration;
+	}
+
+	/**
+	 * Returns the average duration of the recent ticks. This is an exponential
+	 * moving average, so it follows the changes of the load of the server.
+	 * 
+	 * @return The average duration of the recent ticks, in nanoseconds.
+	 */
+	public long getAverageTickDuration() {
+		return this.averageTickDuration;
+	}
+
+	/**
+	 * Returns the longest duration of a tick since the scheduler was started.
+	 * 
+	 * @return The longest duration of a tick, in nanoseconds.
+	 */
+	public long getMaxTickDuration() {
+		return this.maxTickDuration;
+	}
+}
@@ -3,7 +3,6 @@ package fr.ankeraout.mcank.io;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
 
 /**
  * This class is an extension of {@link DataOutputStream}. It contains methods
@@ -13,6 +12,14 @@ import java.nio.charset.Charset;
  *
  */
 public class ClassicubeOutputStream extends DataOutputStream {
+	/**
+	 * This is a small buffer used by the
+	 * {@link ClassicubeOutputStream#writeClassicubeString(String)} method. It
+	 * contains the encoded string, so that the method does not allocate a byte
+	 * array every time it is executed.
+	 */
+	private byte[] buffer;
+
 	/**
 	 * Creates a new instance of {@link ClassicubeOutputStream} with the given
 	 * output stream.
@@ -22,6 +29,8 @@ public class ClassicubeOutputStream extends DataOutputStream {
 	 */
 	public ClassicubeOutputStream(OutputStream outputStream) {
 		super(outputStream);
+
+		this.buffer = new byte[ClassicubeString.LENGTH];
 	}
 
 	/**
@@ -36,13 +45,19 @@ public class ClassicubeOutputStream extends DataOutputStream {
 	 *                     stream.
 	 */
 	public void writeClassicubeString(String string) throws IOException {
-		byte[] data = string.getBytes(Charset.forName("US-ASCII"));
-		
-		this.write(data, 0, Math.min(data.length, 64));
-		
-		for(int i = data.length; i < 64; i++) {
-			this.writeByte(' ');
-		}
+		ClassicubeString.encode(string, this.buffer, 0);
+		this.write(this.buffer, 0, ClassicubeString.LENGTH);
 	}
 
+	/**
+	 * Writes an already encoded Classicube string to the underlying output
+	 * stream.
+	 * 
+	 * @param string The encoded string.
+	 * @throws IOException if an exception occurs while writing data to the
+	 *                     stream.
+	 */
+	public void writeClassicubeString(ClassicubeString string) throws IOException {
+		string.writeTo(this);
+	}
 }
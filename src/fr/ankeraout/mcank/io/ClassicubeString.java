@@ -0,0 +1,108 @@
+package fr.ankeraout.mcank.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class is a string encoded as a Classicube string: 64 US-ASCII
+ * characters, padded with space characters. The string is encoded once when the
+ * object is created, so it can be written to any amount of packets without
+ * being encoded again. Objects of this class are immutable.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class ClassicubeString {
+	/**
+	 * The length of a Classicube string in bytes.
+	 */
+	public static final int LENGTH = 64;
+
+	/**
+	 * The character that replaces the characters that cannot be encoded in
+	 * US-ASCII.
+	 */
+	private static final byte REPLACEMENT_CHARACTER = '?';
+
+	/**
+	 * The string, as it was given to the constructor.
+	 */
+	private String string;
+
+	/**
+	 * The encoded string.
+	 */
+	private byte[] data;
+
+	/**
+	 * Creates a new {@link ClassicubeString} from the given string. If the length
+	 * of the string exceeds 64, then it is truncated.
+	 * 
+	 * @param string The string to encode.
+	 */
+	public ClassicubeString(String string) {
+		this.string = string;
+		this.data = new byte[ClassicubeString.LENGTH];
+
+		ClassicubeString.encode(string, this.data, 0);
+	}
+
+	/**
+	 * Encodes the given string as a Classicube string in the given array, without
+	 * allocating any object.
+	 * 
+	 * @param string      The string to encode.
+	 * @param destination The array that receives the encoded string.
+	 * @param offset      The offset of the encoded string in the array.
+	 */
+	public static void encode(String string, byte[] destination, int offset) {
+		int length = Math.min(string.length(), ClassicubeString.LENGTH);
+
+		for (int i = 0; i < length; i++) {
+			char c = string.charAt(i);
+			destination[offset + i] = c < 0x80 ? (byte) c : ClassicubeString.REPLACEMENT_CHARACTER;
+		}
+
+		for (int i = length; i < ClassicubeString.LENGTH; i++) {
+			destination[offset + i] = ' ';
+		}
+	}
+
+	/**
+	 * Decodes the Classicube string at the given offset of the given array, and
+	 * removes its padding.
+	 * 
+	 * @param source The array that contains the encoded string.
+	 * @param offset The offset of the encoded string in the array.
+	 * @return The decoded string.
+	 */
+	public static String decode(byte[] source, int offset) {
+		return new String(source, offset, ClassicubeString.LENGTH, StandardCharsets.US_ASCII).trim();
+	}
+
+	/**
+	 * Writes the encoded string to the given buffer.
+	 * 
+	 * @param buffer The buffer where the encoded string is written.
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		buffer.put(this.data);
+	}
+
+	/**
+	 * Writes the encoded string to the given stream.
+	 * 
+	 * @param outputStream The stream where the encoded string is written.
+	 * @throws IOException If an I/O error occurs while writing to the stream.
+	 */
+	public void writeTo(OutputStream outputStream) throws IOException {
+		outputStream.write(this.data);
+	}
+
+	@Override
+	public String toString() {
+		return this.string;
+	}
+}
@@ -0,0 +1,154 @@
+package fr.ankeraout.mcank.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import fr.ankeraout.mcank.PacketID;
+import fr.ankeraout.mcank.net.Connection;
+import fr.ankeraout.mcank.net.PacketCodec;
+import fr.ankeraout.mcank.net.TokenBucket;
+
+/**
+ * This class is an {@link OutputStream} that sends the compressed level data
+ * written to it as LEVEL_DATA_CHUNK packets. Every time 1024 bytes are written,
+ * a packet is sent, so the compressed level data never needs to be stored
+ * entirely in memory. The last packet is sent when the stream is closed.
+ * 
+ * The packets are sent at the rate allowed by a {@link TokenBucket}. The other
+ * packets of the player have the priority: the packets of level data are sent
+ * with a low priority (see
+ * {@link Connection#sendLowPriorityPacket(java.nio.ByteBuffer)}), and only when
+ * the outgoing data queue of the connection is less than half full, so that a
+ * player who does not read the level data fast enough slows the download down
+ * instead of filling its queue. Closing the stream waits until the level data
+ * can no longer be overtaken, so the packets sent afterwards follow it.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class LevelDataChunkOutputStream extends OutputStream {
+	/**
+	 * The size of the data in a LEVEL_DATA_CHUNK packet.
+	 */
+	private static final int CHUNK_SIZE = 1024;
+
+	/**
+	 * The connection where the packets are sent.
+	 */
+	private Connection connection;
+
+	/**
+	 * The token bucket that limits the rate of the packets.
+	 */
+	private TokenBucket bucket;
+
+	/**
+	 * The progress (between 0 and 100) sent in the next packet.
+	 */
+	private int progress;
+
+	/**
+	 * The data of the packet being filled.
+	 */
+	private byte[] chunk;
+
+	/**
+	 * The amount of bytes in the packet being filled.
+	 */
+	private int chunkLength;
+
+	/**
+	 * Tells whether the stream is closed.
+	 */
+	private boolean closed;
+
+	/**
+	 * Creates a new {@link LevelDataChunkOutputStream}.
+	 * 
+	 * @param connection The connection where the packets are sent.
+	 * @param bucket     The token bucket that limits the rate of the packets.
+	 */
+	public LevelDataChunkOutputStream(Connection connection, TokenBucket bucket) {
+		this.connection = connection;
+		this.bucket = bucket;
+		this.progress = 0;
+		this.chunk = new byte[LevelDataChunkOutputStream.CHUNK_SIZE];
+		this.chunkLength = 0;
+		this.closed = false;
+	}
+
+	/**
+	 * Sets the progress sent in the next packets. It should be computed from the
+	 * amount of level data that was given to the compressor.
+	 * 
+	 * @param progress The progress, between 0 and 100.
+	 */
+	public void setProgress(int progress) {
+		this.progress = Math.max(0, Math.min(100, progress));
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.chunk[this.chunkLength++] = (byte) b;
+
+		if (this.chunkLength == LevelDataChunkOutputStream.CHUNK_SIZE) {
+			this.sendChunk();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int length = Math.min(len, LevelDataChunkOutputStream.CHUNK_SIZE - this.chunkLength);
+			System.arraycopy(b, off, this.chunk, this.chunkLength, length);
+			this.chunkLength += length;
+			off += length;
+			len -= length;
+
+			if (this.chunkLength == LevelDataChunkOutputStream.CHUNK_SIZE) {
+				this.sendChunk();
+			}
+		}
+	}
+
+	/**
+	 * Sends the last packet, if it contains data, and waits until the level data
+	 * can no longer be overtaken by the other packets. This does not close the
+	 * underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+
+		this.closed = true;
+
+		if (this.chunkLength != 0) {
+			this.sendChunk();
+		}
+
+		this.connection.awaitLowPriorityPackets();
+	}
+
+	/**
+	 * Sends the packet being filled, padded with zeros, and starts a new one.
+	 * 
+	 * @throws IOException If an I/O error occurs while sending the packet.
+	 */
+	private void sendChunk() throws IOException {
+		try {
+			this.bucket.acquire(PacketID.LEVEL_DATA_CHUNK.getLength());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send the level data.");
+		}
+
+		this.connection.awaitOutboundSpace();
+		this.connection.sendLowPriorityPacket(
+				PacketCodec.levelDataChunk(this.chunk, 0, this.chunkLength, this.progress));
+
+		this.chunkLength = 0;
+	}
+}
@@ -0,0 +1,94 @@
+package fr.ankeraout.mcank.math;
+
+/**
+ * This class represents the orientation (yaw, pitch) of an entity in a
+ * {@link World}, in the format of the network protocol: every angle is a
+ * <code>byte</code> in 1/256 of turn. Unlike {@link Orientation}, the values
+ * received from and sent to the clients do not need any conversion, and the
+ * object is modified in place.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class FixedOrientation {
+	/**
+	 * The yaw orientation value, in 1/256 of turn.
+	 */
+	private byte yaw;
+
+	/**
+	 * The pitch orientation value, in 1/256 of turn.
+	 */
+	private byte pitch;
+
+	/**
+	 * Initializes a new instance of the {@link FixedOrientation} class with the
+	 * yaw and pitch values set to 0.
+	 */
+	public FixedOrientation() {
+		this(0, 0);
+	}
+
+	/**
+	 * Initializes a new instance of the {@link FixedOrientation} class with the
+	 * yaw and pitch values set to the given values.
+	 * 
+	 * @param yaw   The yaw value of the orientation, in 1/256 of turn.
+	 * @param pitch The pitch value of the orientation, in 1/256 of turn.
+	 */
+	public FixedOrientation(int yaw, int pitch) {
+		this.set(yaw, pitch);
+	}
+
+	/**
+	 * Returns the value of the yaw component of the orientation.
+	 * 
+	 * @return The value of the yaw component, in 1/256 of turn.
+	 */
+	public byte getYaw() {
+		return this.yaw;
+	}
+
+	/**
+	 * Returns the value of the pitch component of the orientation.
+	 * 
+	 * @return The value of the pitch component, in 1/256 of turn.
+	 */
+	public byte getPitch() {
+		return this.pitch;
+	}
+
+	/**
+	 * Sets the orientation to the given values. The values are truncated to 8
+	 * bits, as in the packets, so the angles are always between 0 and 1 turn.
+	 * 
+	 * @param yaw   The yaw value of the orientation, in 1/256 of turn.
+	 * @param pitch The pitch value of the orientation, in 1/256 of turn.
+	 */
+	public void set(int yaw, int pitch) {
+		this.yaw = (byte) yaw;
+		this.pitch = (byte) pitch;
+	}
+
+	/**
+	 * Sets the orientation to the values of the given orientation.
+	 * 
+	 * @param orientation The orientation to copy.
+	 */
+	public void set(FixedOrientation orientation) {
+		this.yaw = orientation.yaw;
+		this.pitch = orientation.pitch;
+	}
+
+	/**
+	 * Sets the orientation to the given values in degrees. This requires a
+	 * conversion, so it should only be used for the orientations that do not
+	 * come from the network, like the spawn orientation of a world.
+	 * 
+	 * @param yaw   The yaw value of the orientation, in degrees.
+	 * @param pitch The pitch value of the orientation, in degrees.
+	 */
+	public void setDegrees(double yaw, double pitch) {
+		this.set((int) (yaw * 256 / 360), (int) (pitch * 256 / 360));
+	}
+}
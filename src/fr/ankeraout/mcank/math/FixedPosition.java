@@ -0,0 +1,206 @@
+package fr.ankeraout.mcank.math;
+
+/**
+ * This class represents a position in a {@link World}, in the fixed-point
+ * format of the network protocol: every coordinate is a <code>short</code> in
+ * 1/32 of block. Unlike {@link Position}, the values received from and sent to
+ * the clients do not need any conversion, and all the operations modify the
+ * object in place, so the positions of the players can be updated for every
+ * packet without creating any object.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class FixedPosition {
+	/**
+	 * The amount of units in a block.
+	 */
+	public static final int UNITS_PER_BLOCK = 32;
+
+	/**
+	 * The position on the X axis, in 1/32 of block.
+	 */
+	private short x;
+
+	/**
+	 * The position on the Y axis, in 1/32 of block.
+	 */
+	private short y;
+
+	/**
+	 * The position on the Z axis, in 1/32 of block.
+	 */
+	private short z;
+
+	/**
+	 * Creates a new instance of the {@link FixedPosition} class, with coordinates
+	 * set to (0, 0, 0).
+	 */
+	public FixedPosition() {
+		this(0, 0, 0);
+	}
+
+	/**
+	 * Creates a new instance of the {@link FixedPosition} class, with the given
+	 * coordinates.
+	 * 
+	 * @param x The position on the X axis, in 1/32 of block.
+	 * @param y The position on the Y axis, in 1/32 of block.
+	 * @param z The position on the Z axis, in 1/32 of block.
+	 */
+	public FixedPosition(int x, int y, int z) {
+		this.set(x, y, z);
+	}
+
+	/**
+	 * Returns the position on the X axis.
+	 * 
+	 * @return The position on the X axis, in 1/32 of block.
+	 */
+	public short getX() {
+		return this.x;
+	}
+
+	/**
+	 * Returns the position on the Y axis.
+	 * 
+	 * @return The position on the Y axis, in 1/32 of block.
+	 */
+	public short getY() {
+		return this.y;
+	}
+
+	/**
+	 * Returns the position on the Z axis.
+	 * 
+	 * @return The position on the Z axis, in 1/32 of block.
+	 */
+	public short getZ() {
+		return this.z;
+	}
+
+	/**
+	 * Returns the X coordinate of the block that contains this position.
+	 * 
+	 * @return The X coordinate of the block that contains this position.
+	 */
+	public int getBlockX() {
+		return this.x >> 5;
+	}
+
+	/**
+	 * Returns the Y coordinate of the block that contains this position.
+	 * 
+	 * @return The Y coordinate of the block that contains this position.
+	 */
+	public int getBlockY() {
+		return this.y >> 5;
+	}
+
+	/**
+	 * Returns the Z coordinate of the block that contains this position.
+	 * 
+	 * @return The Z coordinate of the block that contains this position.
+	 */
+	public int getBlockZ() {
+		return this.z >> 5;
+	}
+
+	/**
+	 * Sets the position to the given coordinates. The coordinates are truncated to
+	 * 16 bits, as in the packets.
+	 * 
+	 * @param x The position on the X axis, in 1/32 of block.
+	 * @param y The position on the Y axis, in 1/32 of block.
+	 * @param z The position on the Z axis, in 1/32 of block.
+	 */
+	public void set(int x, int y, int z) {
+		this.x = (short) x;
+		this.y = (short) y;
+		this.z = (short) z;
+	}
+
+	/**
+	 * Sets the position to the coordinates of the given position.
+	 * 
+	 * @param position The position to copy.
+	 */
+	public void set(FixedPosition position) {
+		this.x = position.x;
+		this.y = position.y;
+		this.z = position.z;
+	}
+
+	/**
+	 * Sets the position to the given coordinates in blocks. This requires a
+	 * conversion, so it should only be used for the positions that do not come
+	 * from the network, like the spawn point of a world.
+	 * 
+	 * @param x The position on the X axis, in blocks.
+	 * @param y The position on the Y axis, in blocks.
+	 * @param z The position on the Z axis, in blocks.
+	 */
+	public void setBlockCoordinates(double x, double y, double z) {
+		this.set((int) (x * FixedPosition.UNITS_PER_BLOCK), (int) (y * FixedPosition.UNITS_PER_BLOCK),
+				(int) (z * FixedPosition.UNITS_PER_BLOCK));
+	}
+
+	/**
+	 * Moves this position by the given amounts.
+	 * 
+	 * @param dx The move on the X axis, in 1/32 of block.
+	 * @param dy The move on the Y axis, in 1/32 of block.
+	 * @param dz The move on the Z axis, in 1/32 of block.
+	 */
+	public void add(int dx, int dy, int dz) {
+		this.set(this.x + dx, this.y + dy, this.z + dz);
+	}
+
+	/**
+	 * Adds the given position to this position. The given position is not
+	 * modified.
+	 * 
+	 * @param vector The position to add to this position.
+	 */
+	public void add(FixedPosition vector) {
+		this.add(vector.x, vector.y, vector.z);
+	}
+
+	/**
+	 * Subtracts the given position from this position. The given position is not
+	 * modified.
+	 * 
+	 * @param vector The position to subtract from this position.
+	 */
+	public void subtract(FixedPosition vector) {
+		this.add(-vector.x, -vector.y, -vector.z);
+	}
+
+	/**
+	 * Computes the square of the distance between this position and the given
+	 * coordinates. Comparing squared distances does not require any square root.
+	 * 
+	 * @param x The position on the X axis, in 1/32 of block.
+	 * @param y The position on the Y axis, in 1/32 of block.
+	 * @param z The position on the Z axis, in 1/32 of block.
+	 * @return The square of the distance, in 1/1024 of square block.
+	 */
+	public long squaredDistance(int x, int y, int z) {
+		long dx = this.x - x;
+		long dy = this.y - y;
+		long dz = this.z - z;
+
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Computes the square of the distance between this position and the given
+	 * position. None of the positions are modified.
+	 * 
+	 * @param vector The position to which the distance will be calculated.
+	 * @return The square of the distance, in 1/1024 of square block.
+	 */
+	public long squaredDistance(FixedPosition vector) {
+		return this.squaredDistance(vector.x, vector.y, vector.z);
+	}
+}
@@ -0,0 +1,122 @@
+package fr.ankeraout.mcank.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class splits the raw byte stream received from a client into complete
+ * packets. Every packet that a ClassiCube client can send has a fixed length
+ * which only depends on its packet ID, so the decoder only needs to look at the
+ * first byte of a packet to know how many bytes it has to wait for. The decoder
+ * keeps the partially received packet between two calls, which allows it to be
+ * fed with whatever amount of data the socket returned.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class ClientPacketDecoder {
+	/**
+	 * The length of the client packets (packet ID included), indexed by packet ID.
+	 * A value of -1 means that the packet ID is unknown.
+	 */
+	private static final int[] PACKET_LENGTHS = new int[256];
+
+	/**
+	 * The length of the longest client packet (packet ID included).
+	 */
+	public static final int MAX_PACKET_LENGTH = 131;
+
+	static {
+		Arrays.fill(ClientPacketDecoder.PACKET_LENGTHS, -1);
+		ClientPacketDecoder.PACKET_LENGTHS[0x00] = 131;
+		ClientPacketDecoder.PACKET_LENGTHS[0x05] = 9;
+		ClientPacketDecoder.PACKET_LENGTHS[0x08] = 10;
+		ClientPacketDecoder.PACKET_LENGTHS[0x0d] = 66;
+	}
+
+	/**
+	 * The buffer that contains the packet being received. It is reused for every
+	 * packet, which means that the handler must not keep a reference to it.
+	 */
+	private byte[] packet;
+
+	/**
+	 * The amount of bytes of the current packet that were already received.
+	 */
+	private int packetOffset;
+
+	/**
+	 * The total length of the current packet, or 0 if the ID of the current packet
+	 * was not received yet.
+	 */
+	private int packetLength;
+
+	/**
+	 * This value is <code>true</code> if an unknown packet ID was received. The
+	 * stream cannot be split into packets anymore after that, so the remaining
+	 * data is ignored.
+	 */
+	private boolean desynchronized;
+
+	/**
+	 * Creates a new {@link ClientPacketDecoder}.
+	 */
+	public ClientPacketDecoder() {
+		this.packet = new byte[ClientPacketDecoder.MAX_PACKET_LENGTH];
+		this.packetOffset = 0;
+		this.packetLength = 0;
+		this.desynchronized = false;
+	}
+
+	/**
+	 * Returns the length of the client packet with the given ID, packet ID
+	 * included.
+	 * 
+	 * @param packetId The ID of the packet.
+	 * @return The length of the packet, or -1 if the packet ID is unknown.
+	 */
+	public static int getPacketLength(int packetId) {
+		return ClientPacketDecoder.PACKET_LENGTHS[packetId & 0xff];
+	}
+
+	/**
+	 * Reads all the remaining bytes of the given buffer, and calls the given
+	 * handler for every complete packet. If an unknown packet ID is received, the
+	 * handler is called with a packet of length 1 that only contains the packet ID,
+	 * and all the following data is ignored.
+	 * 
+	 * @param input   The buffer that contains the received data.
+	 * @param handler The handler that will receive the decoded packets.
+	 * @throws IOException If the handler throws an {@link IOException}.
+	 */
+	public void decode(ByteBuffer input, PacketHandler handler) throws IOException {
+		while (input.hasRemaining() && !this.desynchronized) {
+			if (this.packetLength == 0) {
+				int packetId = input.get() & 0xff;
+
+				this.packet[0] = (byte) packetId;
+				this.packetOffset = 1;
+				this.packetLength = ClientPacketDecoder.getPacketLength(packetId);
+
+				if (this.packetLength == -1) {
+					this.desynchronized = true;
+					this.packetLength = 0;
+					handler.handlePacket(this.packet, 1);
+					return;
+				}
+			}
+
+			int count = Math.min(input.remaining(), this.packetLength - this.packetOffset);
+			input.get(this.packet, this.packetOffset, count);
+			this.packetOffset += count;
+
+			if (this.packetOffset == this.packetLength) {
+				int length = this.packetLength;
+				this.packetLength = 0;
+				this.packetOffset = 0;
+				handler.handlePacket(this.packet, length);
+			}
+		}
+	}
+}
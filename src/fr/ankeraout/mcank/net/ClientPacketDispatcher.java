@@ -0,0 +1,126 @@
+package fr.ankeraout.mcank.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * This class decodes the fields of the packets sent by the clients and passes
+ * them to a {@link ClientPacketListener}. The decoding is table-driven: the
+ * length of a packet (see {@link ClientPacketDecoder#getPacketLength(int)}) and
+ * its field decoder are looked up in arrays indexed by packet ID, and the
+ * fields are read directly from the packet buffer, so decoding a packet does
+ * not allocate any object.
+ * 
+ * @author Ankeraout
+ *
+ */
+public final class ClientPacketDispatcher {
+	/**
+	 * The field decoders of the client packets, indexed by packet ID. A value of
+	 * <code>null</code> means that the packet ID is unknown.
+	 */
+	private static final FieldDecoder[] FIELD_DECODERS = new FieldDecoder[256];
+
+	static {
+		ClientPacketDispatcher.FIELD_DECODERS[0x00] = (packet, listener) -> listener
+				.handlePlayerIdentification(packet[1] & 0xff, packet, 2, 66, packet[130] & 0xff);
+		ClientPacketDispatcher.FIELD_DECODERS[0x05] = (packet, listener) -> listener.handleSetBlock(
+				ClientPacketDispatcher.getShort(packet, 1), ClientPacketDispatcher.getShort(packet, 3),
+				ClientPacketDispatcher.getShort(packet, 5), packet[7] & 0xff, packet[8] & 0xff);
+		ClientPacketDispatcher.FIELD_DECODERS[0x08] = (packet, listener) -> listener.handlePositionOrientation(
+				packet[1] & 0xff, ClientPacketDispatcher.getShort(packet, 2), ClientPacketDispatcher.getShort(packet, 4),
+				ClientPacketDispatcher.getShort(packet, 6), packet[8] & 0xff, packet[9] & 0xff);
+		ClientPacketDispatcher.FIELD_DECODERS[0x0d] = (packet, listener) -> listener.handleMessage(packet[1] & 0xff,
+				packet, 2);
+	}
+
+	/**
+	 * The only constructor of this class is private because this class cannot be
+	 * instantiated.
+	 */
+	private ClientPacketDispatcher() {
+		// This will never be called
+	}
+
+	/**
+	 * Reads a signed big-endian 16-bit value from the given packet.
+	 * 
+	 * @param packet The buffer that contains the packet.
+	 * @param offset The offset of the value in the buffer.
+	 * @return The value.
+	 */
+	private static int getShort(byte[] packet, int offset) {
+		return (short) (((packet[offset] & 0xff) << 8) | (packet[offset + 1] & 0xff));
+	}
+
+	/**
+	 * Reads a complete packet from the given stream into the given buffer, with a
+	 * single read after the packet ID, and passes its fields to the given
+	 * listener.
+	 * 
+	 * @param inputStream The stream from which the packet is read.
+	 * @param packet      The buffer that receives the packet. It must be at least
+	 *                    {@link ClientPacketDecoder#MAX_PACKET_LENGTH} bytes long,
+	 *                    and it should be reused for every packet of the
+	 *                    connection.
+	 * @param listener    The listener that receives the fields of the packet.
+	 * @return <code>true</code> if the packet was decoded, <code>false</code> if
+	 *         its ID is unknown. In this case, the stream cannot be split into
+	 *         packets anymore.
+	 * @throws IOException If an I/O error occurs while reading the packet, or if
+	 *                     the listener throws an {@link IOException}.
+	 */
+	public static boolean readPacket(DataInputStream inputStream, byte[] packet, ClientPacketListener listener)
+			throws IOException {
+		int packetId = inputStream.readUnsignedByte();
+		int length = ClientPacketDecoder.getPacketLength(packetId);
+
+		packet[0] = (byte) packetId;
+
+		if (length > 1) {
+			inputStream.readFully(packet, 1, length - 1);
+		}
+
+		return ClientPacketDispatcher.dispatch(packet, listener);
+	}
+
+	/**
+	 * Passes the fields of the given complete packet to the given listener.
+	 * 
+	 * @param packet   The buffer that contains the packet, packet ID included.
+	 * @param listener The listener that receives the fields of the packet.
+	 * @return <code>true</code> if the packet was decoded, <code>false</code> if
+	 *         its ID is unknown.
+	 * @throws IOException If the listener throws an {@link IOException}.
+	 */
+	public static boolean dispatch(byte[] packet, ClientPacketListener listener) throws IOException {
+		int packetId = packet[0] & 0xff;
+		FieldDecoder decoder = ClientPacketDispatcher.FIELD_DECODERS[packetId];
+
+		if (decoder == null) {
+			listener.handleUnknownPacket(packetId);
+			return false;
+		}
+
+		decoder.decode(packet, listener);
+		return true;
+	}
+
+	/**
+	 * This interface is implemented by the field decoders of the packets.
+	 * 
+	 * @author Ankeraout
+	 *
+	 */
+	private interface FieldDecoder {
+		/**
+		 * Decodes the fields of the given packet and passes them to the given
+		 * listener.
+		 * 
+		 * @param packet   The buffer that contains the packet.
+		 * @param listener The listener that receives the fields of the packet.
+		 * @throws IOException If the listener throws an {@link IOException}.
+		 */
+		public void decode(byte[] packet, ClientPacketListener listener) throws IOException;
+	}
+}
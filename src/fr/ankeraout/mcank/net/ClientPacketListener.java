@@ -0,0 +1,78 @@
+package fr.ankeraout.mcank.net;
+
+import java.io.IOException;
+
+/**
+ * This interface must be implemented by the objects that receive the fields of
+ * the packets decoded by the {@link ClientPacketDispatcher}. The fields are
+ * passed as primitive values, so that decoding a packet does not allocate any
+ * object. The string fields are not decoded: the packet buffer is passed with
+ * the offset of the 64 bytes of the string (see
+ * {@link fr.ankeraout.mcank.io.ClassicubeString#decode(byte[], int)}). The
+ * packet buffer is reused, so its content is only valid until the method
+ * returns.
+ * 
+ * @author Ankeraout
+ *
+ */
+public interface ClientPacketListener {
+	/**
+	 * This method is called when a PLAYER_IDENTIFICATION packet was received.
+	 * 
+	 * @param protocolVersion The version of the protocol of the client.
+	 * @param packet          The buffer that contains the packet.
+	 * @param nameOffset      The offset of the name of the player in the buffer.
+	 * @param keyOffset       The offset of the verification key in the buffer.
+	 * @param clientType      The type of the client (0x42 if the client supports
+	 *                        CPE).
+	 * @throws IOException If an I/O error occurs while handling the packet.
+	 */
+	public void handlePlayerIdentification(int protocolVersion, byte[] packet, int nameOffset, int keyOffset,
+			int clientType) throws IOException;
+
+	/**
+	 * This method is called when a CLIENT_SET_BLOCK packet was received.
+	 * 
+	 * @param x       The X coordinate of the block.
+	 * @param y       The Y coordinate of the block.
+	 * @param z       The Z coordinate of the block.
+	 * @param mode    1 if the block was placed, 0 if it was destroyed.
+	 * @param blockId The ID of the block held by the player.
+	 * @throws IOException If an I/O error occurs while handling the packet.
+	 */
+	public void handleSetBlock(int x, int y, int z, int mode, int blockId) throws IOException;
+
+	/**
+	 * This method is called when a POSITION_ORIENTATION_ABSOLUTE packet was
+	 * received. The coordinates are in 1/32 of block and the angles in 1/256 of
+	 * turn.
+	 * 
+	 * @param playerId The ID of the player (always 255 for the player itself).
+	 * @param x        The X coordinate of the player.
+	 * @param y        The Y coordinate of the player.
+	 * @param z        The Z coordinate of the player.
+	 * @param yaw      The yaw of the player.
+	 * @param pitch    The pitch of the player.
+	 * @throws IOException If an I/O error occurs while handling the packet.
+	 */
+	public void handlePositionOrientation(int playerId, int x, int y, int z, int yaw, int pitch) throws IOException;
+
+	/**
+	 * This method is called when a MESSAGE packet was received.
+	 * 
+	 * @param playerId      The ID of the player (unused by the clients).
+	 * @param packet        The buffer that contains the packet.
+	 * @param messageOffset The offset of the message in the buffer.
+	 * @throws IOException If an I/O error occurs while handling the packet.
+	 */
+	public void handleMessage(int playerId, byte[] packet, int messageOffset) throws IOException;
+
+	/**
+	 * This method is called when a packet with an unknown ID was received. The
+	 * following data cannot be split into packets anymore.
+	 * 
+	 * @param packetId The unknown packet ID.
+	 * @throws IOException If an I/O error occurs while handling the packet.
+	 */
+	public void handleUnknownPacket(int packetId) throws IOException;
+}
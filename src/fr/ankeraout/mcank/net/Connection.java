@@ -0,0 +1,104 @@
+package fr.ankeraout.mcank.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * This interface represents the network connection of a player. It hides the
+ * transport that is actually used (blocking socket or non-blocking channel)
+ * from the {@link fr.ankeraout.mcank.Player} class.
+ * 
+ * @author Ankeraout
+ *
+ */
+public interface Connection {
+	/**
+	 * Returns the address of the remote end of the connection.
+	 * 
+	 * @return The address of the remote end of the connection.
+	 */
+	public SocketAddress getRemoteAddress();
+
+	/**
+	 * Returns the stream that must be used for sending data to the client. The
+	 * data written to this stream is only guaranteed to be sent after calling
+	 * {@link OutputStream#flush()}. Every flush queues the data written since the
+	 * previous flush as a single packet. If the client does not read its data
+	 * fast enough and its queue is full, then the connection is closed and the
+	 * flush throws an {@link IOException}.
+	 * 
+	 * @return The stream that must be used for sending data to the client.
+	 * @throws IOException If the stream could not be retrieved.
+	 */
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Queues the given encoded packet, without copying it. The buffer belongs to
+	 * the connection after calling this method: it must not be modified anymore,
+	 * and it is put back into the pool of the {@link PacketCodec} once it was
+	 * sent, unless it is read-only. The packets queued by this method and by the
+	 * flushes of the stream returned by {@link Connection#getOutputStream()} are
+	 * sent in order. If the client does not read its data fast enough and its
+	 * queue is full, then the connection is closed.
+	 * 
+	 * @param packet The encoded packet, for example returned by
+	 *               {@link PacketCodec}.
+	 * @throws IOException If the connection is closed, or if the queue is full.
+	 */
+	public void sendPacket(ByteBuffer packet) throws IOException;
+
+	/**
+	 * Queues the given encoded packets, without copying them, as with
+	 * {@link Connection#sendPacket(ByteBuffer)}. The packets are queued at once,
+	 * so that they are sent together, with as few writes as possible.
+	 * 
+	 * @param packets The array that contains the encoded packets.
+	 * @param offset  The index of the first packet in the array.
+	 * @param count   The amount of packets.
+	 * @throws IOException If the connection is closed, or if the queue is full.
+	 */
+	public void sendPackets(ByteBuffer[] packets, int offset, int count) throws IOException;
+
+	/**
+	 * Queues the given encoded packet with a low priority, as with
+	 * {@link Connection#sendPacket(ByteBuffer)}. The packet is only written when
+	 * no other packet is waiting, so the packets sent with this method are sent
+	 * in order between themselves, but the other packets may be sent before
+	 * them. This is used for the data that can be delayed, like the map data.
+	 * 
+	 * @param packet The encoded packet.
+	 * @throws IOException If the connection is closed, or if the queue is full.
+	 */
+	public void sendLowPriorityPacket(ByteBuffer packet) throws IOException;
+
+	/**
+	 * Waits until the packets sent with
+	 * {@link Connection#sendLowPriorityPacket(ByteBuffer)} can no longer be
+	 * overtaken, so that the packets sent afterwards are sent after them.
+	 * 
+	 * @throws IOException If the connection is closed, or if the current thread
+	 *                     was interrupted while waiting.
+	 */
+	public void awaitLowPriorityPackets() throws IOException;
+
+	/**
+	 * Waits until the outgoing data queue of the connection is less than half
+	 * full. The threads that send a lot of data that can be delayed (like the map
+	 * data) must call this method before sending it, so that they wait for a slow
+	 * client instead of filling its queue.
+	 * 
+	 * @throws IOException If the connection is closed, or if the current thread
+	 *                     was interrupted while waiting.
+	 */
+	public void awaitOutboundSpace() throws IOException;
+
+	/**
+	 * Closes the connection. The data that was flushed before calling this method
+	 * is still sent to the client.
+	 * 
+	 * @throws IOException If an I/O error occurs while closing the connection.
+	 */
+	public void close() throws IOException;
+}
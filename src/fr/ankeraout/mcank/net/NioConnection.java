@@ -0,0 +1,391 @@
+package fr.ankeraout.mcank.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fr.ankeraout.mcank.ClassicubeServer;
+
+/**
+ * This class is the {@link Connection} implementation for the non-blocking
+ * transport. The connection does not own any thread: its channel is registered
+ * on the selector of a {@link NioEventLoop}, which reads the incoming data,
+ * splits it into packets and writes the pending outgoing data when the channel
+ * is writable. The pending packets are written with a single gathering write
+ * every time the channel is writable.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class NioConnection implements Connection {
+	/**
+	 * The maximum amount of packets written by a single gathering write.
+	 */
+	private static final int MAX_GATHERED_PACKETS = 64;
+
+	/**
+	 * The channel connected to the client.
+	 */
+	private SocketChannel channel;
+
+	/**
+	 * The event loop that is in charge of this connection.
+	 */
+	private NioEventLoop eventLoop;
+
+	/**
+	 * The executor that can be used for running the tasks of this connection that
+	 * must not run on the event loop thread (timeouts, map sending, etc).
+	 */
+	private ScheduledExecutorService executor;
+
+	/**
+	 * The selection key of the channel. This is <code>null</code> until the
+	 * channel is registered on the selector of the event loop.
+	 */
+	private SelectionKey key;
+
+	/**
+	 * The decoder that splits the incoming data into packets.
+	 */
+	private ClientPacketDecoder decoder;
+
+	/**
+	 * The object that will receive the incoming packets.
+	 */
+	private PacketHandler handler;
+
+	/**
+	 * The packets waiting to be written to the channel, in order.
+	 */
+	private OutboundPacketQueue outboundQueue;
+
+	/**
+	 * The array that receives the packets written by a gathering write. It is
+	 * only used by the event loop thread.
+	 */
+	private ByteBuffer[] gatheredPackets;
+
+	/**
+	 * This value is <code>true</code> if the connection is already waiting for
+	 * the event loop to write its pending data.
+	 */
+	private AtomicBoolean writeScheduled;
+
+	/**
+	 * This value is <code>true</code> once {@link NioConnection#close()} was
+	 * called. The channel is closed as soon as the pending data was written.
+	 */
+	private volatile boolean closeRequested;
+
+	/**
+	 * This value is <code>true</code> once the channel was closed.
+	 */
+	private AtomicBoolean closed;
+
+	/**
+	 * The stream returned by {@link NioConnection#getOutputStream()}.
+	 */
+	private PacketOutputStream outputStream;
+
+	/**
+	 * The address of the client. It is kept because the channel does not return it
+	 * anymore once it is closed.
+	 */
+	private SocketAddress remoteAddress;
+
+	/**
+	 * Creates a new {@link NioConnection}. The connection is not registered on the
+	 * event loop until {@link NioEventLoop#register(NioConnection)} is called, so
+	 * that the packet handler can be set before any data is received.
+	 * 
+	 * @param channel   The channel connected to the client. It must be in
+	 *                  non-blocking mode.
+	 * @param eventLoop The event loop that will be in charge of this connection.
+	 * @param executor  The executor for the tasks of this connection.
+	 * @param queueSize The maximum amount of bytes waiting to be sent to the
+	 *                  client. The connection is closed if the client does not
+	 *                  read its data fast enough and this amount is exceeded.
+	 * @throws IOException If the address of the client could not be retrieved.
+	 */
+	NioConnection(SocketChannel channel, NioEventLoop eventLoop, ScheduledExecutorService executor, long queueSize)
+			throws IOException {
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.executor = executor;
+		this.decoder = new ClientPacketDecoder();
+		this.outboundQueue = new OutboundPacketQueue(queueSize);
+		this.gatheredPackets = new ByteBuffer[NioConnection.MAX_GATHERED_PACKETS];
+		this.writeScheduled = new AtomicBoolean(false);
+		this.closeRequested = false;
+		this.closed = new AtomicBoolean(false);
+		this.outputStream = new NioConnectionOutputStream();
+		this.remoteAddress = channel.getRemoteAddress();
+	}
+
+	/**
+	 * Sets the object that will receive the incoming packets of this connection.
+	 * 
+	 * @param handler The object that will receive the incoming packets.
+	 */
+	public void setPacketHandler(PacketHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Returns the executor that must be used for running the tasks of this
+	 * connection that may block or take a long time.
+	 * 
+	 * @return The executor of this connection.
+	 */
+	public ScheduledExecutorService getExecutor() {
+		return this.executor;
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return this.remoteAddress;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return this.outputStream;
+	}
+
+	@Override
+	public void sendPacket(ByteBuffer packet) throws IOException {
+		this.enqueue(packet);
+	}
+
+	@Override
+	public void sendPackets(ByteBuffer[] packets, int offset, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			this.offer(packets[offset + i]);
+		}
+
+		// The event loop is only woken up once, so all the packets are written
+		// together
+		this.scheduleWrite();
+	}
+
+	@Override
+	public void sendLowPriorityPacket(ByteBuffer packet) throws IOException {
+		if (this.closed.get()) {
+			throw new IOException("The connection is closed.");
+		}
+
+		if (!this.outboundQueue.offerLowPriority(packet)) {
+			this.handleQueueOverflow();
+		}
+
+		this.scheduleWrite();
+	}
+
+	@Override
+	public void awaitLowPriorityPackets() throws IOException {
+		this.outboundQueue.awaitLowPriorityPackets();
+	}
+
+	@Override
+	public void awaitOutboundSpace() throws IOException {
+		this.outboundQueue.awaitSpace();
+	}
+
+	@Override
+	public void close() {
+		this.closeRequested = true;
+		this.scheduleWrite();
+	}
+
+	/**
+	 * Adds the given packet to the outgoing data queue and asks the event loop to
+	 * write it. If the queue is full, the client is considered too slow and the
+	 * connection is closed.
+	 * 
+	 * @param packet The packet to send.
+	 * @throws IOException If the connection is closed, or if the queue is full.
+	 */
+	void enqueue(ByteBuffer packet) throws IOException {
+		this.offer(packet);
+		this.scheduleWrite();
+	}
+
+	/**
+	 * Adds the given packet to the outgoing data queue, without asking the event
+	 * loop to write it. If the queue is full, the client is considered too slow
+	 * and the connection is closed.
+	 * 
+	 * @param packet The packet to send.
+	 * @throws IOException If the connection is closed, or if the queue is full.
+	 */
+	private void offer(ByteBuffer packet) throws IOException {
+		if (this.closed.get()) {
+			throw new IOException("The connection is closed.");
+		}
+
+		if (!this.outboundQueue.offer(packet)) {
+			this.handleQueueOverflow();
+		}
+	}
+
+	/**
+	 * Closes the connection because a packet does not fit in the outgoing data
+	 * queue.
+	 * 
+	 * @throws IOException Always, to tell the sender that the packet was not
+	 *                     queued.
+	 */
+	private void handleQueueOverflow() throws IOException {
+		Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.WARNING, "Closing the connection of "
+				+ this.remoteAddress + " because it does not read its data fast enough.");
+		this.closeNow();
+		throw new IOException("The outgoing data queue of the connection is full.");
+	}
+
+	/**
+	 * Asks the event loop to write the pending data of this connection, unless it
+	 * was already asked to.
+	 */
+	private void scheduleWrite() {
+		if (this.writeScheduled.compareAndSet(false, true)) {
+			this.eventLoop.requestWrite(this);
+		}
+	}
+
+	/**
+	 * Registers the channel of this connection on the given selector. This method
+	 * must be called from the event loop thread.
+	 * 
+	 * @param selector The selector of the event loop.
+	 * @throws IOException If the channel could not be registered.
+	 */
+	void register(Selector selector) throws IOException {
+		this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+
+		// Write the data that was queued before the channel was registered
+		if (!this.outboundQueue.isEmpty() || this.closeRequested) {
+			this.handleWrite();
+		}
+	}
+
+	/**
+	 * Reads the available data from the channel and passes the decoded packets to
+	 * the packet handler. This method must be called from the event loop thread.
+	 * 
+	 * @param readBuffer The buffer of the event loop used for reading.
+	 * @throws IOException If the channel was closed by the client or if an I/O
+	 *                     error occurs.
+	 */
+	void handleRead(ByteBuffer readBuffer) throws IOException {
+		readBuffer.clear();
+
+		if (this.channel.read(readBuffer) == -1) {
+			throw new IOException("The connection was closed by the client.");
+		}
+
+		readBuffer.flip();
+
+		// Ignore the data received after the server decided to close the connection
+		if (!this.closeRequested) {
+			this.decoder.decode(readBuffer, this.handler);
+		}
+	}
+
+	/**
+	 * Writes as much pending data as possible to the channel. If some data could
+	 * not be written, then the channel is registered for write readiness. This
+	 * method must be called from the event loop thread.
+	 * 
+	 * @throws IOException If an I/O error occurs while writing.
+	 */
+	void handleWrite() throws IOException {
+		this.writeScheduled.set(false);
+
+		if (this.key == null || !this.key.isValid()) {
+			return;
+		}
+
+		int count;
+
+		while ((count = this.outboundQueue.peekAll(this.gatheredPackets)) != 0) {
+			long written = this.channel.write(this.gatheredPackets, 0, count);
+			int sent = 0;
+
+			while (sent < count && !this.gatheredPackets[sent].hasRemaining()) {
+				PacketBufferPool.release(this.gatheredPackets[sent]);
+				sent++;
+			}
+
+			this.outboundQueue.remove(sent, written);
+			Arrays.fill(this.gatheredPackets, 0, count, null);
+
+			if (sent < count) {
+				// The socket send buffer is full, wait for the channel to be writable
+				this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+
+		this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+
+		if (this.closeRequested) {
+			this.closeNow();
+		}
+	}
+
+	/**
+	 * Closes the channel immediately and notifies the packet handler. Calling this
+	 * method more than once has no effect.
+	 */
+	void closeNow() {
+		if (!this.closed.compareAndSet(false, true)) {
+			return;
+		}
+
+		this.closeRequested = true;
+
+		if (this.key != null) {
+			this.key.cancel();
+		}
+
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// Nothing can be done, the channel is unusable anyway
+		}
+
+		this.outboundQueue.close();
+
+		if (this.handler != null) {
+			this.handler.handleDisconnect();
+		}
+	}
+
+	/**
+	 * This class is the output stream of a {@link NioConnection}. Every flush hands
+	 * the written data to the event loop as a single packet.
+	 * 
+	 * @author Ankeraout
+	 *
+	 */
+	private class NioConnectionOutputStream extends PacketOutputStream {
+		@Override
+		protected void send(ByteBuffer packet) throws IOException {
+			NioConnection.this.enqueue(packet);
+		}
+
+		@Override
+		public void close() {
+			NioConnection.this.close();
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package fr.ankeraout.mcank.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fr.ankeraout.mcank.ClassicubeServer;
+
+/**
+ * This class contains the code of a network event loop. An event loop owns a
+ * {@link Selector} and a single thread, and it serves all the
+ * {@link NioConnection} objects that were registered on it: it reads their
+ * incoming data, and writes their outgoing data when their channel is
+ * writable.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class NioEventLoop implements Runnable {
+	/**
+	 * The size of the buffer used for reading data from the channels.
+	 */
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	/**
+	 * The selector of this event loop.
+	 */
+	private Selector selector;
+
+	/**
+	 * The thread that runs this event loop.
+	 */
+	private Thread thread;
+
+	/**
+	 * The connections waiting to be registered on the selector.
+	 */
+	private Queue<NioConnection> pendingRegistrations;
+
+	/**
+	 * The connections that have pending outgoing data.
+	 */
+	private Queue<NioConnection> pendingWrites;
+
+	/**
+	 * The buffer used for reading data from the channels. It is shared by all the
+	 * connections of this event loop, because the decoders copy the data they
+	 * need.
+	 */
+	private ByteBuffer readBuffer;
+
+	/**
+	 * This value is <code>true</code> while the event loop is running.
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Creates a new {@link NioEventLoop}. The event loop is not started until
+	 * {@link NioEventLoop#start(String)} is called.
+	 * 
+	 * @throws IOException If the selector could not be opened.
+	 */
+	public NioEventLoop() throws IOException {
+		this.selector = Selector.open();
+		this.pendingRegistrations = new ConcurrentLinkedQueue<NioConnection>();
+		this.pendingWrites = new ConcurrentLinkedQueue<NioConnection>();
+		this.readBuffer = ByteBuffer.allocateDirect(NioEventLoop.READ_BUFFER_SIZE);
+		this.running = false;
+	}
+
+	/**
+	 * Starts the thread of this event loop.
+	 * 
+	 * @param threadName The name of the event loop thread.
+	 */
+	public void start(String threadName) {
+		this.running = true;
+		this.thread = new Thread(this, threadName);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops this event loop and closes all its connections.
+	 */
+	public void stop() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Registers the given connection on this event loop. The connection will be
+	 * registered on the selector by the event loop thread.
+	 * 
+	 * @param connection The connection to register.
+	 */
+	public void register(NioConnection connection) {
+		this.pendingRegistrations.add(connection);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Asks the event loop thread to write the pending data of the given
+	 * connection.
+	 * 
+	 * @param connection The connection that has pending data.
+	 */
+	void requestWrite(NioConnection connection) {
+		this.pendingWrites.add(connection);
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (this.running) {
+				this.selector.select();
+				this.processRegistrations();
+				this.processWrites();
+				this.processSelectedKeys();
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.SEVERE,
+					"Network event loop encountered an exception. Its connections are no longer served.", e);
+		}
+
+		// Close all the connections of this event loop
+		for (SelectionKey key : this.selector.keys()) {
+			((NioConnection) key.attachment()).closeNow();
+		}
+
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			// Nothing can be done
+		}
+	}
+
+	/**
+	 * Registers the pending connections on the selector.
+	 */
+	private void processRegistrations() {
+		NioConnection connection;
+
+		while ((connection = this.pendingRegistrations.poll()) != null) {
+			try {
+				connection.register(this.selector);
+			} catch (IOException e) {
+				connection.closeNow();
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending data of the connections that requested it.
+	 */
+	private void processWrites() {
+		NioConnection connection;
+
+		while ((connection = this.pendingWrites.poll()) != null) {
+			try {
+				connection.handleWrite();
+			} catch (IOException e) {
+				connection.closeNow();
+			} catch (RuntimeException e) {
+				Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.SEVERE,
+						"Failed to write the data of " + connection.getRemoteAddress() + ".", e);
+				connection.closeNow();
+			}
+		}
+	}
+
+	/**
+	 * Handles the read and write readiness of the selected channels.
+	 */
+	private void processSelectedKeys() {
+		Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+
+		while (iterator.hasNext()) {
+			SelectionKey key = iterator.next();
+			NioConnection connection = (NioConnection) key.attachment();
+			iterator.remove();
+
+			try {
+				if (key.isValid() && key.isReadable()) {
+					connection.handleRead(this.readBuffer);
+				}
+
+				if (key.isValid() && key.isWritable()) {
+					connection.handleWrite();
+				}
+			} catch (IOException e) {
+				connection.closeNow();
+			} catch (RuntimeException e) {
+				// An unexpected packet must not stop the other connections of the loop
+				Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.SEVERE,
+						"Failed to handle the data of " + connection.getRemoteAddress() + ".", e);
+				connection.closeNow();
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package fr.ankeraout.mcank.net;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import fr.ankeraout.mcank.Player;
+
+/**
+ * This class contains the non-blocking network transport of the server. It
+ * owns a small, fixed amount of {@link NioEventLoop} threads which serve all
+ * the player connections, instead of creating threads for every connected
+ * player.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class NioNetworkServer {
+	/**
+	 * The event loops of this server.
+	 */
+	private NioEventLoop[] eventLoops;
+
+	/**
+	 * The index of the event loop that will receive the next connection.
+	 */
+	private int nextEventLoop;
+
+	/**
+	 * The executor used for the tasks of the connections that must not run on an
+	 * event loop thread.
+	 */
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Determines whether Nagle's algorithm should be disabled on the accepted
+	 * connections.
+	 */
+	private boolean tcpNoDelay;
+
+	/**
+	 * The maximum amount of bytes waiting to be sent to a client.
+	 */
+	private long outboundQueueSize;
+
+	/**
+	 * Creates a new {@link NioNetworkServer}.
+	 * 
+	 * @param threadCount       The amount of event loop threads.
+	 * @param tcpNoDelay        Determines whether Nagle's algorithm should be
+	 *                          disabled on the accepted connections.
+	 * @param outboundQueueSize The maximum amount of bytes waiting to be sent to a
+	 *                          client.
+	 * @throws IOException If the selectors could not be opened.
+	 */
+	public NioNetworkServer(int threadCount, boolean tcpNoDelay, long outboundQueueSize) throws IOException {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("The amount of network threads must be at least 1.");
+		}
+
+		this.eventLoops = new NioEventLoop[threadCount];
+
+		for (int i = 0; i < threadCount; i++) {
+			this.eventLoops[i] = new NioEventLoop();
+		}
+
+		this.nextEventLoop = 0;
+		this.executor = Executors.newScheduledThreadPool(threadCount);
+		this.tcpNoDelay = tcpNoDelay;
+		this.outboundQueueSize = outboundQueueSize;
+	}
+
+	/**
+	 * Starts the event loop threads.
+	 */
+	public void start() {
+		for (int i = 0; i < this.eventLoops.length; i++) {
+			this.eventLoops[i].start("Network event loop #" + i);
+		}
+	}
+
+	/**
+	 * Stops the event loop threads. All the connections are closed.
+	 */
+	public void stop() {
+		for (NioEventLoop eventLoop : this.eventLoops) {
+			eventLoop.stop();
+		}
+
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Creates the {@link Player} for the given accepted channel and registers its
+	 * connection on one of the event loops.
+	 * 
+	 * @param channel The channel that was accepted.
+	 * @throws IOException If the channel could not be configured.
+	 */
+	public void accept(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(this.tcpNoDelay);
+
+		NioEventLoop eventLoop = this.eventLoops[this.nextEventLoop];
+		this.nextEventLoop = (this.nextEventLoop + 1) % this.eventLoops.length;
+
+		NioConnection connection = new NioConnection(channel, eventLoop, this.executor,
+				this.outboundQueueSize);
+		new Player(connection);
+		eventLoop.register(connection);
+	}
+}
@@ -0,0 +1,341 @@
+package fr.ankeraout.mcank.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is the bounded queue of the encoded packets waiting to be sent to
+ * a client. It is bounded by the amount of queued bytes: a client that does not
+ * read its data fast enough fills its queue, and the packets that do not fit
+ * anymore are refused, so that the threads that send packets (for example the
+ * world thread) never wait for a slow client.
+ * 
+ * The packets that can be delayed, like the map data, are added to a second
+ * lane with a lower priority. A packet of this lane is only moved to the end of
+ * the queue when the queue is empty, so the other packets never wait behind
+ * more than one of them. The writer of the connection only sees the queue, so
+ * a packet is never interrupted by another one.
+ * 
+ * Any thread can add packets to the queue, but only one thread (the writer of
+ * the connection) may remove them.
+ * 
+ * @author Ankeraout
+ *
+ */
+class OutboundPacketQueue {
+	/**
+	 * The time in milliseconds between two checks of the queue by the threads that
+	 * wait for room in the queue.
+	 */
+	private static final long SPACE_POLL_INTERVAL = 10;
+
+	/**
+	 * The queued packets, in order.
+	 */
+	private LinkedBlockingQueue<ByteBuffer> packets;
+
+	/**
+	 * The queued packets with a low priority, in order.
+	 */
+	private LinkedBlockingQueue<ByteBuffer> lowPriorityPackets;
+
+	/**
+	 * The lock held while a packet is moved from the low priority lane to the
+	 * queue, so that these packets stay in order.
+	 */
+	private ReentrantLock lowPriorityLock;
+
+	/**
+	 * The condition signaled when the last packet of the low priority lane was
+	 * moved to the queue, or when the queue is closed.
+	 */
+	private Condition lowPriorityEmpty;
+
+	/**
+	 * The amount of bytes that remain to be sent in the queued packets.
+	 */
+	private AtomicLong queuedBytes;
+
+	/**
+	 * The maximum amount of queued bytes.
+	 */
+	private long capacity;
+
+	/**
+	 * Tells whether the queue is closed. A closed queue refuses all the packets.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new empty {@link OutboundPacketQueue}.
+	 * 
+	 * @param capacity The maximum amount of queued bytes.
+	 */
+	OutboundPacketQueue(long capacity) {
+		this.packets = new LinkedBlockingQueue<ByteBuffer>();
+		this.lowPriorityPackets = new LinkedBlockingQueue<ByteBuffer>();
+		this.lowPriorityLock = new ReentrantLock();
+		this.lowPriorityEmpty = this.lowPriorityLock.newCondition();
+		this.queuedBytes = new AtomicLong(0);
+		this.capacity = capacity;
+		this.closed = false;
+	}
+
+	/**
+	 * Adds a packet at the end of the queue, if it fits.
+	 * 
+	 * @param packet The encoded packet.
+	 * @return <code>true</code> if the packet was added, <code>false</code> if
+	 *         the queue is full or closed.
+	 */
+	boolean offer(ByteBuffer packet) {
+		int length = packet.remaining();
+
+		if (this.closed) {
+			return false;
+		}
+
+		if (this.queuedBytes.addAndGet(length) > this.capacity) {
+			this.queuedBytes.addAndGet(-length);
+			return false;
+		}
+
+		this.packets.add(packet);
+		return true;
+	}
+
+	/**
+	 * Adds a packet at the end of the low priority lane, if it fits. The packet is
+	 * sent after the packets of the queue, and after the other packets of the low
+	 * priority lane.
+	 * 
+	 * @param packet The encoded packet.
+	 * @return <code>true</code> if the packet was added, <code>false</code> if
+	 *         the queue is full or closed.
+	 */
+	boolean offerLowPriority(ByteBuffer packet) {
+		int length = packet.remaining();
+
+		if (this.closed) {
+			return false;
+		}
+
+		if (this.queuedBytes.addAndGet(length) > this.capacity) {
+			this.queuedBytes.addAndGet(-length);
+			return false;
+		}
+
+		this.lowPriorityPackets.add(packet);
+
+		// The writer may be waiting for a packet of the queue
+		this.promoteLowPriorityPacket();
+		return true;
+	}
+
+	/**
+	 * Moves the first packet of the low priority lane to the queue, if the queue
+	 * is empty.
+	 */
+	private void promoteLowPriorityPacket() {
+		if (!this.packets.isEmpty() || this.lowPriorityPackets.isEmpty()) {
+			return;
+		}
+
+		this.lowPriorityLock.lock();
+
+		try {
+			if (this.packets.isEmpty()) {
+				ByteBuffer packet = this.lowPriorityPackets.poll();
+
+				if (packet != null) {
+					this.packets.add(packet);
+				}
+
+				if (this.lowPriorityPackets.isEmpty()) {
+					this.lowPriorityEmpty.signalAll();
+				}
+			}
+		} finally {
+			this.lowPriorityLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until all the packets of the low priority lane were moved to the
+	 * queue, so that the packets added to the queue afterwards are sent after
+	 * them.
+	 * 
+	 * @throws IOException If the queue is closed, or if the current thread was
+	 *                     interrupted while waiting.
+	 */
+	void awaitLowPriorityPackets() throws IOException {
+		this.lowPriorityLock.lock();
+
+		try {
+			while (!this.lowPriorityPackets.isEmpty()) {
+				if (this.closed) {
+					throw new IOException("The connection is closed.");
+				}
+
+				this.lowPriorityEmpty.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the client to read its data.");
+		} finally {
+			this.lowPriorityLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the queue is less than half full, so that the other half stays
+	 * available for the packets that cannot wait. This method is used by the
+	 * threads that send a lot of data that can be delayed, like the map data.
+	 * 
+	 * @throws IOException If the queue is closed, or if the current thread was
+	 *                     interrupted while waiting.
+	 */
+	void awaitSpace() throws IOException {
+		while (this.queuedBytes.get() > this.capacity / 2) {
+			if (this.closed) {
+				throw new IOException("The connection is closed.");
+			}
+
+			try {
+				Thread.sleep(OutboundPacketQueue.SPACE_POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the client to read its data.");
+			}
+		}
+
+		if (this.closed) {
+			throw new IOException("The connection is closed.");
+		}
+	}
+
+	/**
+	 * Removes the first packet of the queue, waiting for one if the queue is
+	 * empty.
+	 * 
+	 * @param timeout The maximum time to wait in milliseconds.
+	 * @return The first packet, or <code>null</code> if no packet was queued
+	 *         before the timeout.
+	 * @throws InterruptedException If the current thread was interrupted while
+	 *                              waiting.
+	 */
+	ByteBuffer take(long timeout) throws InterruptedException {
+		this.promoteLowPriorityPacket();
+		ByteBuffer packet = this.packets.poll(timeout, TimeUnit.MILLISECONDS);
+
+		if (packet != null) {
+			this.queuedBytes.addAndGet(-packet.remaining());
+		}
+
+		return packet;
+	}
+
+	/**
+	 * Removes the first packet of the queue, if there is one.
+	 * 
+	 * @return The first packet, or <code>null</code> if the queue is empty.
+	 */
+	ByteBuffer poll() {
+		this.promoteLowPriorityPacket();
+		ByteBuffer packet = this.packets.poll();
+
+		if (packet != null) {
+			this.queuedBytes.addAndGet(-packet.remaining());
+		}
+
+		return packet;
+	}
+
+	/**
+	 * Copies the first packets of the queue to the given array, without removing
+	 * them, so that they can be sent with a single gathering write.
+	 * 
+	 * @param array The array where the packets are copied.
+	 * @return The amount of packets copied.
+	 */
+	int peekAll(ByteBuffer[] array) {
+		this.promoteLowPriorityPacket();
+		Iterator<ByteBuffer> iterator = this.packets.iterator();
+		int count = 0;
+
+		while (count < array.length && iterator.hasNext()) {
+			array[count++] = iterator.next();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Tells that the given amount of bytes of the packets returned by
+	 * {@link OutboundPacketQueue#peekAll(ByteBuffer[])} were sent, and removes
+	 * the given amount of packets that were entirely sent from the beginning of
+	 * the queue.
+	 * 
+	 * @param count The amount of packets that were entirely sent.
+	 * @param bytes The amount of bytes that were sent.
+	 */
+	void remove(int count, long bytes) {
+		for (int i = 0; i < count; i++) {
+			this.packets.poll();
+		}
+
+		this.queuedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * Returns a boolean value that determines whether the queue is empty.
+	 * 
+	 * @return A boolean value that determines whether the queue is empty.
+	 */
+	boolean isEmpty() {
+		return this.packets.isEmpty() && this.lowPriorityPackets.isEmpty();
+	}
+
+	/**
+	 * Returns a boolean value that determines whether the queue is closed.
+	 * 
+	 * @return A boolean value that determines whether the queue is closed.
+	 */
+	boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Closes the queue, so that it refuses the new packets. The packets that are
+	 * already queued can still be removed.
+	 */
+	void shutdown() {
+		this.closed = true;
+	}
+
+	/**
+	 * Closes the queue and removes all the packets.
+	 */
+	void close() {
+		this.closed = true;
+		this.packets.clear();
+		this.queuedBytes.set(0);
+
+		// Wake up the threads waiting for the low priority lane
+		this.lowPriorityLock.lock();
+
+		try {
+			this.lowPriorityPackets.clear();
+			this.lowPriorityEmpty.signalAll();
+		} finally {
+			this.lowPriorityLock.unlock();
+		}
+	}
+}
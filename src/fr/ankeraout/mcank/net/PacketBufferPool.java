@@ -0,0 +1,93 @@
+package fr.ankeraout.mcank.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import fr.ankeraout.mcank.PacketID;
+
+/**
+ * This class contains the pools of the buffers used for encoding the packets.
+ * Every packet has a fixed length, so there is a pool for every packet length:
+ * a buffer taken from a pool is given to a connection, and the connection puts
+ * it back into its pool once it was sent to the client. This way, sending a
+ * packet does not allocate any buffer once the pools are warm.
+ * 
+ * @author Ankeraout
+ *
+ */
+final class PacketBufferPool {
+	/**
+	 * The maximum amount of free buffers kept in a pool. The buffers released when
+	 * the pool is full are left to the garbage collector.
+	 */
+	private static final int MAX_POOLED_BUFFERS = 1024;
+
+	/**
+	 * The pools, indexed by buffer length. The lengths that are not the length of
+	 * a packet have no pool.
+	 */
+	private static final ArrayBlockingQueue<ByteBuffer>[] pools;
+
+	static {
+		int maxLength = 0;
+
+		for (PacketID packetId : PacketID.values()) {
+			maxLength = Math.max(maxLength, packetId.getLength());
+		}
+
+		@SuppressWarnings("unchecked")
+		ArrayBlockingQueue<ByteBuffer>[] array = (ArrayBlockingQueue<ByteBuffer>[]) new ArrayBlockingQueue<?>[maxLength + 1];
+
+		for (PacketID packetId : PacketID.values()) {
+			if (array[packetId.getLength()] == null) {
+				array[packetId.getLength()] = new ArrayBlockingQueue<ByteBuffer>(PacketBufferPool.MAX_POOLED_BUFFERS);
+			}
+		}
+
+		pools = array;
+	}
+
+	/**
+	 * The only constructor of this class is private because this class cannot be
+	 * instantiated.
+	 */
+	private PacketBufferPool() {
+		// This will never be called
+	}
+
+	/**
+	 * Returns an empty buffer whose capacity is the length of the given packet.
+	 * 
+	 * @param packetId The packet that will be encoded in the buffer.
+	 * @return An empty buffer whose capacity is the length of the packet.
+	 */
+	static ByteBuffer acquire(PacketID packetId) {
+		ByteBuffer buffer = PacketBufferPool.pools[packetId.getLength()].poll();
+
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(packetId.getLength());
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Puts the given buffer back into its pool, after it was sent. The buffers
+	 * that are read-only (they may be shared with other connections) and the
+	 * buffers whose length is not the length of a packet are ignored. The buffer
+	 * must not be used anymore by the caller.
+	 * 
+	 * @param buffer The buffer that was sent.
+	 */
+	static void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+
+		if (buffer.isReadOnly() || !buffer.hasArray() || buffer.arrayOffset() != 0
+				|| capacity >= PacketBufferPool.pools.length || PacketBufferPool.pools[capacity] == null) {
+			return;
+		}
+
+		buffer.clear();
+		PacketBufferPool.pools[capacity].offer(buffer);
+	}
+}
@@ -0,0 +1,311 @@
+package fr.ankeraout.mcank.net;
+
+import java.nio.ByteBuffer;
+
+import fr.ankeraout.mcank.PacketID;
+import fr.ankeraout.mcank.io.ClassicubeString;
+
+/**
+ * This class contains the encoders of the packets sent by the server. Every
+ * encoder writes its packet into a buffer taken from the
+ * {@link PacketBufferPool}, whose capacity is the fixed length of the packet
+ * (see {@link PacketID#getLength()}), and returns the buffer ready to be read.
+ * The returned buffer must be given to {@link Connection#sendPacket(ByteBuffer)},
+ * which puts it back into the pool once it was sent.
+ * 
+ * The strings are given as {@link ClassicubeString} objects, so that a string
+ * that is sent several times (like the name of a player) is only encoded once.
+ * 
+ * @author Ankeraout
+ *
+ */
+public final class PacketCodec {
+	/**
+	 * The only constructor of this class is private because this class cannot be
+	 * instantiated.
+	 */
+	private PacketCodec() {
+		// This will never be called
+	}
+
+	/**
+	 * Takes a buffer from the pool and writes the given packet ID into it.
+	 * 
+	 * @param packetId The packet to encode.
+	 * @return The buffer that contains the packet ID.
+	 */
+	private static ByteBuffer begin(PacketID packetId) {
+		ByteBuffer buffer = PacketBufferPool.acquire(packetId);
+		buffer.put((byte) packetId.getID());
+		return buffer;
+	}
+
+	/**
+	 * Encodes a SERVER_IDENTIFICATION packet.
+	 * 
+	 * @param protocolVersion The version of the protocol.
+	 * @param name            The name of the server.
+	 * @param motd            The message of the day of the server.
+	 * @param op              <code>true</code> if the player is an operator.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer serverIdentification(int protocolVersion, ClassicubeString name,
+			ClassicubeString motd, boolean op) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.SERVER_IDENTIFICATION);
+		buffer.put((byte) protocolVersion);
+		name.writeTo(buffer);
+		motd.writeTo(buffer);
+		buffer.put((byte) (op ? 0x64 : 0x00));
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a PING packet.
+	 * 
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer ping() {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.PING);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a LEVEL_INITIALIZE packet.
+	 * 
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer levelInitialize() {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.LEVEL_INITIALIZE);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a LEVEL_DATA_CHUNK packet. The chunk is padded with zeros.
+	 * 
+	 * @param data     The array that contains the chunk.
+	 * @param offset   The offset of the chunk in the array.
+	 * @param length   The length of the chunk, at most 1024 bytes.
+	 * @param progress The progress of the download, between 0 and 100.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer levelDataChunk(byte[] data, int offset, int length, int progress) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.LEVEL_DATA_CHUNK);
+		buffer.putShort((short) length);
+		buffer.put(data, offset, length);
+
+		// The buffer may come from the pool, so the padding must be written
+		while (buffer.position() < PacketID.LEVEL_DATA_CHUNK.getLength() - 1) {
+			buffer.put((byte) 0x00);
+		}
+
+		buffer.put((byte) progress);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a LEVEL_FINALIZE packet.
+	 * 
+	 * @param width  The width of the world.
+	 * @param height The height of the world.
+	 * @param depth  The depth of the world.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer levelFinalize(int width, int height, int depth) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.LEVEL_FINALIZE);
+		buffer.putShort((short) width);
+		buffer.putShort((short) height);
+		buffer.putShort((short) depth);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a SERVER_SET_BLOCK packet.
+	 * 
+	 * @param x       The X coordinate of the block.
+	 * @param y       The Y coordinate of the block.
+	 * @param z       The Z coordinate of the block.
+	 * @param blockId The ID of the new block.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer setBlock(int x, int y, int z, int blockId) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.SERVER_SET_BLOCK);
+		buffer.putShort((short) x);
+		buffer.putShort((short) y);
+		buffer.putShort((short) z);
+		buffer.put((byte) blockId);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a SPAWN_PLAYER packet. The coordinates are in 1/32 of block and the
+	 * angles in 1/256 of turn, as in the protocol.
+	 * 
+	 * @param playerId The ID of the player, or 255 (-1) for the player itself.
+	 * @param name     The name of the player.
+	 * @param x        The X coordinate of the player.
+	 * @param y        The Y coordinate of the player.
+	 * @param z        The Z coordinate of the player.
+	 * @param yaw      The yaw of the player.
+	 * @param pitch    The pitch of the player.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer spawnPlayer(int playerId, ClassicubeString name, int x, int y, int z, int yaw,
+			int pitch) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.SPAWN_PLAYER);
+		buffer.put((byte) playerId);
+		name.writeTo(buffer);
+		buffer.putShort((short) x);
+		buffer.putShort((short) y);
+		buffer.putShort((short) z);
+		buffer.put((byte) yaw);
+		buffer.put((byte) pitch);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a POSITION_ORIENTATION_ABSOLUTE packet. The coordinates are in 1/32
+	 * of block and the angles in 1/256 of turn.
+	 * 
+	 * @param playerId The ID of the player.
+	 * @param x        The X coordinate of the player.
+	 * @param y        The Y coordinate of the player.
+	 * @param z        The Z coordinate of the player.
+	 * @param yaw      The yaw of the player.
+	 * @param pitch    The pitch of the player.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer positionOrientation(int playerId, int x, int y, int z, int yaw, int pitch) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.POSITION_ORIENTATION_ABSOLUTE);
+		buffer.put((byte) playerId);
+		buffer.putShort((short) x);
+		buffer.putShort((short) y);
+		buffer.putShort((short) z);
+		buffer.put((byte) yaw);
+		buffer.put((byte) pitch);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a POSITION_ORIENTATION_RELATIVE packet. The moves are in 1/32 of
+	 * block and must fit in a byte.
+	 * 
+	 * @param playerId The ID of the player.
+	 * @param dx       The move on the X axis.
+	 * @param dy       The move on the Y axis.
+	 * @param dz       The move on the Z axis.
+	 * @param yaw      The yaw of the player.
+	 * @param pitch    The pitch of the player.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer positionOrientationRelative(int playerId, int dx, int dy, int dz, int yaw, int pitch) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.POSITION_ORIENTATION_RELATIVE);
+		buffer.put((byte) playerId);
+		buffer.put((byte) dx);
+		buffer.put((byte) dy);
+		buffer.put((byte) dz);
+		buffer.put((byte) yaw);
+		buffer.put((byte) pitch);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a POSITION_RELATIVE packet. The moves are in 1/32 of block and must
+	 * fit in a byte.
+	 * 
+	 * @param playerId The ID of the player.
+	 * @param dx       The move on the X axis.
+	 * @param dy       The move on the Y axis.
+	 * @param dz       The move on the Z axis.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer positionRelative(int playerId, int dx, int dy, int dz) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.POSITION_RELATIVE);
+		buffer.put((byte) playerId);
+		buffer.put((byte) dx);
+		buffer.put((byte) dy);
+		buffer.put((byte) dz);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes an ORIENTATION packet. The angles are in 1/256 of turn.
+	 * 
+	 * @param playerId The ID of the player.
+	 * @param yaw      The yaw of the player.
+	 * @param pitch    The pitch of the player.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer orientation(int playerId, int yaw, int pitch) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.ORIENTATION);
+		buffer.put((byte) playerId);
+		buffer.put((byte) yaw);
+		buffer.put((byte) pitch);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a DESPAWN_PLAYER packet.
+	 * 
+	 * @param playerId The ID of the player.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer despawnPlayer(int playerId) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.DESPAWN_PLAYER);
+		buffer.put((byte) playerId);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a MESSAGE packet.
+	 * 
+	 * @param playerId The ID of the player who sent the message, or a negative
+	 *                 value for a message of the server.
+	 * @param message  The message.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer message(int playerId, ClassicubeString message) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.MESSAGE);
+		buffer.put((byte) playerId);
+		message.writeTo(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a KICK packet.
+	 * 
+	 * @param reason The reason why the player is kicked.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer kick(ClassicubeString reason) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.KICK);
+		reason.writeTo(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes an UPDATE_USER_TYPE packet.
+	 * 
+	 * @param op <code>true</code> if the player is an operator.
+	 * @return The encoded packet.
+	 */
+	public static ByteBuffer updateUserType(boolean op) {
+		ByteBuffer buffer = PacketCodec.begin(PacketID.UPDATE_USER_TYPE);
+		buffer.put((byte) (op ? 0x64 : 0x00));
+		buffer.flip();
+		return buffer;
+	}
+}
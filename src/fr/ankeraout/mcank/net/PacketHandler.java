@@ -0,0 +1,32 @@
+package fr.ankeraout.mcank.net;
+
+import java.io.IOException;
+
+/**
+ * This interface must be implemented by the objects that receive the packets
+ * decoded by a {@link NioConnection}. Its methods are called by the event loop
+ * thread of the connection, so they must never block for a long time.
+ * 
+ * @author Ankeraout
+ *
+ */
+public interface PacketHandler {
+	/**
+	 * This method is called every time a complete packet was received from the
+	 * client.
+	 * 
+	 * @param packet The buffer that contains the packet, packet ID included. This
+	 *               buffer is reused by the decoder, so its content is only valid
+	 *               until this method returns.
+	 * @param length The length of the packet in the buffer.
+	 * @throws IOException If an I/O error occurs while handling the packet. The
+	 *                     connection will be closed.
+	 */
+	public void handlePacket(byte[] packet, int length) throws IOException;
+
+	/**
+	 * This method is called once when the connection was closed, whether it was
+	 * closed by the client or by the server.
+	 */
+	public void handleDisconnect();
+}
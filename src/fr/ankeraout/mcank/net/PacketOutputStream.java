@@ -0,0 +1,80 @@
+package fr.ankeraout.mcank.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class is the output stream of a {@link Connection}. The written data is
+ * accumulated in a buffer, and it is handed to the connection as a single
+ * encoded packet when the stream is flushed, so a packet written field by field
+ * does not result in many small writes to the socket. This class is not
+ * thread-safe: the callers must synchronize the access to the stream
+ * themselves.
+ * 
+ * @author Ankeraout
+ *
+ */
+abstract class PacketOutputStream extends OutputStream {
+	/**
+	 * The data written since the last flush.
+	 */
+	private byte[] buffer;
+
+	/**
+	 * The amount of bytes in the buffer.
+	 */
+	private int count;
+
+	/**
+	 * Creates a new {@link PacketOutputStream}.
+	 */
+	PacketOutputStream() {
+		this.buffer = new byte[1024];
+		this.count = 0;
+	}
+
+	/**
+	 * Makes sure that the buffer can hold the given amount of additional bytes.
+	 * 
+	 * @param length The amount of bytes that are about to be written.
+	 */
+	private void ensureCapacity(int length) {
+		if (this.count + length > this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.count + length));
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.ensureCapacity(1);
+		this.buffer[this.count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		this.ensureCapacity(len);
+		System.arraycopy(b, off, this.buffer, this.count, len);
+		this.count += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (this.count != 0) {
+			ByteBuffer packet = ByteBuffer.wrap(Arrays.copyOf(this.buffer, this.count));
+			this.count = 0;
+			this.send(packet);
+		}
+	}
+
+	/**
+	 * Hands the data written since the last flush to the connection.
+	 * 
+	 * @param packet The data written since the last flush.
+	 * @throws IOException If the connection is closed, or if the data could not
+	 *                     be queued because the client does not read its data
+	 *                     fast enough.
+	 */
+	protected abstract void send(ByteBuffer packet) throws IOException;
+}
@@ -0,0 +1,259 @@
+package fr.ankeraout.mcank.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fr.ankeraout.mcank.ClassicubeServer;
+
+/**
+ * This class is the {@link Connection} implementation for the blocking
+ * transport. It is a wrapper around a {@link Socket}. The packets sent to the
+ * client are queued, and a writer thread sends all the queued packets with a
+ * single write to the socket, so the threads that send packets never wait for
+ * the client.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class SocketConnection implements Connection {
+	/**
+	 * The maximum amount of bytes sent by a single write to the socket.
+	 */
+	private static final int WRITE_BUFFER_SIZE = 65536;
+
+	/**
+	 * The time in milliseconds after which the writer thread checks whether the
+	 * connection should be closed, when there is nothing to send.
+	 */
+	private static final long WRITER_POLL_INTERVAL = 100;
+
+	/**
+	 * The socket connected to the client.
+	 */
+	private Socket socket;
+
+	/**
+	 * The packets waiting to be written to the socket, in order.
+	 */
+	private OutboundPacketQueue outboundQueue;
+
+	/**
+	 * The stream returned by {@link SocketConnection#getOutputStream()}.
+	 */
+	private PacketOutputStream outputStream;
+
+	/**
+	 * This value is <code>true</code> once {@link SocketConnection#close()} was
+	 * called. The socket is closed as soon as the pending data was written.
+	 */
+	private volatile boolean closeRequested;
+
+	/**
+	 * Creates a new {@link SocketConnection} for the given socket, and starts its
+	 * writer thread.
+	 * 
+	 * @param socket        The socket connected to the client.
+	 * @param threadFactory The factory of the writer thread.
+	 * @param queueSize     The maximum amount of bytes waiting to be sent to the
+	 *                      client. The connection is closed if the client does not
+	 *                      read its data fast enough and this amount is exceeded.
+	 */
+	public SocketConnection(Socket socket, ThreadFactory threadFactory, long queueSize) {
+		this.socket = socket;
+		this.outboundQueue = new OutboundPacketQueue(queueSize);
+		this.outputStream = new SocketConnectionOutputStream();
+		this.closeRequested = false;
+
+		threadFactory.newThread(() -> this.writerLoop()).start();
+	}
+
+	/**
+	 * Returns the stream that must be used for reading the data sent by the
+	 * client.
+	 * 
+	 * @return The input stream of the socket.
+	 * @throws IOException If the stream could not be retrieved.
+	 */
+	public InputStream getInputStream() throws IOException {
+		return this.socket.getInputStream();
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return this.socket.getRemoteSocketAddress();
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return this.outputStream;
+	}
+
+	@Override
+	public void sendPacket(ByteBuffer packet) throws IOException {
+		this.enqueue(packet);
+	}
+
+	@Override
+	public void sendPackets(ByteBuffer[] packets, int offset, int count) throws IOException {
+		// The writer thread sends all the queued packets at once
+		for (int i = 0; i < count; i++) {
+			this.enqueue(packets[offset + i]);
+		}
+	}
+
+	@Override
+	public void sendLowPriorityPacket(ByteBuffer packet) throws IOException {
+		if (this.outboundQueue.isClosed()) {
+			throw new IOException("The connection is closed.");
+		}
+
+		if (!this.outboundQueue.offerLowPriority(packet)) {
+			this.handleQueueOverflow();
+		}
+	}
+
+	@Override
+	public void awaitLowPriorityPackets() throws IOException {
+		this.outboundQueue.awaitLowPriorityPackets();
+	}
+
+	@Override
+	public void awaitOutboundSpace() throws IOException {
+		this.outboundQueue.awaitSpace();
+	}
+
+	@Override
+	public void close() {
+		this.closeRequested = true;
+		this.outboundQueue.shutdown();
+	}
+
+	/**
+	 * Adds the given packet to the outgoing data queue. If the queue is full, the
+	 * client is considered too slow and the connection is closed.
+	 * 
+	 * @param packet The packet to send.
+	 * @throws IOException If the connection is closed, or if the queue is full.
+	 */
+	private void enqueue(ByteBuffer packet) throws IOException {
+		if (this.outboundQueue.isClosed()) {
+			throw new IOException("The connection is closed.");
+		}
+
+		if (!this.outboundQueue.offer(packet)) {
+			this.handleQueueOverflow();
+		}
+	}
+
+	/**
+	 * Closes the connection because a packet does not fit in the outgoing data
+	 * queue.
+	 * 
+	 * @throws IOException Always, to tell the sender that the packet was not
+	 *                     queued.
+	 */
+	private void handleQueueOverflow() throws IOException {
+		Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.WARNING, "Closing the connection of "
+				+ this.getRemoteAddress() + " because it does not read its data fast enough.");
+		this.closeNow();
+		throw new IOException("The outgoing data queue of the connection is full.");
+	}
+
+	/**
+	 * Closes the socket immediately. The thread that reads the data of the client
+	 * and the writer thread fail with an {@link IOException}.
+	 */
+	private void closeNow() {
+		this.closeRequested = true;
+		this.outboundQueue.close();
+
+		try {
+			this.socket.close();
+		} catch (IOException e) {
+			// Nothing can be done, the socket is unusable anyway
+		}
+	}
+
+	/**
+	 * This method contains the code of the writer thread. It waits for packets,
+	 * and writes all the queued packets to the socket at once, until the
+	 * connection is closed.
+	 */
+	private void writerLoop() {
+		byte[] writeBuffer = new byte[SocketConnection.WRITE_BUFFER_SIZE];
+
+		try {
+			OutputStream socketOutputStream = this.socket.getOutputStream();
+
+			while (true) {
+				ByteBuffer packet = this.outboundQueue.take(SocketConnection.WRITER_POLL_INTERVAL);
+
+				if (packet == null) {
+					if (this.closeRequested) {
+						break;
+					}
+
+					continue;
+				}
+
+				// Gather all the queued packets into a single write
+				int length = 0;
+
+				while (packet != null) {
+					int count = Math.min(packet.remaining(), writeBuffer.length - length);
+					packet.get(writeBuffer, length, count);
+					length += count;
+
+					if (length == writeBuffer.length) {
+						socketOutputStream.write(writeBuffer, 0, length);
+						length = 0;
+					}
+
+					if (!packet.hasRemaining()) {
+						PacketBufferPool.release(packet);
+						packet = this.outboundQueue.poll();
+					}
+				}
+
+				if (length != 0) {
+					socketOutputStream.write(writeBuffer, 0, length);
+				}
+
+				socketOutputStream.flush();
+			}
+		} catch (IOException e) {
+			// The connection was lost, the thread that reads the data of the client
+			// handles the disconnection
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		this.closeNow();
+	}
+
+	/**
+	 * This class is the output stream of a {@link SocketConnection}. Every flush
+	 * queues the written data as a single packet.
+	 * 
+	 * @author Ankeraout
+	 *
+	 */
+	private class SocketConnectionOutputStream extends PacketOutputStream {
+		@Override
+		protected void send(ByteBuffer packet) throws IOException {
+			SocketConnection.this.enqueue(packet);
+		}
+
+		@Override
+		public void close() {
+			SocketConnection.this.close();
+		}
+	}
+}
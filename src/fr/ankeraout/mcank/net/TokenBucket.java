@@ -0,0 +1,112 @@
+package fr.ankeraout.mcank.net;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is a token bucket, that limits the rate at which data is sent. The
+ * bucket is refilled with tokens (bytes) at a constant rate, up to its
+ * capacity, and sending data consumes as many tokens as bytes.
+ *
+ * A bucket can have a parent bucket, that is shared by several buckets: the
+ * data sent through a bucket must then fit in both buckets. This allows limiting
+ * the rate of every player and the total rate of the server at the same time.
+ *
+ * The requests for tokens are served in the order they are made, so the
+ * concurrent senders that request tokens in small amounts share the rate fairly.
+ *
+ * @author Ankeraout
+ *
+ */
+public class TokenBucket {
+	/**
+	 * The rate at which the bucket is refilled, in bytes per second. If this is 0,
+	 * the rate is not limited.
+	 */
+	private long rate;
+
+	/**
+	 * The maximum amount of tokens in the bucket.
+	 */
+	private double capacity;
+
+	/**
+	 * The parent bucket, or <code>null</code> if this bucket has no parent.
+	 */
+	private TokenBucket parent;
+
+	/**
+	 * The amount of tokens in the bucket. This is negative when tokens were
+	 * reserved before being available.
+	 */
+	private double tokens;
+
+	/**
+	 * The value of {@link System#nanoTime()} when the bucket was last refilled.
+	 */
+	private long lastRefillTime;
+
+	/**
+	 * This lock protects the state of the bucket. It is fair, so that the
+	 * requests for tokens are served in order.
+	 */
+	private ReentrantLock lock;
+
+	/**
+	 * Creates a new {@link TokenBucket}, which is initially full.
+	 *
+	 * @param rate     The rate at which the bucket is refilled, in bytes per
+	 *                 second, or 0 if the rate is not limited.
+	 * @param capacity The maximum amount of tokens in the bucket, that is the
+	 *                 amount of bytes that can be sent at once after a pause.
+	 * @param parent   The parent bucket, or <code>null</code> if this bucket has no
+	 *                 parent.
+	 */
+	public TokenBucket(long rate, int capacity, TokenBucket parent) {
+		this.rate = rate;
+		this.capacity = capacity;
+		this.parent = parent;
+		this.tokens = capacity;
+		this.lastRefillTime = System.nanoTime();
+		this.lock = new ReentrantLock(true);
+	}
+
+	/**
+	 * Takes the given amount of tokens from this bucket and from its parents, and
+	 * waits until they are available.
+	 *
+	 * @param amount The amount of tokens (bytes).
+	 * @throws InterruptedException If the current thread was interrupted while
+	 *                              waiting.
+	 */
+	public void acquire(int amount) throws InterruptedException {
+		// The own rate is waited for first, so that a slow sender does not hold
+		// tokens of the parent that the other senders could use.
+		if (this.rate > 0) {
+			long waitTime;
+
+			this.lock.lock();
+
+			try {
+				long now = System.nanoTime();
+				this.tokens = Math.min(this.capacity,
+						this.tokens + (now - this.lastRefillTime) * (double) this.rate / 1000000000);
+				this.lastRefillTime = now;
+
+				// Reserve the tokens, and wait for them outside of the lock
+				this.tokens -= amount;
+				waitTime = this.tokens < 0 ? (long) (-this.tokens * 1000000000 / this.rate) : 0;
+			} finally {
+				this.lock.unlock();
+			}
+
+			if (waitTime > 0) {
+				TimeUnit.NANOSECONDS.sleep(waitTime);
+			}
+		}
+
+		if (this.parent != null) {
+			this.parent.acquire(amount);
+		}
+	}
+}
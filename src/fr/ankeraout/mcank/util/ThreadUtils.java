@@ -0,0 +1,83 @@
+package fr.ankeraout.mcank.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class contains utility methods for creating threads. This class cannot
+ * be instantiated, therefore it does not contain any constructor that is not
+ * private.
+ * 
+ * @author Ankeraout
+ *
+ */
+public final class ThreadUtils {
+	/**
+	 * The factory that creates virtual threads, or <code>null</code> if the
+	 * running JRE does not support virtual threads.
+	 */
+	private static final ThreadFactory virtualThreadFactory = ThreadUtils.createVirtualThreadFactory();
+
+	/**
+	 * The only constructor of this class is private because this class cannot be
+	 * instantiated.
+	 */
+	private ThreadUtils() {
+		// This will never be called
+	}
+
+	/**
+	 * Creates a factory of virtual threads. Virtual threads only exist since Java
+	 * 21, and the server must still run on older versions, so the factory is
+	 * obtained by reflection.
+	 * 
+	 * @return A factory of virtual threads, or <code>null</code> if the running JRE
+	 *         does not support virtual threads.
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			// Equivalent to Thread.ofVirtual().factory()
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factoryMethod = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factoryMethod.invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a boolean value that determines whether the running JRE supports
+	 * virtual threads.
+	 * 
+	 * @return A boolean value that determines whether the running JRE supports
+	 *         virtual threads.
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return ThreadUtils.virtualThreadFactory != null;
+	}
+
+	/**
+	 * Returns a factory of virtual threads.
+	 * 
+	 * @return A factory of virtual threads.
+	 * @throws UnsupportedOperationException If the running JRE does not support
+	 *                                       virtual threads.
+	 */
+	public static ThreadFactory getVirtualThreadFactory() {
+		if (ThreadUtils.virtualThreadFactory == null) {
+			throw new UnsupportedOperationException("The running JRE does not support virtual threads.");
+		}
+
+		return ThreadUtils.virtualThreadFactory;
+	}
+
+	/**
+	 * Returns a factory of platform threads. The threads created by this factory
+	 * are the same as the ones created with {@link Thread#Thread(Runnable)}.
+	 * 
+	 * @return A factory of platform threads.
+	 */
+	public static ThreadFactory getPlatformThreadFactory() {
+		return (task) -> new Thread(task);
+	}
+}
@@ -0,0 +1,165 @@
+package fr.ankeraout.mcank.world;
+
+import java.util.Arrays;
+
+/**
+ * This class is a set of block indexes that keeps the order in which the
+ * indexes were added. It is used for collecting the blocks that have changed
+ * during a tick, so that a block that changes several times is only sent once.
+ * 
+ * The indexes are stored in arrays of <code>int</code>, and the arrays are
+ * kept when the set is cleared, so adding an index does not create any object
+ * once the set has grown to the usual amount of block changes of a tick. The
+ * duplicates are detected with an open addressing hash table, whose size
+ * depends on the amount of indexes rather than on the size of the world.
+ * 
+ * This class is not thread-safe: the world calls it while holding its lock.
+ * 
+ * @author Ankeraout
+ *
+ */
+final class BlockIndexSet {
+	/**
+	 * The initial amount of indexes that the set can contain without growing.
+	 */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The indexes, in the order in which they were added.
+	 */
+	private int[] indexes;
+
+	/**
+	 * The amount of indexes in the set.
+	 */
+	private int size;
+
+	/**
+	 * The hash table of the indexes. An empty slot contains -1. Its length is a
+	 * power of 2 that is at least twice the length of
+	 * {@link BlockIndexSet#indexes}.
+	 */
+	private int[] table;
+
+	/**
+	 * Creates a new empty set.
+	 */
+	BlockIndexSet() {
+		this.indexes = new int[BlockIndexSet.INITIAL_CAPACITY];
+		this.size = 0;
+		this.table = new int[BlockIndexSet.INITIAL_CAPACITY * 2];
+
+		Arrays.fill(this.table, -1);
+	}
+
+	/**
+	 * Returns the slot of the hash table where the given index is stored, or the
+	 * empty slot where it must be stored if it is not in the set.
+	 * 
+	 * @param index The block index.
+	 * @return The slot of the index in the hash table.
+	 */
+	private int findSlot(int index) {
+		int mask = this.table.length - 1;
+		int hash = index * 0x9E3779B9;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+
+		while (this.table[slot] != -1 && this.table[slot] != index) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	/**
+	 * Adds the given index to the set, unless it is already in the set.
+	 * 
+	 * @param index The block index. It must not be negative.
+	 * @return <code>true</code> if the index was added, <code>false</code> if it
+	 *         was already in the set.
+	 */
+	boolean add(int index) {
+		int slot = this.findSlot(index);
+
+		if (this.table[slot] == index) {
+			return false;
+		}
+
+		if (this.size == this.indexes.length) {
+			this.grow();
+			slot = this.findSlot(index);
+		}
+
+		this.table[slot] = index;
+		this.indexes[this.size++] = index;
+		return true;
+	}
+
+	/**
+	 * Adds all the indexes of the given set to this set.
+	 * 
+	 * @param set The set whose indexes are added.
+	 */
+	void addAll(BlockIndexSet set) {
+		for (int i = 0; i < set.size; i++) {
+			this.add(set.indexes[i]);
+		}
+	}
+
+	/**
+	 * Doubles the capacity of the set.
+	 */
+	private void grow() {
+		this.indexes = Arrays.copyOf(this.indexes, this.indexes.length * 2);
+		this.table = new int[this.indexes.length * 2];
+
+		Arrays.fill(this.table, -1);
+
+		for (int i = 0; i < this.size; i++) {
+			this.table[this.findSlot(this.indexes[i])] = this.indexes[i];
+		}
+	}
+
+	/**
+	 * Returns the index at the given position of the set.
+	 * 
+	 * @param position The position, between 0 and the size of the set.
+	 * @return The block index that was added at this position.
+	 */
+	int get(int position) {
+		return this.indexes[position];
+	}
+
+	/**
+	 * Returns the amount of indexes in the set.
+	 * 
+	 * @return The amount of indexes in the set.
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns a boolean value that determines whether the set is empty.
+	 * 
+	 * @return A boolean value that determines whether the set is empty.
+	 */
+	boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Removes all the indexes from the set. The memory of the set is kept.
+	 */
+	void clear() {
+		// Emptying the used slots is faster than filling the table when the set
+		// contains few indexes. They are emptied in the reverse order, so the slots
+		// that an index has skipped when it was added are still used when it is
+		// looked up.
+		for (int i = this.size - 1; i >= 0; i--) {
+			this.table[this.findSlot(this.indexes[i])] = -1;
+		}
+
+		this.size = 0;
+	}
+}
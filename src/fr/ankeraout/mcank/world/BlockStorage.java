@@ -0,0 +1,155 @@
+package fr.ankeraout.mcank.world;
+
+/**
+ * This interface must be implemented by the objects that store the block data
+ * of a {@link World}. A block storage has fixed dimensions, and every block is
+ * identified either by its coordinates, or by its index. The index of a block
+ * can be calculated from its coordinates with the following formula:
+ * <code>index = (y * depth + z) * width + x</code>. This is also the order in
+ * which the blocks are sent to the clients and written in the world files.
+ * 
+ * The block storages are not thread-safe. The block storage of a world must
+ * only be accessed while holding the lock of the world.
+ * 
+ * @author Ankeraout
+ *
+ */
+public interface BlockStorage {
+	/**
+	 * Returns the width of the storage in blocks.
+	 * 
+	 * @return The width of the storage in blocks.
+	 */
+	public int getWidth();
+
+	/**
+	 * Returns the height of the storage in blocks.
+	 * 
+	 * @return The height of the storage in blocks.
+	 */
+	public int getHeight();
+
+	/**
+	 * Returns the depth of the storage in blocks.
+	 * 
+	 * @return The depth of the storage in blocks.
+	 */
+	public int getDepth();
+
+	/**
+	 * Returns the amount of blocks in the storage.
+	 * 
+	 * @return The amount of blocks in the storage.
+	 */
+	public default int getVolume() {
+		return this.getWidth() * this.getHeight() * this.getDepth();
+	}
+
+	/**
+	 * Returns the ID of the block at the given coordinates. The coordinates are
+	 * not checked.
+	 * 
+	 * @param x The position of the block on the X axis.
+	 * @param y The position of the block on the Y axis.
+	 * @param z The position of the block on the Z axis.
+	 * @return The ID of the block, between 0 and 255.
+	 */
+	public int getBlock(int x, int y, int z);
+
+	/**
+	 * Sets the ID of the block at the given coordinates. The coordinates are not
+	 * checked.
+	 * 
+	 * @param x       The position of the block on the X axis.
+	 * @param y       The position of the block on the Y axis.
+	 * @param z       The position of the block on the Z axis.
+	 * @param blockId The ID of the block, between 0 and 255.
+	 */
+	public void setBlock(int x, int y, int z, int blockId);
+
+	/**
+	 * Copies the IDs of a range of consecutive blocks into the given buffer.
+	 * 
+	 * @param index  The index of the first block to copy.
+	 * @param buffer The buffer where the block IDs are written.
+	 * @param offset The offset in the buffer of the first block ID.
+	 * @param length The amount of blocks to copy.
+	 */
+	public void getBlocks(int index, byte[] buffer, int offset, int length);
+
+	/**
+	 * Sets the IDs of a range of consecutive blocks from the given buffer.
+	 * 
+	 * @param index  The index of the first block to set.
+	 * @param buffer The buffer that contains the block IDs.
+	 * @param offset The offset in the buffer of the first block ID.
+	 * @param length The amount of blocks to set.
+	 */
+	public void setBlocks(int index, byte[] buffer, int offset, int length);
+
+	/**
+	 * Copies the IDs of the blocks of a section of 16x16x16 blocks into the given
+	 * buffer. The index of a block in the buffer is
+	 * <code>(y * 16 + z) * 16 + x</code>, where the coordinates are relative to the
+	 * section. The dimensions of the storage must be multiples of 16.
+	 * 
+	 * @param sectionX The position of the section on the X axis, in sections.
+	 * @param sectionY The position of the section on the Y axis, in sections.
+	 * @param sectionZ The position of the section on the Z axis, in sections.
+	 * @param buffer   The buffer where the 4096 block IDs are written.
+	 */
+	public default void getSection(int sectionX, int sectionY, int sectionZ, byte[] buffer) {
+		for (int y = 0; y < 16; y++) {
+			for (int z = 0; z < 16; z++) {
+				int index = ((sectionY * 16 + y) * this.getDepth() + sectionZ * 16 + z) * this.getWidth()
+						+ sectionX * 16;
+				this.getBlocks(index, buffer, (y * 16 + z) * 16, 16);
+			}
+		}
+	}
+
+	/**
+	 * Sets the IDs of the blocks of a section of 16x16x16 blocks from the given
+	 * buffer. See {@link #getSection(int, int, int, byte[])} for the layout of the
+	 * buffer.
+	 * 
+	 * @param sectionX The position of the section on the X axis, in sections.
+	 * @param sectionY The position of the section on the Y axis, in sections.
+	 * @param sectionZ The position of the section on the Z axis, in sections.
+	 * @param buffer   The buffer that contains the 4096 block IDs.
+	 */
+	public default void setSection(int sectionX, int sectionY, int sectionZ, byte[] buffer) {
+		for (int y = 0; y < 16; y++) {
+			for (int z = 0; z < 16; z++) {
+				int index = ((sectionY * 16 + y) * this.getDepth() + sectionZ * 16 + z) * this.getWidth()
+						+ sectionX * 16;
+				this.setBlocks(index, buffer, (y * 16 + z) * 16, 16);
+			}
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the storage. The snapshot contains the current blocks
+	 * of this storage, and it is not affected by the later modifications of this
+	 * storage (and the other way round). Taking a snapshot is cheap: the blocks are
+	 * only copied, by parts, when they are modified afterwards.
+	 * 
+	 * Once taken, a snapshot can be read by another thread without holding the
+	 * lock of the world, as long as nobody modifies the snapshot.
+	 * 
+	 * @return The snapshot of the storage.
+	 * @throws UnsupportedOperationException If this storage does not support
+	 *                                       snapshots.
+	 */
+	public BlockStorage snapshot();
+
+	/**
+	 * Returns the amount of bytes of the Java heap used by the block data of this
+	 * storage. By default, this is one byte per block.
+	 * 
+	 * @return The amount of bytes of the Java heap used by the block data.
+	 */
+	public default long getDataSize() {
+		return this.getVolume();
+	}
+}
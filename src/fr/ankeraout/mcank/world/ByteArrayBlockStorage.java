@@ -0,0 +1,170 @@
+package fr.ankeraout.mcank.world;
+
+import java.util.Arrays;
+
+/**
+ * This class is a {@link BlockStorage} that stores one byte per block in heap
+ * arrays. Classic block IDs all fit in a byte, so this storage uses 4 times
+ * less memory than an array of integers.
+ * 
+ * The blocks are split in pages of {@link #PAGE_SIZE} blocks, so that the
+ * snapshots only need to copy the pages that are modified after them.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class ByteArrayBlockStorage implements BlockStorage {
+	/**
+	 * The amount of blocks in a page. This must be a power of 2.
+	 */
+	private static final int PAGE_SIZE = 65536;
+
+	/**
+	 * The amount of bits to shift a block index to the right to get its page.
+	 */
+	private static final int PAGE_SHIFT = Integer.numberOfTrailingZeros(ByteArrayBlockStorage.PAGE_SIZE);
+
+	/**
+	 * The width of the storage in blocks.
+	 */
+	private int width;
+
+	/**
+	 * The height of the storage in blocks.
+	 */
+	private int height;
+
+	/**
+	 * The depth of the storage in blocks.
+	 */
+	private int depth;
+
+	/**
+	 * The pages that contain the block IDs, in index order. The last page can be
+	 * smaller than the others.
+	 */
+	private byte[][] pages;
+
+	/**
+	 * Tells, for every page, whether it is shared with a snapshot. A shared page
+	 * must be copied before it is modified.
+	 */
+	private boolean[] shared;
+
+	/**
+	 * Creates a new {@link ByteArrayBlockStorage} filled with air.
+	 * 
+	 * @param width  The width of the storage in blocks.
+	 * @param height The height of the storage in blocks.
+	 * @param depth  The depth of the storage in blocks.
+	 */
+	public ByteArrayBlockStorage(int width, int height, int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+
+		int volume = width * height * depth;
+		this.pages = new byte[(volume + ByteArrayBlockStorage.PAGE_SIZE - 1) / ByteArrayBlockStorage.PAGE_SIZE][];
+		this.shared = new boolean[this.pages.length];
+
+		for (int i = 0; i < this.pages.length; i++) {
+			this.pages[i] = new byte[Math.min(ByteArrayBlockStorage.PAGE_SIZE,
+					volume - i * ByteArrayBlockStorage.PAGE_SIZE)];
+		}
+	}
+
+	/**
+	 * Creates a new {@link ByteArrayBlockStorage} that shares all the given pages.
+	 * 
+	 * @param width  The width of the storage in blocks.
+	 * @param height The height of the storage in blocks.
+	 * @param depth  The depth of the storage in blocks.
+	 * @param pages  The pages of the storage.
+	 */
+	private ByteArrayBlockStorage(int width, int height, int depth, byte[][] pages) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.pages = pages;
+		this.shared = new boolean[pages.length];
+		Arrays.fill(this.shared, true);
+	}
+
+	@Override
+	public int getWidth() {
+		return this.width;
+	}
+
+	@Override
+	public int getHeight() {
+		return this.height;
+	}
+
+	@Override
+	public int getDepth() {
+		return this.depth;
+	}
+
+	@Override
+	public int getBlock(int x, int y, int z) {
+		int index = (y * this.depth + z) * this.width + x;
+		return this.pages[index >> ByteArrayBlockStorage.PAGE_SHIFT][index & (ByteArrayBlockStorage.PAGE_SIZE - 1)]
+				& 0xff;
+	}
+
+	@Override
+	public void setBlock(int x, int y, int z, int blockId) {
+		int index = (y * this.depth + z) * this.width + x;
+		this.getWritablePage(index >> ByteArrayBlockStorage.PAGE_SHIFT)[index
+				& (ByteArrayBlockStorage.PAGE_SIZE - 1)] = (byte) blockId;
+	}
+
+	@Override
+	public void getBlocks(int index, byte[] buffer, int offset, int length) {
+		while (length > 0) {
+			int pageOffset = index & (ByteArrayBlockStorage.PAGE_SIZE - 1);
+			int run = Math.min(length, ByteArrayBlockStorage.PAGE_SIZE - pageOffset);
+			System.arraycopy(this.pages[index >> ByteArrayBlockStorage.PAGE_SHIFT], pageOffset, buffer, offset, run);
+
+			index += run;
+			offset += run;
+			length -= run;
+		}
+	}
+
+	@Override
+	public void setBlocks(int index, byte[] buffer, int offset, int length) {
+		while (length > 0) {
+			int pageOffset = index & (ByteArrayBlockStorage.PAGE_SIZE - 1);
+			int run = Math.min(length, ByteArrayBlockStorage.PAGE_SIZE - pageOffset);
+			System.arraycopy(buffer, offset, this.getWritablePage(index >> ByteArrayBlockStorage.PAGE_SHIFT),
+					pageOffset, run);
+
+			index += run;
+			offset += run;
+			length -= run;
+		}
+	}
+
+	@Override
+	public BlockStorage snapshot() {
+		Arrays.fill(this.shared, true);
+		return new ByteArrayBlockStorage(this.width, this.height, this.depth, this.pages.clone());
+	}
+
+	/**
+	 * Returns the page with the given index, after copying it if it is shared with
+	 * a snapshot.
+	 * 
+	 * @param pageIndex The index of the page.
+	 * @return The page, that can be modified.
+	 */
+	private byte[] getWritablePage(int pageIndex) {
+		if (this.shared[pageIndex]) {
+			this.pages[pageIndex] = this.pages[pageIndex].clone();
+			this.shared[pageIndex] = false;
+		}
+
+		return this.pages[pageIndex];
+	}
+}
@@ -0,0 +1,128 @@
+package fr.ankeraout.mcank.world;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * This class is a {@link BlockStorage} that stores one byte per block in a
+ * memory-mapped region of the world file. The block data does not live on the
+ * Java heap, so the garbage collector never scans it, and the pages are only
+ * read from the disk when they are accessed. The modifications are written to
+ * the world file by the operating system, or when {@link #force()} is called.
+ * 
+ * The mapping is released when this object is garbage collected, so it must
+ * not be kept after the world is unloaded.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class MappedBlockStorage implements BlockStorage {
+	/**
+	 * The width of the storage in blocks.
+	 */
+	private int width;
+
+	/**
+	 * The height of the storage in blocks.
+	 */
+	private int height;
+
+	/**
+	 * The depth of the storage in blocks.
+	 */
+	private int depth;
+
+	/**
+	 * The mapped region of the world file that contains the block IDs, in index
+	 * order. Only absolute accesses are made on this buffer, so that several
+	 * threads can read it at the same time.
+	 */
+	private MappedByteBuffer blocks;
+
+	/**
+	 * Creates a new {@link MappedBlockStorage} from the given mapped region.
+	 * 
+	 * @param width  The width of the storage in blocks.
+	 * @param height The height of the storage in blocks.
+	 * @param depth  The depth of the storage in blocks.
+	 * @param blocks The mapped region of the world file that contains the block
+	 *               IDs. Its capacity must be at least the volume of the storage.
+	 */
+	public MappedBlockStorage(int width, int height, int depth, MappedByteBuffer blocks) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.blocks = blocks;
+	}
+
+	@Override
+	public int getWidth() {
+		return this.width;
+	}
+
+	@Override
+	public int getHeight() {
+		return this.height;
+	}
+
+	@Override
+	public int getDepth() {
+		return this.depth;
+	}
+
+	@Override
+	public int getBlock(int x, int y, int z) {
+		return this.blocks.get((y * this.depth + z) * this.width + x) & 0xff;
+	}
+
+	@Override
+	public void setBlock(int x, int y, int z, int blockId) {
+		this.blocks.put((y * this.depth + z) * this.width + x, (byte) blockId);
+	}
+
+	@Override
+	public void getBlocks(int index, byte[] buffer, int offset, int length) {
+		// The absolute bulk methods of ByteBuffer require Java 13, so a view is
+		// positioned instead. The view also leaves the position of the buffer
+		// untouched for the other threads.
+		ByteBuffer view = this.blocks.duplicate();
+		view.position(index);
+		view.get(buffer, offset, length);
+	}
+
+	@Override
+	public void setBlocks(int index, byte[] buffer, int offset, int length) {
+		ByteBuffer view = this.blocks.duplicate();
+		view.position(index);
+		view.put(buffer, offset, length);
+	}
+
+	/**
+	 * The blocks of a mapped storage live in the world file, so they cannot be
+	 * captured without copying the whole storage.
+	 * 
+	 * @throws UnsupportedOperationException Always.
+	 */
+	@Override
+	public BlockStorage snapshot() {
+		throw new UnsupportedOperationException("A mapped block storage does not support snapshots.");
+	}
+
+	/**
+	 * The blocks of a mapped storage live in the page cache of the operating
+	 * system, so they do not use the Java heap.
+	 * 
+	 * @return Always 0.
+	 */
+	@Override
+	public long getDataSize() {
+		return 0;
+	}
+
+	/**
+	 * Writes the modified blocks to the world file.
+	 */
+	public void force() {
+		this.blocks.force();
+	}
+}
@@ -0,0 +1,437 @@
+package fr.ankeraout.mcank.world;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import fr.ankeraout.mcank.Player;
+import fr.ankeraout.mcank.math.FixedOrientation;
+import fr.ankeraout.mcank.math.FixedPosition;
+import fr.ankeraout.mcank.net.PacketCodec;
+
+/**
+ * This class sends the movements of the players of a world to the other
+ * players of the world, with the smallest packets possible. It remembers, for
+ * every observer, the last position and orientation of every player that was
+ * sent to it, and only sends the difference: a POSITION_RELATIVE packet if the
+ * player has only moved, an ORIENTATION packet if the player has only turned, a
+ * POSITION_ORIENTATION_RELATIVE packet if it has done both, and a
+ * POSITION_ORIENTATION_ABSOLUTE packet if the move does not fit in a byte. The
+ * players who have not moved are skipped.
+ * 
+ * If the world has a {@link PlayerGrid}, an observer only receives the
+ * movements of the players who are within the movement radius on every tick.
+ * The movements of the farther players are sent every few ticks (see the
+ * distant-movement-interval property), from the state that the observer knows,
+ * so that the farther players still end up at the right place.
+ * 
+ * The state of a player is packed in a <code>long</code>, as it is sent in the
+ * packets: the X, Y and Z coordinates in 1/32 of block (16 bits each), the yaw
+ * and the pitch in 1/256 of turn (8 bits each). Most observers know the state
+ * that was sent on the previous tick, so the packet that moves a player from
+ * this state is encoded once per tick and shared by these observers.
+ * 
+ * This class is not thread-safe: the world calls it while holding its players
+ * lock.
+ * 
+ * @author Ankeraout
+ *
+ */
+final class MovementBroadcaster {
+	/**
+	 * The state of the players as it was on the previous tick, indexed by player
+	 * ID.
+	 */
+	private long[] previousStates;
+
+	/**
+	 * The state of the players on the current tick, indexed by player ID.
+	 */
+	private long[] currentStates;
+
+	/**
+	 * The players of the world who are visible to the other players, indexed by
+	 * player ID.
+	 */
+	private Player[] entities;
+
+	/**
+	 * The packets that move the players from their previous state to their
+	 * current state on the current tick, indexed by player ID. The value is
+	 * <code>null</code> if the player has not moved.
+	 */
+	private ByteBuffer[] sharedPackets;
+
+	/**
+	 * The last state of every player sent to every observer, indexed by player ID.
+	 */
+	private IdentityHashMap<Player, long[]> observerStates;
+
+	/**
+	 * The spatial index of the visible players, or <code>null</code> if all the
+	 * movements are sent on every tick.
+	 */
+	private PlayerGrid grid;
+
+	/**
+	 * The amount of ticks between 2 updates of the movements of the players who
+	 * are farther than the movement radius.
+	 */
+	private int distantMovementInterval;
+
+	/**
+	 * The amount of ticks since the creation of this object.
+	 */
+	private long tickCount;
+
+	/**
+	 * The players who are within the movement radius of the current observer,
+	 * indexed by player ID. This array is reused from one observer to the next.
+	 */
+	private boolean[] nearEntities;
+
+	/**
+	 * Creates a new movement broadcaster.
+	 * 
+	 * @param maxEntities             The maximum amount of visible players, that
+	 *                                is, the amount of player IDs.
+	 * @param grid                    The spatial index of the visible players, or
+	 *                                <code>null</code> if all the movements must
+	 *                                be sent on every tick.
+	 * @param distantMovementInterval The amount of ticks between 2 updates of the
+	 *                                movements of the players who are farther
+	 *                                than the movement radius.
+	 */
+	MovementBroadcaster(int maxEntities, PlayerGrid grid, int distantMovementInterval) {
+		this.previousStates = new long[maxEntities];
+		this.currentStates = new long[maxEntities];
+		this.entities = new Player[maxEntities];
+		this.sharedPackets = new ByteBuffer[maxEntities];
+		this.observerStates = new IdentityHashMap<Player, long[]>();
+		this.grid = grid;
+		this.distantMovementInterval = Math.max(distantMovementInterval, 1);
+		this.tickCount = 0;
+		this.nearEntities = new boolean[maxEntities];
+	}
+
+	/**
+	 * Packs the given position and orientation, as they are sent in the packets.
+	 * 
+	 * @param x     The X coordinate, in 1/32 of block.
+	 * @param y     The Y coordinate, in 1/32 of block.
+	 * @param z     The Z coordinate, in 1/32 of block.
+	 * @param yaw   The yaw, in 1/256 of turn.
+	 * @param pitch The pitch, in 1/256 of turn.
+	 * @return The packed state.
+	 */
+	private static long pack(int x, int y, int z, int yaw, int pitch) {
+		return ((x & 0xffffL) << 48) | ((y & 0xffffL) << 32) | ((z & 0xffffL) << 16) | ((yaw & 0xff) << 8)
+				| (pitch & 0xff);
+	}
+
+	/**
+	 * Packs the current position and orientation of the given player.
+	 * 
+	 * @param player The player.
+	 * @return The packed state of the player.
+	 */
+	private static long pack(Player player) {
+		FixedPosition position = player.getPosition();
+		FixedOrientation orientation = player.getOrientation();
+
+		return MovementBroadcaster.pack(position.getX(), position.getY(), position.getZ(), orientation.getYaw(),
+				orientation.getPitch());
+	}
+
+	/**
+	 * Returns the X coordinate of the given state.
+	 * 
+	 * @param state The packed state.
+	 * @return The X coordinate, in 1/32 of block.
+	 */
+	private static int getX(long state) {
+		return (short) (state >>> 48);
+	}
+
+	/**
+	 * Returns the Y coordinate of the given state.
+	 * 
+	 * @param state The packed state.
+	 * @return The Y coordinate, in 1/32 of block.
+	 */
+	private static int getY(long state) {
+		return (short) (state >>> 32);
+	}
+
+	/**
+	 * Returns the Z coordinate of the given state.
+	 * 
+	 * @param state The packed state.
+	 * @return The Z coordinate, in 1/32 of block.
+	 */
+	private static int getZ(long state) {
+		return (short) (state >>> 16);
+	}
+
+	/**
+	 * Returns the yaw of the given state.
+	 * 
+	 * @param state The packed state.
+	 * @return The yaw, in 1/256 of turn.
+	 */
+	private static int getYaw(long state) {
+		return (int) (state >>> 8) & 0xff;
+	}
+
+	/**
+	 * Returns the pitch of the given state.
+	 * 
+	 * @param state The packed state.
+	 * @return The pitch, in 1/256 of turn.
+	 */
+	private static int getPitch(long state) {
+		return (int) state & 0xff;
+	}
+
+	/**
+	 * Returns a boolean value that determines whether the given move fits in the
+	 * byte of a relative movement packet.
+	 * 
+	 * @param delta The move, in 1/32 of block.
+	 * @return <code>true</code> if the move fits in a byte.
+	 */
+	private static boolean fitsInByte(int delta) {
+		return delta >= Byte.MIN_VALUE && delta <= Byte.MAX_VALUE;
+	}
+
+	/**
+	 * Encodes the smallest packet that moves the given player from the given
+	 * state to the other given state, as seen by an observer.
+	 * 
+	 * @param entityId The ID of the player.
+	 * @param from     The state of the player known by the observer.
+	 * @param to       The new state of the player. It must be different from the
+	 *                 state known by the observer.
+	 * @return The encoded packet.
+	 */
+	private static ByteBuffer encodeMovement(int entityId, long from, long to) {
+		int yaw = MovementBroadcaster.getYaw(to);
+		int pitch = MovementBroadcaster.getPitch(to);
+
+		// The coordinates are in the 48 upper bits, and the angles in the 16 lower
+		// bits
+		if ((from >>> 16) == (to >>> 16)) {
+			return PacketCodec.orientation(entityId, yaw, pitch);
+		}
+
+		int dx = MovementBroadcaster.getX(to) - MovementBroadcaster.getX(from);
+		int dy = MovementBroadcaster.getY(to) - MovementBroadcaster.getY(from);
+		int dz = MovementBroadcaster.getZ(to) - MovementBroadcaster.getZ(from);
+
+		if (!MovementBroadcaster.fitsInByte(dx) || !MovementBroadcaster.fitsInByte(dy)
+				|| !MovementBroadcaster.fitsInByte(dz)) {
+			return PacketCodec.positionOrientation(entityId, MovementBroadcaster.getX(to),
+					MovementBroadcaster.getY(to), MovementBroadcaster.getZ(to), yaw, pitch);
+		}
+
+		if ((from & 0xffff) == (to & 0xffff)) {
+			return PacketCodec.positionRelative(entityId, dx, dy, dz);
+		}
+
+		return PacketCodec.positionOrientationRelative(entityId, dx, dy, dz, yaw, pitch);
+	}
+
+	/**
+	 * Registers the given player as an observer of the movements. It does not
+	 * know any player yet.
+	 * 
+	 * @param observer The player who has joined the world.
+	 */
+	void addObserver(Player observer) {
+		this.observerStates.put(observer, new long[this.entities.length]);
+	}
+
+	/**
+	 * Forgets the given observer.
+	 * 
+	 * @param observer The player who has left the world.
+	 */
+	void removeObserver(Player observer) {
+		this.observerStates.remove(observer);
+	}
+
+	/**
+	 * Makes the given player visible, with its current position and orientation.
+	 * All the current observers are considered to know this state, so the
+	 * returned packet must be sent to all of them.
+	 * 
+	 * @param entity The player to spawn. Its ID must be set.
+	 * @return The SPAWN_PLAYER packet that spawns the player.
+	 */
+	ByteBuffer spawnEntity(Player entity) {
+		int entityId = entity.getEntityId();
+		long state = MovementBroadcaster.pack(entity);
+
+		this.entities[entityId] = entity;
+		this.previousStates[entityId] = state;
+		this.currentStates[entityId] = state;
+		this.moveInGrid(entityId, state);
+
+		for (long[] states : this.observerStates.values()) {
+			states[entityId] = state;
+		}
+
+		return this.encodeSpawn(entityId, state);
+	}
+
+	/**
+	 * Makes the given visible player known by the given observer, with the state
+	 * of the player on the last tick.
+	 * 
+	 * @param observer The player who must see the other player.
+	 * @param entityId The ID of the visible player.
+	 * @return The SPAWN_PLAYER packet that spawns the player for the observer.
+	 */
+	ByteBuffer spawnEntityFor(Player observer, int entityId) {
+		long state = this.currentStates[entityId];
+		this.observerStates.get(observer)[entityId] = state;
+		return this.encodeSpawn(entityId, state);
+	}
+
+	/**
+	 * Encodes a SPAWN_PLAYER packet.
+	 * 
+	 * @param entityId The ID of the player to spawn.
+	 * @param state    The state of the player.
+	 * @return The encoded packet.
+	 */
+	private ByteBuffer encodeSpawn(int entityId, long state) {
+		return PacketCodec.spawnPlayer(entityId, this.entities[entityId].getEncodedName(),
+				MovementBroadcaster.getX(state), MovementBroadcaster.getY(state), MovementBroadcaster.getZ(state),
+				MovementBroadcaster.getYaw(state), MovementBroadcaster.getPitch(state));
+	}
+
+	/**
+	 * Makes the player with the given ID invisible. Its ID can be given to another
+	 * player afterwards.
+	 * 
+	 * @param entityId The ID of the player.
+	 */
+	void despawnEntity(int entityId) {
+		this.entities[entityId] = null;
+		this.sharedPackets[entityId] = null;
+
+		if (this.grid != null) {
+			this.grid.remove(entityId);
+		}
+	}
+
+	/**
+	 * Updates the position of the given player in the spatial index, if any.
+	 * 
+	 * @param entityId The ID of the player.
+	 * @param state    The new state of the player.
+	 */
+	private void moveInGrid(int entityId, long state) {
+		if (this.grid != null) {
+			this.grid.move(entityId, MovementBroadcaster.getX(state), MovementBroadcaster.getY(state),
+					MovementBroadcaster.getZ(state));
+		}
+	}
+
+	/**
+	 * Collects the movements of the given players, and encodes the packets that
+	 * are shared by the observers who know the previous state of the players.
+	 * This must be called at the beginning of every tick, before
+	 * {@link MovementBroadcaster#appendPackets(Player, ByteBuffer[], int)}.
+	 * 
+	 * @param players The players of the world.
+	 */
+	void beginTick(List<Player> players) {
+		for (Player player : players) {
+			int entityId = player.getEntityId();
+
+			if (!player.pollMovement() || entityId < 0) {
+				continue;
+			}
+
+			long state = MovementBroadcaster.pack(player);
+
+			if (state != this.previousStates[entityId]) {
+				this.currentStates[entityId] = state;
+				this.moveInGrid(entityId, state);
+				this.sharedPackets[entityId] = MovementBroadcaster
+						.encodeMovement(entityId, this.previousStates[entityId], state).asReadOnlyBuffer();
+			}
+		}
+	}
+
+	/**
+	 * Appends the movement packets of the current tick that the given observer
+	 * must receive to the given array. The observer is then considered to know
+	 * the current state of the players whose movement was sent. The movements of
+	 * the players who are farther than the movement radius are only sent every
+	 * few ticks. The observers do not receive them on the same tick, so that the
+	 * distant movements are spread over the ticks.
+	 * 
+	 * @param observer The player who receives the packets.
+	 * @param packets  The array that receives the packets. It must have room for
+	 *                 a packet per player ID after the given offset.
+	 * @param offset   The index of the first packet in the array.
+	 * @return The amount of appended packets.
+	 */
+	int appendPackets(Player observer, ByteBuffer[] packets, int offset) {
+		long[] states = this.observerStates.get(observer);
+		int count = 0;
+
+		if (states == null) {
+			return 0;
+		}
+
+		// The invisible observers have no position in the grid, they receive all
+		// the movements
+		int observerId = observer.getEntityId();
+		boolean filtered = this.grid != null && observerId >= 0
+				&& (this.tickCount + observerId) % this.distantMovementInterval != 0;
+
+		if (filtered) {
+			Arrays.fill(this.nearEntities, false);
+			this.grid.markNear(observerId, this.nearEntities);
+		}
+
+		for (int entityId = 0; entityId < this.entities.length; entityId++) {
+			Player entity = this.entities[entityId];
+			long state = this.currentStates[entityId];
+
+			if (entity == null || entity == observer || states[entityId] == state) {
+				continue;
+			}
+
+			if (filtered && !this.nearEntities[entityId]) {
+				continue;
+			}
+
+			if (states[entityId] == this.previousStates[entityId] && this.sharedPackets[entityId] != null) {
+				packets[offset + count] = this.sharedPackets[entityId].duplicate();
+			} else {
+				packets[offset + count] = MovementBroadcaster.encodeMovement(entityId, states[entityId], state);
+			}
+
+			states[entityId] = state;
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Ends the current tick: the current state of the players becomes their
+	 * previous state.
+	 */
+	void endTick() {
+		System.arraycopy(this.currentStates, 0, this.previousStates, 0, this.currentStates.length);
+		Arrays.fill(this.sharedPackets, null);
+		this.tickCount++;
+	}
+}
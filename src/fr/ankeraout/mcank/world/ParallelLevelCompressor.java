@@ -0,0 +1,408 @@
+package fr.ankeraout.mcank.world;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This class compresses level data (the 32-bit world volume followed by one
+ * byte per block) into a gzip stream, using several threads. The level data is
+ * split into slabs which are deflated independently on a {@link ForkJoinPool}.
+ * Every slab but the last one ends on a sync-flush boundary, so the compressed
+ * slabs can be concatenated into a single deflate stream. The result is one
+ * ordinary gzip member that any gzip decoder (and therefore any ClassiCube
+ * client) can read.
+ * 
+ * To keep the compression ratio close to the one of a single stream, every slab
+ * uses the last 32 KiB of the previous slab as its preset dictionary.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class ParallelLevelCompressor {
+	/**
+	 * The default size of the slabs in bytes.
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+	/**
+	 * The size of the deflate window, which is also the maximum useful size of a
+	 * preset dictionary.
+	 */
+	private static final int DICTIONARY_SIZE = 32768;
+
+	/**
+	 * The header of the gzip member: magic number, deflate method, no flags, no
+	 * modification time, no extra flags, unknown operating system.
+	 */
+	private static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte) 0x8b, 0x08, 0x00, 0x00, 0x00, 0x00, 0x00,
+			0x00, (byte) 0xff };
+
+	/**
+	 * The size of the level data header (the world volume).
+	 */
+	private static final int LEVEL_HEADER_SIZE = 4;
+
+	/**
+	 * This interface must be implemented by the objects that provide the block
+	 * data to compress.
+	 * 
+	 * @author Ankeraout
+	 *
+	 */
+	public interface BlockSource {
+		/**
+		 * Copies the IDs of the given range of blocks into the given buffer. This
+		 * method may be called from several threads at the same time.
+		 * 
+		 * @param blockIndex   The index of the first block to copy.
+		 * @param buffer       The buffer where the block IDs must be written.
+		 * @param bufferOffset The offset in the buffer of the first block ID.
+		 * @param length       The amount of blocks to copy.
+		 */
+		public void getBlocks(int blockIndex, byte[] buffer, int bufferOffset, int length);
+	}
+
+	/**
+	 * The pool where the slabs are compressed.
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * The size of the slabs in bytes.
+	 */
+	private int slabSize;
+
+	/**
+	 * The compression level, as defined by {@link Deflater}.
+	 */
+	private int compressionLevel;
+
+	/**
+	 * Creates a new {@link ParallelLevelCompressor} that uses the common
+	 * {@link ForkJoinPool}, the default slab size and the default compression
+	 * level.
+	 */
+	public ParallelLevelCompressor() {
+		this(ForkJoinPool.commonPool(), ParallelLevelCompressor.DEFAULT_SLAB_SIZE, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Creates a new {@link ParallelLevelCompressor}.
+	 * 
+	 * @param pool             The pool where the slabs are compressed.
+	 * @param slabSize         The size of the slabs in bytes. It must be at least
+	 *                         the size of the deflate window (32 KiB).
+	 * @param compressionLevel The compression level, as defined by
+	 *                         {@link Deflater}.
+	 */
+	public ParallelLevelCompressor(ForkJoinPool pool, int slabSize, int compressionLevel) {
+		if (slabSize < ParallelLevelCompressor.DICTIONARY_SIZE) {
+			throw new IllegalArgumentException("The slab size must be at least 32 KiB.");
+		}
+
+		this.pool = pool;
+		this.slabSize = slabSize;
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Compresses the level data of a world.
+	 * 
+	 * @param volume The volume of the world in blocks.
+	 * @param source The object that provides the block IDs.
+	 * @return The gzip-compressed level data.
+	 */
+	public byte[] compress(int volume, BlockSource source) {
+		long levelDataSize = (long) volume + ParallelLevelCompressor.LEVEL_HEADER_SIZE;
+		int slabCount = (int) ((levelDataSize + this.slabSize - 1) / this.slabSize);
+		List<SlabTask> tasks = new ArrayList<SlabTask>(slabCount);
+
+		for (int i = 0; i < slabCount; i++) {
+			long slabStart = (long) i * this.slabSize;
+			int slabLength = (int) Math.min(this.slabSize, levelDataSize - slabStart);
+			tasks.add(new SlabTask(volume, source, slabStart, slabLength, i == slabCount - 1));
+		}
+
+		// Compress the slabs
+		if (slabCount == 1) {
+			tasks.get(0).invoke();
+		} else {
+			this.pool.invoke(new RecursiveTask<Void>() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected Void compute() {
+					ForkJoinTask.invokeAll(tasks);
+					return null;
+				}
+			});
+		}
+
+		// Stitch the slabs together and compute the checksum of the whole level data
+		int compressedSize = ParallelLevelCompressor.GZIP_HEADER.length + 8;
+		long crc = 0;
+
+		for (SlabTask task : tasks) {
+			compressedSize += task.getRawResult().length;
+			crc = ParallelLevelCompressor.combineCrc32(crc, task.crc, task.slabLength);
+		}
+
+		byte[] result = new byte[compressedSize];
+		int offset = 0;
+
+		System.arraycopy(ParallelLevelCompressor.GZIP_HEADER, 0, result, 0, ParallelLevelCompressor.GZIP_HEADER.length);
+		offset += ParallelLevelCompressor.GZIP_HEADER.length;
+
+		for (SlabTask task : tasks) {
+			byte[] compressedSlab = task.getRawResult();
+			System.arraycopy(compressedSlab, 0, result, offset, compressedSlab.length);
+			offset += compressedSlab.length;
+		}
+
+		// Write the gzip trailer: CRC32 and size of the uncompressed data, both in
+		// little endian.
+		ParallelLevelCompressor.writeIntLE(result, offset, (int) crc);
+		ParallelLevelCompressor.writeIntLE(result, offset + 4, (int) levelDataSize);
+
+		return result;
+	}
+
+	/**
+	 * Copies the given range of the level data into the given buffer. The level
+	 * data is made of the world volume (32-bit big endian), followed by the block
+	 * IDs.
+	 * 
+	 * @param volume The volume of the world in blocks.
+	 * @param source The object that provides the block IDs.
+	 * @param start  The offset of the first byte to copy in the level data.
+	 * @param buffer The buffer where the data is copied.
+	 * @param length The amount of bytes to copy.
+	 */
+	private static void readLevelData(int volume, BlockSource source, long start, byte[] buffer, int length) {
+		int bufferOffset = 0;
+
+		while (bufferOffset < length && start + bufferOffset < ParallelLevelCompressor.LEVEL_HEADER_SIZE) {
+			int shift = 24 - 8 * (int) (start + bufferOffset);
+			buffer[bufferOffset++] = (byte) (volume >>> shift);
+		}
+
+		if (bufferOffset < length) {
+			int blockIndex = (int) (start + bufferOffset - ParallelLevelCompressor.LEVEL_HEADER_SIZE);
+			source.getBlocks(blockIndex, buffer, bufferOffset, length - bufferOffset);
+		}
+	}
+
+	/**
+	 * Writes a 32-bit integer in little endian in the given array.
+	 * 
+	 * @param array  The array where the integer is written.
+	 * @param offset The offset of the integer in the array.
+	 * @param value  The value to write.
+	 */
+	private static void writeIntLE(byte[] array, int offset, int value) {
+		array[offset] = (byte) value;
+		array[offset + 1] = (byte) (value >>> 8);
+		array[offset + 2] = (byte) (value >>> 16);
+		array[offset + 3] = (byte) (value >>> 24);
+	}
+
+	/**
+	 * Returns the CRC32 of the concatenation of two blocks of data, from the CRC32
+	 * of each block. This is the algorithm of the crc32_combine() function of zlib.
+	 * 
+	 * @param crc1    The CRC32 of the first block.
+	 * @param crc2    The CRC32 of the second block.
+	 * @param length2 The length of the second block.
+	 * @return The CRC32 of the concatenation of the two blocks.
+	 */
+	static long combineCrc32(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+
+		long[] even = new long[32];
+		long[] odd = new long[32];
+
+		// Operator for one zero bit
+		odd[0] = 0xedb88320L;
+		long row = 1;
+
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+
+		// Operators for two and four zero bits
+		ParallelLevelCompressor.gf2MatrixSquare(even, odd);
+		ParallelLevelCompressor.gf2MatrixSquare(odd, even);
+
+		// Apply length2 zero bytes to crc1
+		do {
+			ParallelLevelCompressor.gf2MatrixSquare(even, odd);
+
+			if ((length2 & 1) != 0) {
+				crc1 = ParallelLevelCompressor.gf2MatrixTimes(even, crc1);
+			}
+
+			length2 >>= 1;
+
+			if (length2 == 0) {
+				break;
+			}
+
+			ParallelLevelCompressor.gf2MatrixSquare(odd, even);
+
+			if ((length2 & 1) != 0) {
+				crc1 = ParallelLevelCompressor.gf2MatrixTimes(odd, crc1);
+			}
+
+			length2 >>= 1;
+		} while (length2 != 0);
+
+		return crc1 ^ crc2;
+	}
+
+	/**
+	 * Multiplies a GF(2) 32x32 matrix by a vector.
+	 * 
+	 * @param matrix The matrix.
+	 * @param vector The vector.
+	 * @return The result of the multiplication.
+	 */
+	private static long gf2MatrixTimes(long[] matrix, long vector) {
+		long sum = 0;
+
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Computes the square of a GF(2) 32x32 matrix.
+	 * 
+	 * @param square The array where the result is written.
+	 * @param matrix The matrix to square.
+	 */
+	private static void gf2MatrixSquare(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = ParallelLevelCompressor.gf2MatrixTimes(matrix, matrix[n]);
+		}
+	}
+
+	/**
+	 * This task compresses one slab of the level data into a raw deflate stream.
+	 * 
+	 * @author Ankeraout
+	 *
+	 */
+	private class SlabTask extends RecursiveTask<byte[]> {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The volume of the world in blocks.
+		 */
+		private int volume;
+
+		/**
+		 * The object that provides the block IDs.
+		 */
+		private BlockSource source;
+
+		/**
+		 * The offset of the slab in the level data.
+		 */
+		private long slabStart;
+
+		/**
+		 * The length of the slab in bytes.
+		 */
+		private int slabLength;
+
+		/**
+		 * Determines whether this is the last slab of the level data.
+		 */
+		private boolean last;
+
+		/**
+		 * The CRC32 of the uncompressed slab. It is only valid once the task is
+		 * complete.
+		 */
+		private long crc;
+
+		/**
+		 * Creates a new {@link SlabTask}.
+		 * 
+		 * @param volume     The volume of the world in blocks.
+		 * @param source     The object that provides the block IDs.
+		 * @param slabStart  The offset of the slab in the level data.
+		 * @param slabLength The length of the slab in bytes.
+		 * @param last       Determines whether this is the last slab of the level
+		 *                   data.
+		 */
+		public SlabTask(int volume, BlockSource source, long slabStart, int slabLength, boolean last) {
+			this.volume = volume;
+			this.source = source;
+			this.slabStart = slabStart;
+			this.slabLength = slabLength;
+			this.last = last;
+		}
+
+		@Override
+		protected byte[] compute() {
+			// Read the slab, preceded by the end of the previous slab which is used as the
+			// preset dictionary.
+			int dictionaryLength = (int) Math.min(ParallelLevelCompressor.DICTIONARY_SIZE, this.slabStart);
+			byte[] input = new byte[dictionaryLength + this.slabLength];
+			ParallelLevelCompressor.readLevelData(this.volume, this.source, this.slabStart - dictionaryLength, input,
+					input.length);
+
+			CRC32 crc32 = new CRC32();
+			crc32.update(input, dictionaryLength, this.slabLength);
+			this.crc = crc32.getValue();
+
+			Deflater deflater = new Deflater(ParallelLevelCompressor.this.compressionLevel, true);
+			ByteArrayOutputStream output = new ByteArrayOutputStream(this.slabLength / 4 + 64);
+			byte[] buffer = new byte[65536];
+
+			try {
+				if (dictionaryLength != 0) {
+					deflater.setDictionary(input, 0, dictionaryLength);
+				}
+
+				deflater.setInput(input, dictionaryLength, this.slabLength);
+
+				if (this.last) {
+					deflater.finish();
+
+					while (!deflater.finished()) {
+						int count = deflater.deflate(buffer);
+						output.write(buffer, 0, count);
+					}
+				} else {
+					// A sync flush ends the output on a byte boundary without marking the end
+					// of the deflate stream, so the next slab can be appended directly.
+					int count;
+
+					do {
+						count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+						output.write(buffer, 0, count);
+					} while (count == buffer.length);
+				}
+			} finally {
+				deflater.end();
+			}
+
+			return output.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package fr.ankeraout.mcank.world;
+
+import java.util.Arrays;
+
+/**
+ * This class is a spatial index of the visible players of a world. The world
+ * is split along the X and Z axes into square cells whose side is the movement
+ * radius (see the movement-radius property), and every cell contains the list
+ * of the players who are in it. The players within the radius of a player are
+ * then in the 9 cells around the cell of this player, so finding them does not
+ * require looking at all the players of the world.
+ * 
+ * The players are identified by their ID in the world. The lists of the cells
+ * are linked through arrays indexed by player ID, so moving a player to another
+ * cell does not allocate any object.
+ * 
+ * The coordinates are in 1/32 of block, as in the packets. The players who are
+ * outside of the world are put in the nearest cell.
+ * 
+ * This class is not thread-safe: the world calls it while holding its players
+ * lock.
+ * 
+ * @author Ankeraout
+ *
+ */
+final class PlayerGrid {
+	/**
+	 * The side of a cell, in 1/32 of block.
+	 */
+	private int cellSize;
+
+	/**
+	 * The square of the radius, in 1/1024 of square block.
+	 */
+	private long squaredRadius;
+
+	/**
+	 * The amount of cells along the X axis.
+	 */
+	private int cellCountX;
+
+	/**
+	 * The amount of cells along the Z axis.
+	 */
+	private int cellCountZ;
+
+	/**
+	 * The ID of the first player of every cell, or -1 if the cell is empty.
+	 */
+	private int[] cellHeads;
+
+	/**
+	 * The ID of the next player in the cell of every player, or -1 if the player
+	 * is the last one of its cell.
+	 */
+	private int[] nextEntities;
+
+	/**
+	 * The ID of the previous player in the cell of every player, or -1 if the
+	 * player is the first one of its cell.
+	 */
+	private int[] previousEntities;
+
+	/**
+	 * The cell of every player, or -1 if the player is not in the grid.
+	 */
+	private int[] entityCells;
+
+	/**
+	 * The X coordinate of every player.
+	 */
+	private int[] entityX;
+
+	/**
+	 * The Y coordinate of every player.
+	 */
+	private int[] entityY;
+
+	/**
+	 * The Z coordinate of every player.
+	 */
+	private int[] entityZ;
+
+	/**
+	 * Creates a new empty grid.
+	 * 
+	 * @param width       The width of the world, in blocks.
+	 * @param depth       The depth of the world, in blocks.
+	 * @param radius      The radius within which the players are near each
+	 *                    other, in blocks. It must be positive.
+	 * @param maxEntities The amount of player IDs.
+	 */
+	PlayerGrid(int width, int depth, int radius, int maxEntities) {
+		this.cellSize = radius * 32;
+		this.squaredRadius = (long) this.cellSize * this.cellSize;
+		this.cellCountX = (width * 32 + this.cellSize - 1) / this.cellSize;
+		this.cellCountZ = (depth * 32 + this.cellSize - 1) / this.cellSize;
+		this.cellHeads = new int[this.cellCountX * this.cellCountZ];
+		this.nextEntities = new int[maxEntities];
+		this.previousEntities = new int[maxEntities];
+		this.entityCells = new int[maxEntities];
+		this.entityX = new int[maxEntities];
+		this.entityY = new int[maxEntities];
+		this.entityZ = new int[maxEntities];
+
+		Arrays.fill(this.cellHeads, -1);
+		Arrays.fill(this.entityCells, -1);
+	}
+
+	/**
+	 * Returns the index of the cell along an axis that contains the given
+	 * coordinate.
+	 * 
+	 * @param coordinate The coordinate, in 1/32 of block.
+	 * @param cellCount  The amount of cells along the axis.
+	 * @return The index of the cell along the axis.
+	 */
+	private int getCellIndex(int coordinate, int cellCount) {
+		if (coordinate < 0) {
+			return 0;
+		}
+
+		return Math.min(coordinate / this.cellSize, cellCount - 1);
+	}
+
+	/**
+	 * Adds the given player to the grid, or moves it if it is already in the
+	 * grid. The player only changes of list if it has changed of cell.
+	 * 
+	 * @param entityId The ID of the player.
+	 * @param x        The X coordinate of the player.
+	 * @param y        The Y coordinate of the player.
+	 * @param z        The Z coordinate of the player.
+	 */
+	void move(int entityId, int x, int y, int z) {
+		int cell = this.getCellIndex(z, this.cellCountZ) * this.cellCountX + this.getCellIndex(x, this.cellCountX);
+
+		this.entityX[entityId] = x;
+		this.entityY[entityId] = y;
+		this.entityZ[entityId] = z;
+
+		if (this.entityCells[entityId] == cell) {
+			return;
+		}
+
+		this.remove(entityId);
+
+		// Insert the player at the head of the list of its new cell
+		int head = this.cellHeads[cell];
+		this.nextEntities[entityId] = head;
+		this.previousEntities[entityId] = -1;
+
+		if (head >= 0) {
+			this.previousEntities[head] = entityId;
+		}
+
+		this.cellHeads[cell] = entityId;
+		this.entityCells[entityId] = cell;
+	}
+
+	/**
+	 * Removes the given player from the grid. Nothing happens if the player is
+	 * not in the grid.
+	 * 
+	 * @param entityId The ID of the player.
+	 */
+	void remove(int entityId) {
+		int cell = this.entityCells[entityId];
+
+		if (cell < 0) {
+			return;
+		}
+
+		int next = this.nextEntities[entityId];
+		int previous = this.previousEntities[entityId];
+
+		if (previous >= 0) {
+			this.nextEntities[previous] = next;
+		} else {
+			this.cellHeads[cell] = next;
+		}
+
+		if (next >= 0) {
+			this.previousEntities[next] = previous;
+		}
+
+		this.entityCells[entityId] = -1;
+	}
+
+	/**
+	 * Marks the players who are within the radius of the given player. The
+	 * other values of the given array are not modified.
+	 * 
+	 * @param entityId The ID of the player.
+	 * @param near     The array, indexed by player ID, whose values are set to
+	 *                 <code>true</code> for the players within the radius.
+	 */
+	void markNear(int entityId, boolean[] near) {
+		int cell = this.entityCells[entityId];
+
+		if (cell < 0) {
+			return;
+		}
+
+		int x = this.entityX[entityId];
+		int y = this.entityY[entityId];
+		int z = this.entityZ[entityId];
+		int cellX = cell % this.cellCountX;
+		int cellZ = cell / this.cellCountX;
+		int minCellX = Math.max(cellX - 1, 0);
+		int maxCellX = Math.min(cellX + 1, this.cellCountX - 1);
+		int minCellZ = Math.max(cellZ - 1, 0);
+		int maxCellZ = Math.min(cellZ + 1, this.cellCountZ - 1);
+
+		for (int currentCellZ = minCellZ; currentCellZ <= maxCellZ; currentCellZ++) {
+			for (int currentCellX = minCellX; currentCellX <= maxCellX; currentCellX++) {
+				int otherEntityId = this.cellHeads[currentCellZ * this.cellCountX + currentCellX];
+
+				while (otherEntityId >= 0) {
+					long dx = this.entityX[otherEntityId] - x;
+					long dy = this.entityY[otherEntityId] - y;
+					long dz = this.entityZ[otherEntityId] - z;
+
+					if (dx * dx + dy * dy + dz * dz <= this.squaredRadius) {
+						near[otherEntityId] = true;
+					}
+
+					otherEntityId = this.nextEntities[otherEntityId];
+				}
+			}
+		}
+	}
+}
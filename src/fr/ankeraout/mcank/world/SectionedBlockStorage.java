@@ -0,0 +1,641 @@
+package fr.ankeraout.mcank.world;
+
+import java.util.Arrays;
+
+/**
+ * This class is a {@link BlockStorage} that splits the world in sections of
+ * 16x16x16 blocks. Every section uses the smallest representation that can
+ * hold its blocks:
+ * <ul>
+ * <li>uniform: the section contains a single block ID, and no array is
+ * allocated,</li>
+ * <li>palette: the section contains up to 16 different block IDs, that are
+ * stored in a palette, and every block is an index in that palette packed on 1,
+ * 2 or 4 bits,</li>
+ * <li>raw: every block is stored as a byte.</li>
+ * </ul>
+ * The sections are upgraded automatically when blocks are changed. They are
+ * only downgraded when their amount of different block IDs drops well below
+ * the capacity of the smaller representation, or when a snapshot is taken, so
+ * that a section whose amount of block IDs goes back and forth around a limit
+ * is not rebuilt on every change. Most worlds are mostly made of air or of a single fill block, so
+ * this storage usually needs a fraction of the memory of a
+ * {@link ByteArrayBlockStorage}.
+ * 
+ * The bulk methods work section by section, so the compression and the save of
+ * the world never need to expand the storage to a flat array. The snapshots
+ * share the sections with the storage, and a section is only copied when it is
+ * modified.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class SectionedBlockStorage implements BlockStorage {
+	/**
+	 * The amount of blocks in a section.
+	 */
+	private static final int SECTION_VOLUME = 4096;
+
+	/**
+	 * The width of the storage in blocks.
+	 */
+	private int width;
+
+	/**
+	 * The height of the storage in blocks.
+	 */
+	private int height;
+
+	/**
+	 * The depth of the storage in blocks.
+	 */
+	private int depth;
+
+	/**
+	 * The width of the storage in sections.
+	 */
+	private int sectionsX;
+
+	/**
+	 * The depth of the storage in sections.
+	 */
+	private int sectionsZ;
+
+	/**
+	 * The sections of the storage. The index of a section can be calculated from
+	 * its coordinates (in sections) with the following formula:
+	 * <code>index = (sectionY * sectionsZ + sectionZ) * sectionsX + sectionX</code>.
+	 */
+	private Section[] sections;
+
+	/**
+	 * Tells, for every section, whether it is shared with a snapshot. A shared
+	 * section must be copied before it is modified.
+	 */
+	private boolean[] shared;
+
+	/**
+	 * Creates a new {@link SectionedBlockStorage} filled with air.
+	 * 
+	 * @param width  The width of the storage in blocks. This must be a multiple of
+	 *               16.
+	 * @param height The height of the storage in blocks. This must be a multiple
+	 *               of 16.
+	 * @param depth  The depth of the storage in blocks. This must be a multiple of
+	 *               16.
+	 * @throws IllegalArgumentException If one of the dimensions is not a multiple
+	 *                                  of 16.
+	 */
+	public SectionedBlockStorage(int width, int height, int depth) {
+		if (width % 16 != 0 || height % 16 != 0 || depth % 16 != 0) {
+			throw new IllegalArgumentException("The dimensions of a sectioned storage must be multiples of 16.");
+		}
+
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.sectionsX = width / 16;
+		this.sectionsZ = depth / 16;
+		this.sections = new Section[this.sectionsX * (height / 16) * this.sectionsZ];
+		this.shared = new boolean[this.sections.length];
+
+		for (int i = 0; i < this.sections.length; i++) {
+			this.sections[i] = new Section(0);
+		}
+	}
+
+	/**
+	 * Creates a new {@link SectionedBlockStorage} that shares all the given
+	 * sections.
+	 * 
+	 * @param width    The width of the storage in blocks.
+	 * @param height   The height of the storage in blocks.
+	 * @param depth    The depth of the storage in blocks.
+	 * @param sections The sections of the storage.
+	 */
+	private SectionedBlockStorage(int width, int height, int depth, Section[] sections) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.sectionsX = width / 16;
+		this.sectionsZ = depth / 16;
+		this.sections = sections;
+		this.shared = new boolean[sections.length];
+		Arrays.fill(this.shared, true);
+	}
+
+	@Override
+	public int getWidth() {
+		return this.width;
+	}
+
+	@Override
+	public int getHeight() {
+		return this.height;
+	}
+
+	@Override
+	public int getDepth() {
+		return this.depth;
+	}
+
+	@Override
+	public int getBlock(int x, int y, int z) {
+		return this.sections[this.getSectionIndex(x, y, z)].get(SectionedBlockStorage.getLocalIndex(x, y, z));
+	}
+
+	@Override
+	public void setBlock(int x, int y, int z, int blockId) {
+		this.getWritableSection(this.getSectionIndex(x, y, z)).set(SectionedBlockStorage.getLocalIndex(x, y, z),
+				blockId & 0xff);
+	}
+
+	@Override
+	public void getBlocks(int index, byte[] buffer, int offset, int length) {
+		while (length > 0) {
+			int x = index % this.width;
+			int z = (index / this.width) % this.depth;
+			int y = index / this.width / this.depth;
+
+			// Copy up to the end of the row in the current section
+			int run = Math.min(length, 16 - (x & 15));
+			this.sections[this.getSectionIndex(x, y, z)].getRun(SectionedBlockStorage.getLocalIndex(x, y, z), buffer,
+					offset, run);
+
+			index += run;
+			offset += run;
+			length -= run;
+		}
+	}
+
+	@Override
+	public void setBlocks(int index, byte[] buffer, int offset, int length) {
+		while (length > 0) {
+			int x = index % this.width;
+			int z = (index / this.width) % this.depth;
+			int y = index / this.width / this.depth;
+
+			// Copy up to the end of the row in the current section
+			int run = Math.min(length, 16 - (x & 15));
+			this.getWritableSection(this.getSectionIndex(x, y, z))
+					.setRun(SectionedBlockStorage.getLocalIndex(x, y, z), buffer, offset, run);
+
+			index += run;
+			offset += run;
+			length -= run;
+		}
+	}
+
+	@Override
+	public BlockStorage snapshot() {
+		// The snapshots are used for the saves and the level data, so the sections
+		// use their smallest representation from now on. The shared sections were
+		// already compacted by a previous snapshot, and must not be modified.
+		for (int i = 0; i < this.sections.length; i++) {
+			if (!this.shared[i]) {
+				this.sections[i].compact();
+			}
+		}
+
+		Arrays.fill(this.shared, true);
+		return new SectionedBlockStorage(this.width, this.height, this.depth, this.sections.clone());
+	}
+
+	/**
+	 * Returns the amount of bytes used by the block data of the sections. This
+	 * does not include the fixed overhead of the section objects.
+	 * 
+	 * @return The amount of bytes used by the block data of the sections.
+	 */
+	@Override
+	public long getDataSize() {
+		long size = 0;
+
+		for (Section section : this.sections) {
+			size += section.getDataSize();
+		}
+
+		return size;
+	}
+
+	/**
+	 * Returns the index of the section that contains the block at the given
+	 * coordinates.
+	 * 
+	 * @param x The position of the block on the X axis.
+	 * @param y The position of the block on the Y axis.
+	 * @param z The position of the block on the Z axis.
+	 * @return The index of the section that contains the block.
+	 */
+	private int getSectionIndex(int x, int y, int z) {
+		return ((y >> 4) * this.sectionsZ + (z >> 4)) * this.sectionsX + (x >> 4);
+	}
+
+	/**
+	 * Returns the section with the given index, after copying it if it is shared
+	 * with a snapshot.
+	 * 
+	 * @param sectionIndex The index of the section.
+	 * @return The section, that can be modified.
+	 */
+	private Section getWritableSection(int sectionIndex) {
+		if (this.shared[sectionIndex]) {
+			this.sections[sectionIndex] = this.sections[sectionIndex].copy();
+			this.shared[sectionIndex] = false;
+		}
+
+		return this.sections[sectionIndex];
+	}
+
+	/**
+	 * Returns the index of the block at the given coordinates inside of its
+	 * section.
+	 * 
+	 * @param x The position of the block on the X axis.
+	 * @param y The position of the block on the Y axis.
+	 * @param z The position of the block on the Z axis.
+	 * @return The index of the block inside of its section.
+	 */
+	private static int getLocalIndex(int x, int y, int z) {
+		return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+	}
+
+	/**
+	 * Returns the amount of bits per block needed to store the given amount of
+	 * different block IDs.
+	 * 
+	 * @param distinct The amount of different block IDs.
+	 * @return 0 (uniform), 1, 2, 4 (palette) or 8 (raw).
+	 */
+	private static int getBitsFor(int distinct) {
+		if (distinct <= 1) {
+			return 0;
+		} else if (distinct <= 2) {
+			return 1;
+		} else if (distinct <= 4) {
+			return 2;
+		} else if (distinct <= 16) {
+			return 4;
+		} else {
+			return 8;
+		}
+	}
+
+	/**
+	 * This class is a section of 16x16x16 blocks. The index of a block in a
+	 * section is <code>(y * 16 + z) * 16 + x</code>, where the coordinates are
+	 * relative to the section.
+	 * 
+	 * @author Ankeraout
+	 *
+	 */
+	private static class Section {
+		/**
+		 * The amount of bits per block: 0 if the section is uniform, 1, 2 or 4 if it
+		 * uses a palette, 8 if it is raw.
+		 */
+		private int bits;
+
+		/**
+		 * The block ID of every block of the section when it is uniform.
+		 */
+		private int uniformId;
+
+		/**
+		 * The block IDs of the palette entries. This is <code>null</code> when the
+		 * section does not use a palette.
+		 */
+		private byte[] palette;
+
+		/**
+		 * The amount of blocks that use every palette entry, or every block ID when
+		 * the section is raw. An entry whose count is 0 is free. This is
+		 * <code>null</code> when the section is uniform.
+		 */
+		private char[] counts;
+
+		/**
+		 * The amount of different block IDs in the section.
+		 */
+		private int distinct;
+
+		/**
+		 * The packed palette indexes, or the block IDs when the section is raw. This
+		 * is <code>null</code> when the section is uniform.
+		 */
+		private byte[] data;
+
+		/**
+		 * Creates a new uniform section.
+		 * 
+		 * @param blockId The block ID of every block of the section.
+		 */
+		public Section(int blockId) {
+			this.setUniform(blockId);
+		}
+
+		/**
+		 * Returns a copy of this section.
+		 * 
+		 * @return A copy of this section.
+		 */
+		public Section copy() {
+			Section copy = new Section(this.uniformId);
+			copy.bits = this.bits;
+			copy.distinct = this.distinct;
+
+			if (this.bits != 0) {
+				copy.palette = this.palette == null ? null : this.palette.clone();
+				copy.counts = this.counts.clone();
+				copy.data = this.data.clone();
+			}
+
+			return copy;
+		}
+
+		/**
+		 * Returns the block ID at the given index.
+		 * 
+		 * @param index The index of the block in the section.
+		 * @return The block ID.
+		 */
+		public int get(int index) {
+			switch (this.bits) {
+				case 0:
+					return this.uniformId;
+
+				case 8:
+					return this.data[index] & 0xff;
+
+				default:
+					return this.palette[this.readPaletteIndex(index)] & 0xff;
+			}
+		}
+
+		/**
+		 * Sets the block ID at the given index, and changes the representation of
+		 * the section if needed.
+		 * 
+		 * @param index   The index of the block in the section.
+		 * @param blockId The block ID, between 0 and 255.
+		 */
+		public void set(int index, int blockId) {
+			switch (this.bits) {
+				case 0:
+					if (blockId != this.uniformId) {
+						this.repack(1);
+						this.set(index, blockId);
+					}
+
+					break;
+
+				case 8:
+					int oldId = this.data[index] & 0xff;
+
+					if (oldId == blockId) {
+						break;
+					}
+
+					this.data[index] = (byte) blockId;
+					this.addCount(blockId, 1);
+					this.addCount(oldId, -1);
+					this.downgradeIfPossible();
+					break;
+
+				default:
+					int oldEntry = this.readPaletteIndex(index);
+
+					if ((this.palette[oldEntry] & 0xff) == blockId) {
+						break;
+					}
+
+					int entry = this.findPaletteEntry(blockId);
+
+					if (entry == -1) {
+						// The palette is full: use a larger one
+						this.repack(1);
+						this.set(index, blockId);
+						break;
+					}
+
+					this.palette[entry] = (byte) blockId;
+					this.writePaletteIndex(index, entry);
+					this.addCount(entry, 1);
+					this.addCount(oldEntry, -1);
+					this.downgradeIfPossible();
+					break;
+			}
+		}
+
+		/**
+		 * Copies the block IDs of a run of consecutive blocks into the given buffer.
+		 * 
+		 * @param index  The index of the first block in the section.
+		 * @param buffer The buffer where the block IDs are written.
+		 * @param offset The offset in the buffer of the first block ID.
+		 * @param length The amount of blocks to copy.
+		 */
+		public void getRun(int index, byte[] buffer, int offset, int length) {
+			switch (this.bits) {
+				case 0:
+					Arrays.fill(buffer, offset, offset + length, (byte) this.uniformId);
+					break;
+
+				case 8:
+					System.arraycopy(this.data, index, buffer, offset, length);
+					break;
+
+				default:
+					for (int i = 0; i < length; i++) {
+						buffer[offset + i] = this.palette[this.readPaletteIndex(index + i)];
+					}
+
+					break;
+			}
+		}
+
+		/**
+		 * Sets the block IDs of a run of consecutive blocks from the given buffer.
+		 * 
+		 * @param index  The index of the first block in the section.
+		 * @param buffer The buffer that contains the block IDs.
+		 * @param offset The offset in the buffer of the first block ID.
+		 * @param length The amount of blocks to set.
+		 */
+		public void setRun(int index, byte[] buffer, int offset, int length) {
+			for (int i = 0; i < length; i++) {
+				this.set(index + i, buffer[offset + i] & 0xff);
+			}
+		}
+
+		/**
+		 * Returns the amount of bytes used by the block data of the section.
+		 * 
+		 * @return The amount of bytes used by the block data of the section.
+		 */
+		public int getDataSize() {
+			if (this.bits == 0) {
+				return 0;
+			}
+
+			int size = this.data.length + this.counts.length * 2;
+
+			if (this.palette != null) {
+				size += this.palette.length;
+			}
+
+			return size;
+		}
+
+		/**
+		 * Adds the given value to the count of the given palette entry (or block ID
+		 * when the section is raw), and updates the amount of different block IDs.
+		 * 
+		 * @param entry The palette entry, or the block ID if the section is raw.
+		 * @param delta The value to add to the count.
+		 */
+		private void addCount(int entry, int delta) {
+			int oldCount = this.counts[entry];
+			this.counts[entry] = (char) (oldCount + delta);
+
+			if (oldCount == 0) {
+				this.distinct++;
+			} else if (oldCount + delta == 0) {
+				this.distinct--;
+			}
+		}
+
+		/**
+		 * Returns the palette entry that contains the given block ID. If the block ID
+		 * is not in the palette, a free entry is returned.
+		 * 
+		 * @param blockId The block ID.
+		 * @return The palette entry, or -1 if the block ID is not in the palette and
+		 *         the palette is full.
+		 */
+		private int findPaletteEntry(int blockId) {
+			int freeEntry = -1;
+
+			for (int i = 0; i < this.palette.length; i++) {
+				if (this.counts[i] == 0) {
+					if (freeEntry == -1) {
+						freeEntry = i;
+					}
+				} else if ((this.palette[i] & 0xff) == blockId) {
+					return i;
+				}
+			}
+
+			return freeEntry;
+		}
+
+		/**
+		 * Switches to a smaller representation if twice the different block IDs of
+		 * the section fit in it. The free room avoids rebuilding the section again
+		 * as soon as a new block ID is added.
+		 */
+		private void downgradeIfPossible() {
+			if (SectionedBlockStorage.getBitsFor(this.distinct * 2) < this.bits) {
+				this.repack(this.distinct);
+			}
+		}
+
+		/**
+		 * Switches to the smallest representation that can hold the different block
+		 * IDs of the section.
+		 */
+		public void compact() {
+			if (SectionedBlockStorage.getBitsFor(this.distinct) < this.bits) {
+				this.repack(0);
+			}
+		}
+
+		/**
+		 * Rebuilds the section with the smallest representation that can hold its
+		 * block IDs plus the given amount of new block IDs.
+		 * 
+		 * @param extraIds The amount of block IDs that must fit in the section in
+		 *                 addition to its current ones.
+		 */
+		private void repack(int extraIds) {
+			byte[] blocks = new byte[SectionedBlockStorage.SECTION_VOLUME];
+			this.getRun(0, blocks, 0, blocks.length);
+
+			// Count the block IDs
+			char[] idCounts = new char[256];
+			int distinct = 0;
+
+			for (byte block : blocks) {
+				if (idCounts[block & 0xff]++ == 0) {
+					distinct++;
+				}
+			}
+
+			int bits = SectionedBlockStorage.getBitsFor(distinct + extraIds);
+
+			if (bits == 0) {
+				this.setUniform(blocks[0] & 0xff);
+			} else if (bits == 8) {
+				this.bits = 8;
+				this.palette = null;
+				this.counts = idCounts;
+				this.distinct = distinct;
+				this.data = blocks;
+			} else {
+				this.bits = bits;
+				this.palette = new byte[1 << bits];
+				this.counts = new char[1 << bits];
+				this.distinct = 0;
+				this.data = new byte[SectionedBlockStorage.SECTION_VOLUME * bits / 8];
+
+				for (int i = 0; i < blocks.length; i++) {
+					int entry = this.findPaletteEntry(blocks[i] & 0xff);
+					this.palette[entry] = blocks[i];
+					this.writePaletteIndex(i, entry);
+					this.addCount(entry, 1);
+				}
+			}
+		}
+
+		/**
+		 * Makes the section uniform.
+		 * 
+		 * @param blockId The block ID of every block of the section.
+		 */
+		private void setUniform(int blockId) {
+			this.bits = 0;
+			this.uniformId = blockId;
+			this.palette = null;
+			this.counts = null;
+			this.distinct = 1;
+			this.data = null;
+		}
+
+		/**
+		 * Reads the palette index of the block at the given index.
+		 * 
+		 * @param index The index of the block in the section.
+		 * @return The palette index of the block.
+		 */
+		private int readPaletteIndex(int index) {
+			// 8 / bits indexes are packed in every byte
+			int indexShift = Integer.numberOfTrailingZeros(8 / this.bits);
+			int bitShift = (index & ((1 << indexShift) - 1)) * this.bits;
+			return (this.data[index >> indexShift] >> bitShift) & ((1 << this.bits) - 1);
+		}
+
+		/**
+		 * Writes the palette index of the block at the given index.
+		 * 
+		 * @param index        The index of the block in the section.
+		 * @param paletteIndex The palette index of the block.
+		 */
+		private void writePaletteIndex(int index, int paletteIndex) {
+			int indexShift = Integer.numberOfTrailingZeros(8 / this.bits);
+			int bitShift = (index & ((1 << indexShift) - 1)) * this.bits;
+			int mask = ((1 << this.bits) - 1) << bitShift;
+			int byteIndex = index >> indexShift;
+			this.data[byteIndex] = (byte) ((this.data[byteIndex] & ~mask) | (paletteIndex << bitShift));
+		}
+	}
+}
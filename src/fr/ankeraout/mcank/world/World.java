@@ -1,16 +1,40 @@
 package fr.ankeraout.mcank.world;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.zip.GZIPOutputStream;
-
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import fr.ankeraout.mcank.ClassicubeServer;
+import fr.ankeraout.mcank.ClassicubeServerProperties;
+import fr.ankeraout.mcank.Player;
+import fr.ankeraout.mcank.net.PacketCodec;
 import fr.ankeraout.mcank.worldgen.WorldGenerator;
 
 /**
@@ -22,11 +46,53 @@ import fr.ankeraout.mcank.worldgen.WorldGenerator;
  *
  */
 public class World {
+	/**
+	 * The compressor used for computing the compressed world data of all the
+	 * worlds.
+	 */
+	private static final ParallelLevelCompressor LEVEL_COMPRESSOR = new ParallelLevelCompressor();
+
+	/**
+	 * The size of the buffer used for writing the world files.
+	 */
+	private static final int SAVE_BUFFER_SIZE = 1048576;
+
+	/**
+	 * The executor of the world save thread, that writes the world files in the
+	 * background.
+	 */
+	private static final ExecutorService SAVE_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "World save thread");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The maximum amount of players of a world who are visible to the other
+	 * players. The negative player IDs are not used, because the clients handle
+	 * them as their own player.
+	 */
+	private static final int MAX_ENTITIES = 128;
+
+	/**
+	 * The maximum amount of blocks that may have changed since the cached
+	 * compressed world data was computed. The players who join the world receive
+	 * these blocks one by one after the level data, so past this amount, the
+	 * world data is compressed again.
+	 */
+	private static final int MAX_COMPRESSED_WORLD_DATA_CHANGES = 4096;
+
 	/**
 	 * This lock protects the block data and the load status of the world.
 	 */
 	private Lock worldLock;
 
+	/**
+	 * This lock makes sure that the snapshots of the world are queued to the world
+	 * save thread in the order they are taken.
+	 */
+	private Object saveLock;
+
 	/**
 	 * Contains the status of the world. See {@link WorldLoadStatus} for more
 	 * information.
@@ -60,13 +126,50 @@ public class World {
 	private int depth;
 
 	/**
-	 * The block data of the world. The index of a block can be calculated from its
-	 * coordinates with the following formula:
-	 * <code>blockDataIndex = (y * depth + z) * width + x</code> where
-	 * blockDataIndex is the index of the block in the array at the given (x, y, z)
-	 * coordinates.
+	 * The block data of the world. This is <code>null</code> while the world is
+	 * not loaded. The world loaders set it when they load the block data. See
+	 * {@link BlockStorage} for the relation between the coordinates of a block and
+	 * its index.
+	 */
+	BlockStorage blockStorage;
+
+	/**
+	 * The cached compressed world data, as sent to the players in the level data
+	 * chunks. This is <code>null</code> if it was not computed yet, or if the
+	 * block data has changed too much since it was computed. This is protected by
+	 * the world lock.
+	 */
+	private CompressedWorldData compressedWorldData;
+
+	/**
+	 * The sections of 16x16x16 blocks that were modified since the last save. The
+	 * index of a section can be calculated from its coordinates (in sections) with
+	 * the following formula:
+	 * <code>index = (sectionY * (depth / 16) + sectionZ) * (width / 16) + sectionX</code>.
+	 */
+	private BitSet dirtySections;
+
+	/**
+	 * Tells whether the next save must write the whole world file, for example
+	 * because the world was generated and has no world file yet.
+	 */
+	private boolean fullSaveNeeded;
+
+	/**
+	 * The length of the valid part of the world file when it is in the
+	 * incremental format (see {@link WorldLoader0000000000000003}), that is the
+	 * offset where the next modified sections are appended. This is -1 if the
+	 * world file is in another format. This is only accessed by the world loaders
+	 * and by the world save thread.
+	 */
+	volatile long worldFileLength;
+
+	/**
+	 * The journal of the block changes made since the last save of the world. This
+	 * is <code>null</code> while the world is not loaded, or if the
+	 * <code>journal-commit-interval</code> property of the server is 0.
 	 */
-	int blockData[];
+	private WorldJournal journal;
 
 	/**
 	 * The position on the X axis where a player is teleported to when joining this
@@ -113,6 +216,111 @@ public class World {
 	 */
 	private File worldFile;
 
+	/**
+	 * The players who are in this world and have received its level data. Players
+	 * join and leave rarely compared to how often packets are broadcast, so the
+	 * list is copied on write and iterated without any lock.
+	 */
+	private CopyOnWriteArrayList<Player> players;
+
+	/**
+	 * This lock serializes the players who join or leave the world and the ticks
+	 * of the world, so that a player never receives the movement of a player who
+	 * was not spawned for it. Packets are sent while it is held, so it is not a
+	 * monitor: a virtual thread that blocks while holding it does not pin its
+	 * carrier thread.
+	 */
+	private Lock playersLock;
+
+	/**
+	 * The player IDs that are used by the players of this world.
+	 */
+	private BitSet entityIds;
+
+	/**
+	 * The object that sends the movements of the players to the other players.
+	 */
+	private MovementBroadcaster movementBroadcaster;
+
+	/**
+	 * The packets that are sent to the players of this world on the next tick.
+	 */
+	private ArrayList<ByteBuffer> pendingPackets;
+
+	/**
+	 * For every packet of {@link World#pendingPackets}, the player who must not
+	 * receive it, or <code>null</code> if all the players must receive it.
+	 */
+	private ArrayList<Player> pendingPacketExclusions;
+
+	/**
+	 * This lock protects the packets that are sent on the next tick.
+	 */
+	private Object pendingPacketsLock;
+
+	/**
+	 * The packets sent on the current tick. This array is only used by the tick
+	 * thread, and it is reused from one tick to the next.
+	 */
+	private ByteBuffer[] tickPackets;
+
+	/**
+	 * For every packet of {@link World#tickPackets}, the player who must not
+	 * receive it, or <code>null</code> if all the players must receive it.
+	 */
+	private Player[] tickPacketExclusions;
+
+	/**
+	 * The packets sent to a player on the current tick. This array is only used
+	 * by the tick thread, and it is reused from one player to the next.
+	 */
+	private ByteBuffer[] tickBatch;
+
+	/**
+	 * The blocks that the players have asked to change since the last tick, as
+	 * block indexes (see {@link World#getBlockIndex(int, int, int)}). The changes
+	 * are applied by the tick thread, so that the threads that read the packets of
+	 * the players never wait for the world lock.
+	 */
+	private int[] requestedBlocks;
+
+	/**
+	 * For every block of {@link World#requestedBlocks}, the new ID of the block,
+	 * or -1 if the block must only be sent again to the players.
+	 */
+	private int[] requestedBlockIds;
+
+	/**
+	 * For every block of {@link World#requestedBlocks}, the name of the player who
+	 * has asked for the change.
+	 */
+	private String[] requestedBlockAuthors;
+
+	/**
+	 * The amount of block changes in {@link World#requestedBlocks}.
+	 */
+	private int requestedBlockCount;
+
+	/**
+	 * This lock protects the block changes asked by the players.
+	 */
+	private Object requestedBlocksLock;
+
+	/**
+	 * The indexes of the blocks that have changed since the last tick. A block
+	 * that changes several times during a tick is only sent once, with its last
+	 * value. This is protected by the world lock.
+	 */
+	private BlockIndexSet changedBlocks;
+
+	/**
+	 * The players who are downloading the level data of this world, with the
+	 * indexes of the blocks that have changed since their level data was taken.
+	 * These blocks are sent to them once they have joined the world. This is
+	 * protected by the world lock.
+	 */
+	private IdentityHashMap<Player, BlockIndexSet> loadingPlayers;
+
 	/**
 	 * This constructor contains the common code for all the constructors of this
 	 * class.
@@ -144,9 +352,61 @@ public class World {
 
 		// Initialize locks
 		this.worldLock = new ReentrantLock(true);
+		this.saveLock = new Object();
 
 		// Initialize world load state
 		this.loadState = WorldLoadState.UNLOADED;
+
+		// Initialize the compressed world data cache
+		this.compressedWorldData = null;
+
+		// Nothing needs to be saved yet
+		this.dirtySections = new BitSet();
+		this.fullSaveNeeded = false;
+		this.worldFileLength = -1;
+		this.journal = null;
+
+		this.players = new CopyOnWriteArrayList<Player>();
+		this.playersLock = new ReentrantLock();
+		this.entityIds = new BitSet(World.MAX_ENTITIES);
+		this.movementBroadcaster = World.createMovementBroadcaster(width, depth);
+
+		// Initialize the tick data
+		this.pendingPackets = new ArrayList<ByteBuffer>();
+		this.pendingPacketExclusions = new ArrayList<Player>();
+		this.pendingPacketsLock = new Object();
+		this.tickPackets = new ByteBuffer[16];
+		this.tickPacketExclusions = new Player[16];
+		this.tickBatch = new ByteBuffer[16 + World.MAX_ENTITIES];
+
+		// Initialize the block changes
+		this.requestedBlocks = new int[16];
+		this.requestedBlockIds = new int[16];
+		this.requestedBlockAuthors = new String[16];
+		this.requestedBlockCount = 0;
+		this.requestedBlocksLock = new Object();
+		this.changedBlocks = new BlockIndexSet();
+		this.loadingPlayers = new IdentityHashMap<Player, BlockIndexSet>();
+	}
+
+	/**
+	 * Creates the object that sends the movements of the players of a world,
+	 * according to the movement-radius and distant-movement-interval properties.
+	 * 
+	 * @param width The width of the world in blocks.
+	 * @param depth The depth of the world in blocks.
+	 * @return The object that sends the movements of the players of the world.
+	 */
+	private static MovementBroadcaster createMovementBroadcaster(int width, int depth) {
+		ClassicubeServerProperties properties = ClassicubeServer.getInstance().getProperties();
+		int radius = properties.getMovementRadius();
+		PlayerGrid grid = null;
+
+		if (radius > 0) {
+			grid = new PlayerGrid(width, depth, radius, World.MAX_ENTITIES);
+		}
+
+		return new MovementBroadcaster(World.MAX_ENTITIES, grid, properties.getDistantMovementInterval());
 	}
 
 	/**
@@ -163,10 +423,12 @@ public class World {
 	 * @param generator The generator of the world.
 	 * @param seed      The seed for generating this world. This will be used to
 	 *                  feed the generator.
+	 * @param worldFile The file where the world will be saved.
 	 * 
 	 * @throws IllegalArgumentException If one of the argument values is incorrect.
 	 */
-	public World(String name, int width, int height, int depth, WorldGenerator generator, long seed) {
+	public World(String name, int width, int height, int depth, WorldGenerator generator, long seed,
+			File worldFile) {
 		this(width, height, depth);
 
 		// Initialize world attributes
@@ -175,7 +437,7 @@ public class World {
 		this.width = width;
 		this.height = height;
 		this.depth = depth;
-		this.blockData = new int[width * height * depth];
+		this.blockStorage = World.createBlockStorage(width, height, depth);
 		this.spawnX = width / 2f;
 		this.spawnY = height / 2f + 1.59375f;
 		this.spawnZ = depth / 2f;
@@ -184,8 +446,14 @@ public class World {
 		this.buildPermission = 0;
 		this.visitPermission = 0;
 
+		this.worldFile = worldFile;
+
 		// Generate world
-		generator.generateWorld(this.blockData, width, height, depth, seed);
+		generator.generateWorld(this.blockStorage, seed);
+
+		// The world file does not exist yet
+		this.fullSaveNeeded = true;
+		this.journal = World.createJournal(worldFile);
 
 		// Set world load state to LOADED because it was previously generated.
 		this.loadState = WorldLoadState.LOADED;
@@ -231,7 +499,45 @@ public class World {
 	}
 
 	/**
-	 * Loads the world.
+	 * Creates an empty block storage for a world, of the kind selected by the
+	 * <code>block-storage</code> property of the server.
+	 * 
+	 * @param width  The width of the world in blocks.
+	 * @param height The height of the world in blocks.
+	 * @param depth  The depth of the world in blocks.
+	 * @return The new block storage, filled with air.
+	 * @throws RuntimeException If the <code>block-storage</code> property has an
+	 *                          unknown value.
+	 */
+	static BlockStorage createBlockStorage(int width, int height, int depth) {
+		String storageKind = ClassicubeServer.getInstance().getProperties().getBlockStorage();
+
+		if (storageKind.equalsIgnoreCase("array")) {
+			return new ByteArrayBlockStorage(width, height, depth);
+		} else if (storageKind.equalsIgnoreCase("sectioned")) {
+			return new SectionedBlockStorage(width, height, depth);
+		} else {
+			throw new RuntimeException("Unknown block storage \"" + storageKind + "\".");
+		}
+	}
+
+	/**
+	 * Creates the block change journal of a world, if the
+	 * <code>journal-commit-interval</code> property of the server is not 0.
+	 * 
+	 * @param worldFile The world file.
+	 * @return The journal of the world, or <code>null</code> if the block changes
+	 *         are not journaled.
+	 */
+	private static WorldJournal createJournal(File worldFile) {
+		int commitInterval = ClassicubeServer.getInstance().getProperties().getJournalCommitInterval();
+		return commitInterval > 0 ? new WorldJournal(worldFile, commitInterval) : null;
+	}
+
+	/**
+	 * Loads the world. The block changes of the journal that were made after the
+	 * last save of the world, for example because the server crashed, are replayed
+	 * on the loaded block data.
 	 * 
 	 * @throws IOException      If the world file could not be read
 	 * @throws RuntimeException If the world is not in the
@@ -244,17 +550,20 @@ public class World {
 		// Set the world state to LOADING
 		this.worldLock.lock();
 
-		// Save the current world state
-		oldState = this.loadState;
-
-		// Reject the load request if the world is not UNLOADED
-		if (!this.loadState.isStartCallAllowed()) {
-			throw new RuntimeException("The current world state does not allow loading it.");
-		}
+		try {
+			// Save the current world state
+			oldState = this.loadState;
 
-		this.loadState = WorldLoadState.LOADING;
+			// Reject the load request if the world is not UNLOADED
+			if (!this.loadState.isStartCallAllowed()) {
+				throw new RuntimeException("The current world state does not allow loading it.");
+			}
 
-		this.worldLock.unlock();
+			this.loadState = WorldLoadState.LOADING;
+			this.dirtySections.clear();
+		} finally {
+			this.worldLock.unlock();
+		}
 
 		try {
 			// Read world file magic value
@@ -264,7 +573,16 @@ public class World {
 			dis.close();
 
 			// Load the world using the correct world loader
+			this.worldFileLength = -1;
 			WorldLoaderFactory.getInstance().getWorldLoader(magic).loadBlockData(this);
+
+			// Replay the block changes that were not saved
+			int replayed = WorldJournal.replay(this.worldFile, this);
+
+			if (replayed != 0) {
+				Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO,
+						"Replayed " + replayed + " block changes from the journal of world \"" + this.name + "\".");
+			}
 		} catch (IOException e) {
 			// Restore world state
 			this.worldLock.lock();
@@ -278,6 +596,9 @@ public class World {
 		// Set the world state to LOADED
 		this.worldLock.lock();
 		this.loadState = WorldLoadState.LOADED;
+		this.invalidateCompressedWorldData();
+		this.fullSaveNeeded = false;
+		this.journal = World.createJournal(this.worldFile);
 		this.worldLock.unlock();
 	}
 
@@ -295,57 +616,379 @@ public class World {
 	}
 
 	/**
-	 * Saves the world file.
+	 * Saves the world file, and waits for the end of the save. See
+	 * {@link #saveAsync()} for more information.
 	 * 
 	 * @throws IOException      If the world file could not be written.
-	 * @throws RuntimeException If the world is not in the
-	 *                          {@link WorldLoadState#LOADED} state when calling
+	 * @throws RuntimeException If the world is neither in the
+	 *                          {@link WorldLoadState#LOADED} state nor in the
+	 *                          {@link WorldLoadState#UNLOADING} state when calling
 	 *                          this method.
 	 */
 	public void save() throws IOException {
-		this.worldLock.lock();
+		try {
+			this.saveAsync().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the world to be saved.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			}
+
+			throw new RuntimeException("Failed to save the world.", e.getCause());
+		}
+	}
+
+	/**
+	 * Saves the world file in the background. A snapshot of the world is taken
+	 * while holding the world lock, which only takes a few microseconds, and the
+	 * snapshot is then written to the disk by the world save thread. The world can
+	 * be modified while it is being written. The saves are written in the order of
+	 * the calls to this method.
+	 * 
+	 * Only the sections of 16x16x16 blocks that were modified since the last save
+	 * are written, by appending them to the world file (see
+	 * {@link WorldLoader0000000000000003}). The whole world file is written when
+	 * it is in another format, or when the appended sections take more space than
+	 * the world itself. If nothing was modified since the last save, nothing is
+	 * written at all.
+	 * 
+	 * Once the world file is written, the block changes of the journal that were
+	 * made before the snapshot are discarded.
+	 * 
+	 * If the block data of the world is mapped in memory, only the header of the
+	 * world file is written and the mapped block data is forced to the disk. If
+	 * the volume of the world is at least the <code>mapped-storage-volume</code>
+	 * property of the server, the whole world file is written in the memory-mapped
+	 * format.
+	 * 
+	 * @return A future that is completed when the world file is written. It
+	 *         completes exceptionally with an {@link UncheckedIOException} if the
+	 *         world file could not be written.
+	 * @throws RuntimeException If the world is neither in the
+	 *                          {@link WorldLoadState#LOADED} state nor in the
+	 *                          {@link WorldLoadState#UNLOADING} state when calling
+	 *                          this method.
+	 */
+	public CompletableFuture<Void> saveAsync() {
+		// Take the snapshot and queue it atomically, so that the saves of this world
+		// are written in order.
+		synchronized (this.saveLock) {
+			long snapshotStartTime = System.nanoTime();
+			WorldSnapshot snapshot = new WorldSnapshot();
+
+			this.worldLock.lock();
+
+			try {
+				// Reject the save request if the world is not LOADED or being unloaded
+				if (this.loadState != WorldLoadState.LOADED && this.loadState != WorldLoadState.UNLOADING) {
+					throw new RuntimeException("The current world state does not allow saving it.");
+				}
+
+				// An idle world costs no I/O
+				if (!this.fullSaveNeeded && this.dirtySections.isEmpty()) {
+					return CompletableFuture.completedFuture(null);
+				}
+
+				if (this.blockStorage instanceof MappedBlockStorage) {
+					// The block data is already in the world file, so it is not copied.
+					snapshot.magic = 2;
+					snapshot.blocks = this.blockStorage;
+				} else {
+					int mappedStorageVolume = ClassicubeServer.getInstance().getProperties()
+							.getMappedStorageVolume();
+					snapshot.magic = mappedStorageVolume > 0 && this.getVolume() >= mappedStorageVolume ? 2 : 3;
+					snapshot.blocks = this.blockStorage.snapshot();
+				}
+
+				snapshot.header = this.getHeader(snapshot.magic);
+				snapshot.dirtySections = this.fullSaveNeeded ? null : (BitSet) this.dirtySections.clone();
+				snapshot.journal = this.journal;
+				snapshot.journalSequence = this.journal == null ? 0 : this.journal.markSnapshot();
+				this.dirtySections.clear();
+				this.fullSaveNeeded = false;
+			} finally {
+				this.worldLock.unlock();
+			}
 
-		// Reject the unload request if the world is not LOADED
-		if (this.loadState != WorldLoadState.LOADED) {
-			throw new RuntimeException("The current world state does not allow saving it.");
+			snapshot.snapshotDuration = (System.nanoTime() - snapshotStartTime) / 1000;
+
+			return CompletableFuture.runAsync(() -> {
+				try {
+					this.writeSnapshot(snapshot);
+
+					if (snapshot.journal != null) {
+						snapshot.journal.release(snapshot.journalSequence);
+					}
+				} catch (IOException e) {
+					// The modified sections are lost, so the next save must write everything
+					this.worldLock.lock();
+					this.fullSaveNeeded = true;
+					this.worldLock.unlock();
+
+					Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.SEVERE,
+							"Failed to save world \"" + this.name + "\".", e);
+					throw new UncheckedIOException(e);
+				}
+			}, World.SAVE_EXECUTOR);
 		}
+	}
 
-		FileOutputStream fos = new FileOutputStream(this.worldFile);
-		DataOutputStream dos = new DataOutputStream(fos);
+	/**
+	 * Writes a snapshot of the world to the world file, and logs the duration of
+	 * the save and the amount of bytes written. This method is called by the world
+	 * save thread.
+	 * 
+	 * @param snapshot The snapshot of the world.
+	 * @throws IOException If the world file could not be written.
+	 */
+	private void writeSnapshot(WorldSnapshot snapshot) throws IOException {
+		long startTime = System.nanoTime();
+		long bytesWritten;
+		String kind;
+
+		if (snapshot.blocks instanceof MappedBlockStorage) {
+			// The mapping lives in the world file, so rewriting the file would destroy it.
+			bytesWritten = this.saveMappedWorld(snapshot.header, (MappedBlockStorage) snapshot.blocks);
+			kind = "mapped";
+		} else if (snapshot.magic == 3 && snapshot.dirtySections != null && this.worldFileLength != -1
+				&& this.worldFileLength + WorldLoader0000000000000003.getBatchSize(snapshot.dirtySections
+						.cardinality()) <= 2L * (snapshot.header.length + this.getVolume())) {
+			bytesWritten = this.appendSections(snapshot.blocks, snapshot.dirtySections);
+			kind = snapshot.dirtySections.cardinality() + " modified sections";
+		} else {
+			int blockDataOffset = snapshot.magic == 2 ? WorldLoader0000000000000002.BLOCK_DATA_OFFSET
+					: snapshot.header.length;
+			bytesWritten = this.saveWorldFile(snapshot.header, blockDataOffset, snapshot.blocks);
+			this.worldFileLength = snapshot.magic == 3 ? bytesWritten : -1;
+			kind = "full";
+		}
 
-		// Magic value of current world file format version
-		dos.writeLong(0x0000000000000000);
+		long duration = (System.nanoTime() - startTime) / 1000000;
 
-		byte[] strData = this.name.getBytes();
-		dos.writeInt(strData.length);
-		dos.write(strData);
+		Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO,
+				"Saved world \"" + this.name + "\" (" + kind + ") in " + duration + " ms (" + bytesWritten
+						+ " bytes written, snapshot taken in " + snapshot.snapshotDuration + " us).");
+	}
 
-		strData = this.motd.getBytes();
-		dos.writeInt(strData.length);
-		dos.write(strData);
+	/**
+	 * Appends the given sections to the world file, which must be in the
+	 * incremental format. The sections are written after the valid part of the
+	 * world file, followed by a checksum, so that a save interrupted by a crash is
+	 * simply ignored when the world is loaded.
+	 * 
+	 * @param blocks   The block data to take the sections from.
+	 * @param sections The indexes of the sections to write.
+	 * @return The amount of bytes written.
+	 * @throws IOException If the world file could not be written.
+	 */
+	private long appendSections(BlockStorage blocks, BitSet sections) throws IOException {
+		int sectionsX = this.width / 16;
+		int sectionsZ = this.depth / 16;
+		long startOffset = this.worldFileLength;
+		byte[] sectionData = new byte[4096];
+		CRC32 checksum = new CRC32();
+
+		try (FileChannel channel = FileChannel.open(this.worldFile.toPath(), StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(World.SAVE_BUFFER_SIZE);
+			channel.position(startOffset);
+			buffer.putInt(sections.cardinality());
+
+			for (int i = sections.nextSetBit(0); i >= 0; i = sections.nextSetBit(i + 1)) {
+				blocks.getSection(i % sectionsX, i / sectionsX / sectionsZ, (i / sectionsX) % sectionsZ, sectionData);
+
+				if (buffer.remaining() < 4 + sectionData.length) {
+					World.writeFully(channel, buffer, checksum);
+				}
+
+				buffer.putInt(i);
+				buffer.put(sectionData);
+			}
 
-		strData = null;
+			World.writeFully(channel, buffer, checksum);
+			buffer.putLong(checksum.getValue());
+			World.writeFully(channel, buffer);
 
-		dos.writeInt(this.width);
-		dos.writeInt(this.height);
-		dos.writeInt(this.depth);
-		dos.writeFloat(this.spawnX);
-		dos.writeFloat(this.spawnY);
-		dos.writeFloat(this.spawnZ);
-		dos.writeFloat(this.spawnYaw);
-		dos.writeFloat(this.spawnPitch);
-		dos.writeInt(this.buildPermission);
-		dos.writeInt(this.visitPermission);
+			// Remove what an interrupted save could have left after the batch
+			long endOffset = channel.position();
+			channel.truncate(endOffset);
+			channel.force(true);
 
-		int volume = this.getVolume();
+			this.worldFileLength = endOffset;
+			return endOffset - startOffset;
+		}
+	}
 
-		for (int i = 0; i < volume; i++) {
-			dos.writeInt(this.blockData[i]);
+	/**
+	 * Writes the whole world file. The file is first written to a temporary file
+	 * next to the world file, through a large direct buffer. The temporary file is
+	 * then synchronized to the disk and renamed to the world file, so that the
+	 * world file is never left half-written if the server crashes during the save.
+	 * 
+	 * @param header          The header of the world file.
+	 * @param blockDataOffset The offset of the block data in the world file. The
+	 *                        header is padded with zeros up to this offset.
+	 * @param blocks          The block data to write.
+	 * @return The amount of bytes written.
+	 * @throws IOException If the world file could not be written.
+	 */
+	private long saveWorldFile(byte[] header, int blockDataOffset, BlockStorage blocks) throws IOException {
+		if (header.length > blockDataOffset) {
+			throw new IOException("The world header does not fit before the block data.");
 		}
 
-		dos.close();
+		File parentDirectory = this.worldFile.getAbsoluteFile().getParentFile();
+		parentDirectory.mkdirs();
 
-		this.worldLock.unlock();
+		Path worldPath = this.worldFile.toPath();
+		Path temporaryPath = worldPath.resolveSibling(worldPath.getFileName() + ".tmp");
+		long bytesWritten;
+
+		try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(World.SAVE_BUFFER_SIZE);
+			buffer.put(header);
+			buffer.put(new byte[blockDataOffset - header.length]);
+
+			// Write the block data (one byte per block) by slices
+			int volume = blocks.getVolume();
+			byte[] slice = new byte[Math.min(volume, 65536)];
+
+			for (int offset = 0; offset < volume; offset += slice.length) {
+				int length = Math.min(slice.length, volume - offset);
+				blocks.getBlocks(offset, slice, 0, length);
+
+				if (buffer.remaining() < length) {
+					World.writeFully(channel, buffer);
+				}
+
+				buffer.put(slice, 0, length);
+			}
+
+			World.writeFully(channel, buffer);
+			channel.force(true);
+			bytesWritten = channel.position();
+		} catch (IOException e) {
+			Files.deleteIfExists(temporaryPath);
+			throw e;
+		}
+
+		try {
+			Files.move(temporaryPath, worldPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temporaryPath, worldPath, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		// Make the rename durable. Directories cannot be opened on every platform, so
+		// this is only done when possible.
+		try (FileChannel directoryChannel = FileChannel.open(parentDirectory.toPath(), StandardOpenOption.READ)) {
+			directoryChannel.force(true);
+		} catch (IOException e) {
+			// Ignore
+		}
+
+		return bytesWritten;
+	}
+
+	/**
+	 * Writes the content of the given buffer to the given channel, and clears the
+	 * buffer.
+	 * 
+	 * @param channel The channel where the data is written.
+	 * @param buffer  The buffer that contains the data, in write mode.
+	 * @throws IOException If the data could not be written.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		World.writeFully(channel, buffer, null);
+	}
+
+	/**
+	 * Writes the content of the given buffer to the given channel, and clears the
+	 * buffer.
+	 * 
+	 * @param channel  The channel where the data is written.
+	 * @param buffer   The buffer that contains the data, in write mode.
+	 * @param checksum The checksum to update with the written data, or
+	 *                 <code>null</code>.
+	 * @throws IOException If the data could not be written.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, CRC32 checksum) throws IOException {
+		buffer.flip();
+
+		if (checksum != null) {
+			checksum.update(buffer.duplicate());
+		}
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+
+		buffer.clear();
+	}
+
+	/**
+	 * Saves a world whose block data is mapped in memory, by writing the header of
+	 * the world file in place and forcing the block data to the disk. The world
+	 * file cannot be replaced atomically in this case, because the block data
+	 * lives in it.
+	 * 
+	 * @param header The header of the world file.
+	 * @param blocks The mapped block storage of the world.
+	 * @return The amount of bytes written.
+	 * @throws IOException If the world file could not be written.
+	 */
+	private long saveMappedWorld(byte[] header, MappedBlockStorage blocks) throws IOException {
+		if (header.length > WorldLoader0000000000000002.BLOCK_DATA_OFFSET) {
+			throw new IOException("The world header does not fit before the block data.");
+		}
+
+		try (FileChannel channel = FileChannel.open(this.worldFile.toPath(), StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.wrap(header);
+
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+
+			blocks.force();
+			channel.force(true);
+		}
+
+		return header.length + blocks.getVolume();
+	}
+
+	/**
+	 * Returns the header of the world file, that is common to all the world file
+	 * formats.
+	 * 
+	 * @param magic The magic value of the world file format.
+	 * @return The header of the world file.
+	 */
+	private byte[] getHeader(long magic) {
+		byte[] nameData = this.name.getBytes();
+		byte[] motdData = (this.motd == null ? "" : this.motd).getBytes();
+		ByteBuffer header = ByteBuffer.allocate(56 + nameData.length + motdData.length);
+
+		// Magic value of the world file format version
+		header.putLong(magic);
+
+		header.putInt(nameData.length);
+		header.put(nameData);
+		header.putInt(motdData.length);
+		header.put(motdData);
+
+		header.putInt(this.width);
+		header.putInt(this.height);
+		header.putInt(this.depth);
+		header.putFloat(this.spawnX);
+		header.putFloat(this.spawnY);
+		header.putFloat(this.spawnZ);
+		header.putFloat(this.spawnYaw);
+		header.putFloat(this.spawnPitch);
+		header.putInt(this.buildPermission);
+		header.putInt(this.visitPermission);
+
+		return header.array();
 	}
 
 	/**
@@ -363,16 +1006,20 @@ public class World {
 
 		// Set the world state to UNLOADING
 		this.worldLock.lock();
-		// Save the current world state
-		oldState = this.loadState;
 
-		// Reject the unload request if the world is not LOADED
-		if (!this.loadState.isStopCallAllowed()) {
-			throw new RuntimeException("The current world state does not allow unloading it.");
-		}
+		try {
+			// Save the current world state
+			oldState = this.loadState;
 
-		this.loadState = WorldLoadState.UNLOADING;
-		this.worldLock.unlock();
+			// Reject the unload request if the world is not LOADED
+			if (!this.loadState.isStopCallAllowed()) {
+				throw new RuntimeException("The current world state does not allow unloading it.");
+			}
+
+			this.loadState = WorldLoadState.UNLOADING;
+		} finally {
+			this.worldLock.unlock();
+		}
 
 		// TODO: kick all the players outside of this world
 
@@ -383,6 +1030,9 @@ public class World {
 			this.worldLock.lock();
 			this.loadState = oldState;
 			this.worldLock.unlock();
+
+			// Propagate the exception
+			throw e;
 		}
 
 		// Set the world state to UNLOADED
@@ -391,8 +1041,56 @@ public class World {
 
 		// Break the reference to the world data, allowing the garbage
 		// collector to destroy the object
-		this.blockData = null;
+		this.blockStorage = null;
+		this.invalidateCompressedWorldData();
+		WorldJournal journal = this.journal;
+		this.journal = null;
 		this.worldLock.unlock();
+
+		// The journal is empty, since the world was saved
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	/**
+	 * Returns the name of the world.
+	 * 
+	 * @return The name of the world.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Returns the amount of bytes of the Java heap used by the block data of the
+	 * world and by its cached compressed world data. This is 0 if the world is not
+	 * loaded.
+	 * 
+	 * @return The amount of bytes of the Java heap used by the world.
+	 */
+	public long getMemoryUsage() {
+		this.worldLock.lock();
+
+		try {
+			long usage = 0;
+
+			if (this.blockStorage != null) {
+				usage += this.blockStorage.getDataSize();
+			}
+
+			if (this.compressedWorldData != null) {
+				byte[] worldData = this.compressedWorldData.getIfCompressed();
+
+				if (worldData != null) {
+					usage += worldData.length;
+				}
+			}
+
+			return usage;
+		} finally {
+			this.worldLock.unlock();
+		}
 	}
 
 	/**
@@ -440,6 +1138,15 @@ public class World {
 		return this.depth;
 	}
 
+	/**
+	 * Returns the minimum permission level required to build in this world.
+	 * 
+	 * @return The minimum permission level required to build in this world.
+	 */
+	public int getBuildPermission() {
+		return this.buildPermission;
+	}
+
 	/**
 	 * Returns the X position of the spawn in this world.
 	 * 
@@ -495,29 +1202,774 @@ public class World {
 		return this.worldLock;
 	}
 
-	public byte[] getCompressedWorldDataSynchronized() {
+	/**
+	 * Adds the given player to the players of this world. The player receives the
+	 * packets broadcast to the world from now on, so this must only be called once
+	 * the player has received the level data. The player gets an ID in the world,
+	 * the other players are spawned for the player, and the player is spawned for
+	 * the other players.
+	 * 
+	 * @param player The player who has joined the world.
+	 */
+	public void addPlayer(Player player) {
+		this.playersLock.lock();
+
 		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			GZIPOutputStream gzos = new GZIPOutputStream(baos);
-			DataOutputStream dos = new DataOutputStream(gzos);
+			if (this.players.contains(player)) {
+				return;
+			}
 
-			// Write the world volume
-			int volume = this.getVolume();
+			// The players who get no ID are not visible to the other players
+			int entityId = this.entityIds.nextClearBit(0);
 
-			dos.writeInt(volume);
+			if (entityId < World.MAX_ENTITIES) {
+				this.entityIds.set(entityId);
+			} else {
+				entityId = -1;
+			}
 
-			for (int i = 0; i < volume; i++) {
-				dos.writeByte(this.blockData[i]);
+			player.setEntityId(entityId);
+			this.movementBroadcaster.addObserver(player);
+
+			for (Player otherPlayer : this.players) {
+				if (otherPlayer.getEntityId() >= 0) {
+					try {
+						player.sendPacket(this.movementBroadcaster.spawnEntityFor(player, otherPlayer.getEntityId()));
+					} catch (IOException e) {
+						// The connection of the player is closed
+						break;
+					}
+				}
 			}
 
-			dos.close();
+			if (entityId >= 0) {
+				this.broadcast(this.movementBroadcaster.spawnEntity(player));
+			}
 
-			return baos.toByteArray();
-		} catch (IOException e) {
-			throw new RuntimeException("Unexpected IOException while compressing the map data.", e);
+			this.sendBlocksChangedDuringLoading(player);
+			this.players.add(player);
+		} finally {
+			this.playersLock.unlock();
 		}
 	}
 
+	/**
+	 * Registers the given player as downloading the level data of this world.
+	 * The blocks that change from now on are sent to the player when it joins the
+	 * world (see {@link World#addPlayer(Player)}), so this must be called while
+	 * the level data is taken. The caller must hold the lock of the world.
+	 * 
+	 * @param player The player who downloads the level data.
+	 */
+	public void addLoadingPlayerSynchronized(Player player) {
+		this.loadingPlayers.put(player, new BlockIndexSet());
+	}
+
+	/**
+	 * Sends to the given player the blocks that have changed since it started
+	 * downloading the level data. The blocks that have changed but were not
+	 * broadcast yet are not sent: the player receives them on the next tick.
+	 * 
+	 * @param player The player who has downloaded the level data.
+	 */
+	private void sendBlocksChangedDuringLoading(Player player) {
+		ByteBuffer[] packets = null;
+		int packetCount = 0;
+
+		this.worldLock.lock();
+
+		try {
+			BlockIndexSet blocks = this.loadingPlayers.remove(player);
+
+			if (blocks == null || blocks.isEmpty() || this.blockStorage == null) {
+				return;
+			}
+
+			packets = new ByteBuffer[blocks.size()];
+
+			for (int i = 0; i < blocks.size(); i++) {
+				packets[packetCount++] = this.encodeBlockChange(blocks.get(i));
+			}
+		} finally {
+			this.worldLock.unlock();
+		}
+
+		try {
+			player.sendPackets(packets, 0, packetCount);
+		} catch (IOException e) {
+			// The connection of the player is closed
+		}
+	}
+
+	/**
+	 * Removes the given player from the players of this world. The player is
+	 * despawned for the other players, and its ID is released.
+	 * 
+	 * @param player The player who has left the world.
+	 */
+	public void removePlayer(Player player) {
+		this.playersLock.lock();
+
+		try {
+			// The player may have left while downloading the level data
+			this.worldLock.lock();
+
+			try {
+				this.loadingPlayers.remove(player);
+			} finally {
+				this.worldLock.unlock();
+			}
+
+			if (!this.players.remove(player)) {
+				return;
+			}
+
+			this.movementBroadcaster.removeObserver(player);
+			int entityId = player.getEntityId();
+
+			if (entityId >= 0) {
+				player.setEntityId(-1);
+				this.entityIds.clear(entityId);
+				this.movementBroadcaster.despawnEntity(entityId);
+				this.broadcast(PacketCodec.despawnPlayer(entityId));
+			}
+		} finally {
+			this.playersLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the players who are in this world. The returned list is a read-only
+	 * view, that can be iterated safely while players join or leave the world: an
+	 * iteration sees the players who were in the world when it started.
+	 * 
+	 * @return The players who are in this world.
+	 */
+	public List<Player> getPlayers() {
+		return Collections.unmodifiableList(this.players);
+	}
+
+	/**
+	 * Sends the given packet to all the players of this world.
+	 * 
+	 * @param packet The encoded packet. It must not be modified after calling this
+	 *               method.
+	 */
+	public void broadcast(ByteBuffer packet) {
+		this.broadcast(packet, null);
+	}
+
+	/**
+	 * Sends the given packet to all the players of this world, except the given
+	 * one. The packet is encoded once: all the players receive a read-only view of
+	 * the same buffer, so the packet is not copied for every player. The players
+	 * whose connection fails are ignored, their disconnection is handled by their
+	 * own connection.
+	 * 
+	 * @param packet The encoded packet. It must not be modified after calling this
+	 *               method.
+	 * @param except The player who must not receive the packet, or
+	 *               <code>null</code> if all the players must receive it.
+	 */
+	public void broadcast(ByteBuffer packet, Player except) {
+		ByteBuffer sharedPacket = packet.asReadOnlyBuffer();
+
+		for (Player player : this.players) {
+			if (player == except) {
+				continue;
+			}
+
+			try {
+				player.sendPacket(sharedPacket.duplicate());
+			} catch (IOException e) {
+				// The connection of the player is closed
+			}
+		}
+	}
+
+	/**
+	 * Queues the given packet, that is sent to all the players of this world,
+	 * except the given one, with the other packets of the next tick. This must be
+	 * used for the frequent updates of the world (like block changes), so that
+	 * every player receives them in a single batch per tick.
+	 * 
+	 * @param packet The encoded packet. It must not be modified after calling this
+	 *               method.
+	 * @param except The player who must not receive the packet, or
+	 *               <code>null</code> if all the players must receive it.
+	 */
+	public void queueBroadcast(ByteBuffer packet, Player except) {
+		synchronized (this.pendingPacketsLock) {
+			this.pendingPackets.add(packet);
+			this.pendingPacketExclusions.add(except);
+		}
+	}
+
+	/**
+	 * Runs a tick of this world. The packets queued since the last tick and the
+	 * movements of the players are collected, and every player receives all the
+	 * packets of the tick that are meant for it in a single batch. This method is
+	 * only called by the tick thread of the server.
+	 */
+	public void tick() {
+		this.playersLock.lock();
+
+		try {
+			int packetCount = 0;
+
+			// Collect the packets queued since the last tick
+			synchronized (this.pendingPacketsLock) {
+				packetCount = this.pendingPackets.size();
+				this.ensureTickCapacity(packetCount);
+
+				for (int i = 0; i < packetCount; i++) {
+					this.tickPackets[i] = this.pendingPackets.get(i).asReadOnlyBuffer();
+					this.tickPacketExclusions[i] = this.pendingPacketExclusions.get(i);
+				}
+
+				this.pendingPackets.clear();
+				this.pendingPacketExclusions.clear();
+			}
+
+			// Apply the block changes asked by the players, and collect all the block
+			// changes
+			packetCount = this.collectBlockChanges(packetCount);
+
+			// Collect the movements of the players
+			this.movementBroadcaster.beginTick(this.players);
+
+			try {
+				this.flushTick(packetCount);
+			} finally {
+				this.movementBroadcaster.endTick();
+
+				// Do not keep the packets alive until the next tick
+				Arrays.fill(this.tickPackets, 0, packetCount, null);
+				Arrays.fill(this.tickPacketExclusions, 0, packetCount, null);
+			}
+		} finally {
+			this.playersLock.unlock();
+		}
+	}
+
+	/**
+	 * Makes sure that the arrays used by the ticks can contain the given amount
+	 * of queued packets.
+	 * 
+	 * @param packetCount The amount of queued packets of the tick.
+	 */
+	private void ensureTickCapacity(int packetCount) {
+		if (this.tickPackets.length < packetCount) {
+			int capacity = Math.max(packetCount, this.tickPackets.length * 2);
+			this.tickPackets = Arrays.copyOf(this.tickPackets, capacity);
+			this.tickPacketExclusions = Arrays.copyOf(this.tickPacketExclusions, capacity);
+			this.tickBatch = new ByteBuffer[capacity + World.MAX_ENTITIES];
+		}
+	}
+
+	/**
+	 * Sends the packets of the current tick to the players of this world. The
+	 * queued packets are encoded once: the players receive read-only views of the
+	 * same buffers. The movement packets are chosen for every player by the
+	 * movement broadcaster. Every player receives its packets in a single batch.
+	 * The players whose connection fails are ignored, their disconnection is
+	 * handled by their own connection.
+	 * 
+	 * @param packetCount The amount of queued packets of the tick.
+	 */
+	private void flushTick(int packetCount) {
+		for (Player player : this.players) {
+			int batchSize = 0;
+
+			for (int i = 0; i < packetCount; i++) {
+				if (this.tickPacketExclusions[i] != player) {
+					this.tickBatch[batchSize++] = this.tickPackets[i].duplicate();
+				}
+			}
+
+			batchSize += this.movementBroadcaster.appendPackets(player, this.tickBatch, batchSize);
+
+			if (batchSize == 0) {
+				continue;
+			}
+
+			try {
+				player.sendPackets(this.tickBatch, 0, batchSize);
+			} catch (IOException e) {
+				// The connection of the player is closed
+			}
+
+			Arrays.fill(this.tickBatch, 0, batchSize, null);
+		}
+	}
+
+	/**
+	 * Returns the index of the given block in the sets of changed blocks.
+	 * 
+	 * @param x The position of the block on the X axis.
+	 * @param y The position of the block on the Y axis.
+	 * @param z The position of the block on the Z axis.
+	 * @return The index of the block.
+	 */
+	private int getBlockIndex(int x, int y, int z) {
+		return (y * this.depth + z) * this.width + x;
+	}
+
+	/**
+	 * Encodes the SERVER_SET_BLOCK packet that sends the current value of the
+	 * given block. The caller must hold the lock of the world.
+	 * 
+	 * @param index The index of the block (see
+	 *              {@link World#getBlockIndex(int, int, int)}).
+	 * @return The encoded packet.
+	 */
+	private ByteBuffer encodeBlockChange(int index) {
+		int x = index % this.width;
+		int z = index / this.width % this.depth;
+		int y = index / this.width / this.depth;
+
+		return PacketCodec.setBlock(x, y, z, this.blockStorage.getBlock(x, y, z));
+	}
+
+	/**
+	 * Asks for a block change. The block is changed on the next tick, and the
+	 * players of the world receive the new block on that tick. The caller must
+	 * have checked that the author is allowed to change the block.
+	 * 
+	 * @param x       The position of the block on the X axis.
+	 * @param y       The position of the block on the Y axis.
+	 * @param z       The position of the block on the Z axis.
+	 * @param blockId The new ID of the block.
+	 * @param author  The name of the player who changes the block.
+	 * @throws IndexOutOfBoundsException If the coordinates are outside of the
+	 *                                   world.
+	 */
+	public void queueBlockChange(int x, int y, int z, int blockId, String author) {
+		this.checkBlockCoordinates(x, y, z);
+		this.addRequestedBlock(this.getBlockIndex(x, y, z), blockId, author);
+	}
+
+	/**
+	 * Asks for the given block to be sent again to the players of the world on
+	 * the next tick, without changing it. This is used for cancelling a block
+	 * change that a client has already displayed, but that was refused.
+	 * 
+	 * @param x The position of the block on the X axis.
+	 * @param y The position of the block on the Y axis.
+	 * @param z The position of the block on the Z axis.
+	 * @throws IndexOutOfBoundsException If the coordinates are outside of the
+	 *                                   world.
+	 */
+	public void queueBlockRefresh(int x, int y, int z) {
+		this.checkBlockCoordinates(x, y, z);
+		this.addRequestedBlock(this.getBlockIndex(x, y, z), -1, null);
+	}
+
+	/**
+	 * Adds a block to the block changes applied on the next tick.
+	 * 
+	 * @param index   The index of the block.
+	 * @param blockId The new ID of the block, or -1 if the block must only be sent
+	 *                again.
+	 * @param author  The name of the player who changes the block.
+	 */
+	private void addRequestedBlock(int index, int blockId, String author) {
+		synchronized (this.requestedBlocksLock) {
+			if (this.requestedBlockCount == this.requestedBlocks.length) {
+				int capacity = this.requestedBlocks.length * 2;
+				this.requestedBlocks = Arrays.copyOf(this.requestedBlocks, capacity);
+				this.requestedBlockIds = Arrays.copyOf(this.requestedBlockIds, capacity);
+				this.requestedBlockAuthors = Arrays.copyOf(this.requestedBlockAuthors, capacity);
+			}
+
+			this.requestedBlocks[this.requestedBlockCount] = index;
+			this.requestedBlockIds[this.requestedBlockCount] = blockId;
+			this.requestedBlockAuthors[this.requestedBlockCount] = author;
+			this.requestedBlockCount++;
+		}
+	}
+
+	/**
+	 * Applies the block changes asked since the last tick, and adds a
+	 * SERVER_SET_BLOCK packet for every block that has changed since the last
+	 * tick to the packets of the tick. If the world lock is held by another
+	 * thread (for example while the level data is compressed), nothing is done,
+	 * and the block changes are applied on a later tick.
+	 * 
+	 * @param packetCount The amount of packets of the tick.
+	 * @return The new amount of packets of the tick.
+	 */
+	private int collectBlockChanges(int packetCount) {
+		if (!this.worldLock.tryLock()) {
+			return packetCount;
+		}
+
+		try {
+			synchronized (this.requestedBlocksLock) {
+				for (int i = 0; i < this.requestedBlockCount && this.blockStorage != null; i++) {
+					int index = this.requestedBlocks[i];
+
+					if (this.requestedBlockIds[i] < 0) {
+						this.changedBlocks.add(index);
+					} else {
+						this.setBlockSynchronized(index % this.width, index / this.width / this.depth,
+								index / this.width % this.depth, this.requestedBlockIds[i],
+								this.requestedBlockAuthors[i]);
+					}
+				}
+
+				Arrays.fill(this.requestedBlockAuthors, 0, this.requestedBlockCount, null);
+				this.requestedBlockCount = 0;
+			}
+
+			if (this.changedBlocks.isEmpty()) {
+				return packetCount;
+			}
+
+			if (this.blockStorage != null) {
+				this.ensureTickCapacity(packetCount + this.changedBlocks.size());
+
+				for (int i = 0; i < this.changedBlocks.size(); i++) {
+					this.tickPackets[packetCount] = this.encodeBlockChange(this.changedBlocks.get(i))
+							.asReadOnlyBuffer();
+					this.tickPacketExclusions[packetCount] = null;
+					packetCount++;
+				}
+
+				for (BlockIndexSet blocks : this.loadingPlayers.values()) {
+					blocks.addAll(this.changedBlocks);
+				}
+
+				// The players who join the world later receive these blocks after the cached
+				// compressed world data, until it is too outdated to be worth sending
+				if (this.compressedWorldData != null) {
+					this.compressedWorldData.changedBlocks.addAll(this.changedBlocks);
+
+					if (this.compressedWorldData.changedBlocks.size() > World.MAX_COMPRESSED_WORLD_DATA_CHANGES) {
+						this.compressedWorldData = null;
+					}
+				}
+			}
+
+			this.changedBlocks.clear();
+		} finally {
+			this.worldLock.unlock();
+		}
+
+		return packetCount;
+	}
+
+	/**
+	 * Returns a boolean value that determines whether the given coordinates are
+	 * inside the world.
+	 * 
+	 * @param x The position of the block on the X axis.
+	 * @param y The position of the block on the Y axis.
+	 * @param z The position of the block on the Z axis.
+	 * @return <code>true</code> if the coordinates are inside the world.
+	 */
+	public boolean containsBlock(int x, int y, int z) {
+		return x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth;
+	}
+
+	/**
+	 * Checks that the given coordinates are inside the world.
+	 * 
+	 * @param x The position of the block on the X axis.
+	 * @param y The position of the block on the Y axis.
+	 * @param z The position of the block on the Z axis.
+	 * @throws IndexOutOfBoundsException If the coordinates are outside of the
+	 *                                   world.
+	 */
+	private void checkBlockCoordinates(int x, int y, int z) {
+		if (x < 0 || x >= this.width || y < 0 || y >= this.height || z < 0 || z >= this.depth) {
+			throw new IndexOutOfBoundsException("The block coordinates are outside of the world.");
+		}
+	}
+
+	/**
+	 * Returns the ID of the block at the given coordinates. The caller must hold
+	 * the lock of the world.
+	 * 
+	 * @param x The position of the block on the X axis.
+	 * @param y The position of the block on the Y axis.
+	 * @param z The position of the block on the Z axis.
+	 * @return The ID of the block at the given coordinates.
+	 * @throws IndexOutOfBoundsException If the coordinates are outside of the
+	 *                                   world.
+	 */
+	public int getBlockSynchronized(int x, int y, int z) {
+		this.checkBlockCoordinates(x, y, z);
+		return this.blockStorage.getBlock(x, y, z);
+	}
+
+	/**
+	 * Sets the ID of the block at the given coordinates. The caller must hold the
+	 * lock of the world. The cached compressed world data becomes outdated if the
+	 * block changes.
+	 * 
+	 * @param x       The position of the block on the X axis.
+	 * @param y       The position of the block on the Y axis.
+	 * @param z       The position of the block on the Z axis.
+	 * @param blockId The new ID of the block.
+	 * @throws IndexOutOfBoundsException If the coordinates are outside of the
+	 *                                   world.
+	 */
+	public void setBlockSynchronized(int x, int y, int z, int blockId) {
+		this.setBlockSynchronized(x, y, z, blockId, null);
+	}
+
+	/**
+	 * Sets the ID of the block at the given coordinates, and records the change in
+	 * the journal of the world. The caller must hold the lock of the world.
+	 * 
+	 * @param x       The position of the block on the X axis.
+	 * @param y       The position of the block on the Y axis.
+	 * @param z       The position of the block on the Z axis.
+	 * @param blockId The new ID of the block.
+	 * @param author  The name of the player who changed the block, or
+	 *                <code>null</code> if the block was not changed by a player.
+	 * @throws IndexOutOfBoundsException If the coordinates are outside of the
+	 *                                   world.
+	 */
+	public void setBlockSynchronized(int x, int y, int z, int blockId, String author) {
+		this.checkBlockCoordinates(x, y, z);
+
+		int oldBlockId = this.blockStorage.getBlock(x, y, z);
+
+		if (oldBlockId != blockId) {
+			this.blockStorage.setBlock(x, y, z, blockId);
+			this.dirtySections.set(((y >> 4) * (this.depth >> 4) + (z >> 4)) * (this.width >> 4) + (x >> 4));
+
+			// The players receive the new block on the next tick
+			this.changedBlocks.add(this.getBlockIndex(x, y, z));
+
+			if (this.journal != null) {
+				this.journal.append(x, y, z, oldBlockId, blockId, author);
+			}
+		}
+	}
+
+	/**
+	 * Sets the ID of a block while the world is loading, when replaying its
+	 * journal. The block changes that are outside of the world are ignored.
+	 * 
+	 * @param x       The position of the block on the X axis.
+	 * @param y       The position of the block on the Y axis.
+	 * @param z       The position of the block on the Z axis.
+	 * @param blockId The new ID of the block.
+	 */
+	void replayBlockChange(int x, int y, int z, int blockId) {
+		if (x < 0 || x >= this.width || y < 0 || y >= this.height || z < 0 || z >= this.depth) {
+			return;
+		}
+
+		if (this.blockStorage.getBlock(x, y, z) != blockId) {
+			this.blockStorage.setBlock(x, y, z, blockId);
+			this.dirtySections.set(((y >> 4) * (this.depth >> 4) + (z >> 4)) * (this.width >> 4) + (x >> 4));
+		}
+	}
+
+	/**
+	 * Releases the cached compressed world data. The caller must hold the lock of
+	 * the world.
+	 */
+	private void invalidateCompressedWorldData() {
+		this.compressedWorldData = null;
+	}
+
+	/**
+	 * Returns the compressed world data that must be sent to the given player, in
+	 * the level data chunks. The player must have been registered as downloading
+	 * the level data (see {@link World#addLoadingPlayerSynchronized(Player)}).
+	 * The caller must hold the lock of the world.
+	 * 
+	 * The compressed data is cached, and it is shared by all the players who join
+	 * the world, so the returned array must never be modified. The cache is kept
+	 * when blocks change: the blocks that have changed since the data was
+	 * compressed are sent to the player once it has joined the world. The data is
+	 * only compressed again when too many blocks have changed.
+	 * 
+	 * Only a snapshot of the block data is taken while the lock is held. The data
+	 * is compressed by the first thread that calls {@link Supplier#get()} on the
+	 * returned object, after the lock is released, and the other players who join
+	 * the world meanwhile wait for this compression. The worlds whose block
+	 * storage does not support snapshots are compressed before this method
+	 * returns.
+	 * 
+	 * @param player The player who downloads the level data.
+	 * @return The object that provides the compressed world data.
+	 */
+	public Supplier<byte[]> getCompressedWorldDataSynchronized(Player player) {
+		if (this.compressedWorldData != null && !this.compressedWorldData.isFailed()) {
+			BlockIndexSet blocks = this.loadingPlayers.get(player);
+
+			if (blocks != null) {
+				blocks.addAll(this.compressedWorldData.changedBlocks);
+			}
+
+			return this.compressedWorldData;
+		}
+
+		BlockStorage blocks = this.getBlockSnapshotSynchronized();
+		int volume = this.getVolume();
+
+		if (blocks == null) {
+			this.compressedWorldData = new CompressedWorldData(volume, this.blockStorage);
+			this.compressedWorldData.get();
+		} else {
+			this.compressedWorldData = new CompressedWorldData(volume, blocks);
+		}
+
+		return this.compressedWorldData;
+	}
+
+	/**
+	 * Returns a snapshot of the block data of the world, that can be read without
+	 * holding the lock of the world (see {@link BlockStorage#snapshot()}). The
+	 * caller must hold the lock of the world.
+	 * 
+	 * @return The snapshot of the block data, or <code>null</code> if the block
+	 *         storage of the world does not support snapshots.
+	 */
+	public BlockStorage getBlockSnapshotSynchronized() {
+		if (this.blockStorage instanceof MappedBlockStorage) {
+			return null;
+		}
+
+		return this.blockStorage.snapshot();
+	}
+
+	/**
+	 * This class contains the compressed world data of a world, that is
+	 * compressed once and shared by the players who join the world.
+	 * 
+	 * @author Ankeraout
+	 *
+	 */
+	private static class CompressedWorldData implements Supplier<byte[]> {
+		/**
+		 * The task that compresses the block data. It only runs once, even if
+		 * several threads run it.
+		 */
+		private FutureTask<byte[]> task;
+
+		/**
+		 * The indexes of the blocks that have changed since the block data was
+		 * taken. This is protected by the world lock.
+		 */
+		private BlockIndexSet changedBlocks;
+
+		/**
+		 * Creates a new {@link CompressedWorldData}. The block data is not
+		 * compressed until {@link CompressedWorldData#get()} is called.
+		 * 
+		 * @param volume The volume of the world in blocks.
+		 * @param blocks The block data, that must not be modified until it is
+		 *               compressed.
+		 */
+		private CompressedWorldData(int volume, BlockStorage blocks) {
+			this.task = new FutureTask<byte[]>(() -> World.LEVEL_COMPRESSOR.compress(volume, blocks::getBlocks));
+			this.changedBlocks = new BlockIndexSet();
+		}
+
+		/**
+		 * Returns the compressed world data. The block data is compressed by the
+		 * first thread that calls this method, and the other threads wait for it.
+		 * 
+		 * @return The compressed world data.
+		 * @throws RuntimeException If the block data could not be compressed.
+		 */
+		@Override
+		public byte[] get() {
+			this.task.run();
+
+			try {
+				return this.task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for the compressed world data.", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Failed to compress the world data.", e.getCause());
+			}
+		}
+
+		/**
+		 * Returns the compressed world data if it has been computed, without
+		 * waiting.
+		 * 
+		 * @return The compressed world data, or <code>null</code> if it is not
+		 *         computed yet or if the compression has failed.
+		 */
+		private byte[] getIfCompressed() {
+			if (!this.task.isDone()) {
+				return null;
+			}
+
+			try {
+				return this.task.get();
+			} catch (InterruptedException | ExecutionException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Returns a boolean value that determines whether the compression of the
+		 * block data has failed.
+		 * 
+		 * @return <code>true</code> if the compression has failed.
+		 */
+		private boolean isFailed() {
+			return this.task.isDone() && this.getIfCompressed() == null;
+		}
+	}
+
+	/**
+	 * This class contains what the world save thread needs to write a save of the
+	 * world.
+	 * 
+	 * @author Ankeraout
+	 *
+	 */
+	private static class WorldSnapshot {
+		/**
+		 * The magic value of the world file format to write.
+		 */
+		private long magic;
+
+		/**
+		 * The header of the world file.
+		 */
+		private byte[] header;
+
+		/**
+		 * The snapshot of the block data, or the mapped block storage of the world.
+		 */
+		private BlockStorage blocks;
+
+		/**
+		 * The sections that were modified since the previous save, or
+		 * <code>null</code> if the whole world file must be written.
+		 */
+		private BitSet dirtySections;
+
+		/**
+		 * The time taken to create the snapshot, in microseconds.
+		 */
+		private long snapshotDuration;
+
+		/**
+		 * The journal of the world when the snapshot was taken, or <code>null</code>
+		 * if the block changes are not journaled.
+		 */
+		private WorldJournal journal;
+
+		/**
+		 * The sequence number of the journal when the snapshot was taken.
+		 */
+		private long journalSequence;
+	}
+
 	/**
 	 * This enum represents the current state of the world at a given time.
 	 * 
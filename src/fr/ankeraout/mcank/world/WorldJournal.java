@@ -0,0 +1,622 @@
+package fr.ankeraout.mcank.world;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import fr.ankeraout.mcank.ClassicubeServer;
+
+/**
+ * This class is the write-ahead journal of the block changes of a world. It
+ * keeps the block changes that were made since the last save of the world, so
+ * that they can be replayed when the world is loaded after a crash.
+ *
+ * The block changes are first stored in a preallocated ring buffer, so that
+ * recording a block change never allocates memory. The journal writer thread
+ * then periodically writes all the pending block changes to the journal files
+ * at once, and synchronizes them to the disk (group commit).
+ *
+ * The journal is split in segments, that are the files named
+ * <code>&lt;world file&gt;.journal.&lt;number&gt;</code>. When a snapshot of
+ * the world is taken for a save, the journal starts a new segment for the
+ * following block changes, and the older segments are deleted once the save is
+ * written. A segment is made of batches, one per group commit:
+ * <ul>
+ * <li>the amount of block changes in the batch (32-bit integer),</li>
+ * <li>the size of the block changes in bytes (32-bit integer),</li>
+ * <li>the block changes: the packed position and block IDs (64-bit integer,
+ * see {@link #packChange(int, int, int, int, int)}), the timestamp in
+ * milliseconds (64-bit integer), and the name of the player who made the
+ * change (one byte for the length, then the ASCII characters),</li>
+ * <li>the CRC-32 of all the previous data of the batch (64-bit integer).</li>
+ * </ul>
+ * Replaying a block change only sets the block to its new ID, so replaying
+ * block changes that are already in the world file is harmless.
+ *
+ * @author Ankeraout
+ *
+ */
+class WorldJournal {
+	/**
+	 * The amount of block changes that the ring buffer can hold. This must be a
+	 * power of 2.
+	 */
+	private static final int CAPACITY = 16384;
+
+	/**
+	 * The size of the buffer used for writing the batches.
+	 */
+	private static final int WRITE_BUFFER_SIZE = 65536;
+
+	/**
+	 * The maximum size of a block change in a segment.
+	 */
+	private static final int MAX_RECORD_SIZE = 8 + 8 + 1 + 255;
+
+	/**
+	 * The executor of the journal writer thread, shared by the journals of all the
+	 * worlds.
+	 */
+	private static final ScheduledExecutorService WRITER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "World journal writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The world file. The segments are stored next to it.
+	 */
+	private File worldFile;
+
+	/**
+	 * The packed positions and block IDs of the pending block changes.
+	 */
+	private long[] changes;
+
+	/**
+	 * The timestamps of the pending block changes.
+	 */
+	private long[] timestamps;
+
+	/**
+	 * The names of the players who made the pending block changes.
+	 */
+	private String[] authors;
+
+	/**
+	 * The sequence number of the next block change. Only the thread that holds
+	 * the world lock writes this value.
+	 */
+	private volatile long producedSequence;
+
+	/**
+	 * The sequence number of the next block change to write. Only the journal
+	 * writer thread writes this value.
+	 */
+	private volatile long consumedSequence;
+
+	/**
+	 * The sequence number of the first block change made after the last snapshot
+	 * of the world.
+	 */
+	private volatile long snapshotSequence;
+
+	/**
+	 * The sequence number before which the block changes are saved in the world
+	 * file, so that the segments that only contain older block changes can be
+	 * deleted.
+	 */
+	private volatile long releasedSequence;
+
+	/**
+	 * The number of the current segment.
+	 */
+	private int segmentNumber;
+
+	/**
+	 * The sequence number of the first block change of the current segment.
+	 */
+	private long segmentStartSequence;
+
+	/**
+	 * The channel of the current segment. This is <code>null</code> until the
+	 * first block change is written.
+	 */
+	private FileChannel segmentChannel;
+
+	/**
+	 * The segments that are closed and not deleted yet, with the sequence number
+	 * that follows their last block change.
+	 */
+	private ArrayDeque<ClosedSegment> closedSegments;
+
+	/**
+	 * The buffer where the batches are prepared.
+	 */
+	private ByteBuffer writeBuffer;
+
+	/**
+	 * The amount of block changes in the batch being prepared.
+	 */
+	private int batchCount;
+
+	/**
+	 * The checksum of the batches.
+	 */
+	private CRC32 checksum;
+
+	/**
+	 * The periodic task that writes the pending block changes.
+	 */
+	private ScheduledFuture<?> flushFuture;
+
+	/**
+	 * The task that writes the pending block changes. It is created once, so that
+	 * requesting a write does not allocate memory.
+	 */
+	private Runnable flushTask;
+
+	/**
+	 * Tells whether a write error was already logged, so that a failing disk does
+	 * not flood the logs.
+	 */
+	private boolean errorLogged;
+
+	/**
+	 * Creates a new journal for the given world file, and starts writing it
+	 * periodically. The existing segments must have been replayed before, with
+	 * {@link #replay(File, World)}: they are kept until the next save of the world
+	 * is written.
+	 *
+	 * @param worldFile      The world file.
+	 * @param commitInterval The interval between two group commits, in
+	 *                       milliseconds.
+	 */
+	WorldJournal(File worldFile, int commitInterval) {
+		this.worldFile = worldFile;
+		this.changes = new long[WorldJournal.CAPACITY];
+		this.timestamps = new long[WorldJournal.CAPACITY];
+		this.authors = new String[WorldJournal.CAPACITY];
+		this.producedSequence = 0;
+		this.consumedSequence = 0;
+		this.snapshotSequence = 0;
+		this.releasedSequence = -1;
+		this.segmentStartSequence = 0;
+		this.segmentChannel = null;
+		this.closedSegments = new ArrayDeque<ClosedSegment>();
+		this.writeBuffer = ByteBuffer.allocateDirect(WorldJournal.WRITE_BUFFER_SIZE);
+		this.checksum = new CRC32();
+		this.flushTask = () -> this.flush();
+
+		// The existing segments only contain block changes older than the first save
+		List<Integer> existingSegments = WorldJournal.listSegments(worldFile);
+
+		for (int number : existingSegments) {
+			this.closedSegments.add(new ClosedSegment(this.getSegmentPath(number), 0));
+		}
+
+		this.segmentNumber = existingSegments.isEmpty() ? 0 : existingSegments.get(existingSegments.size() - 1) + 1;
+
+		this.flushFuture = WorldJournal.WRITER.scheduleWithFixedDelay(this.flushTask, commitInterval, commitInterval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Records a block change. The caller must hold the lock of the world. This
+	 * method does not allocate memory. If the ring buffer is full, it waits for
+	 * the journal writer thread to write the pending block changes.
+	 *
+	 * @param x      The position of the block on the X axis.
+	 * @param y      The position of the block on the Y axis.
+	 * @param z      The position of the block on the Z axis.
+	 * @param oldId  The previous ID of the block.
+	 * @param newId  The new ID of the block.
+	 * @param author The name of the player who changed the block, or
+	 *               <code>null</code>.
+	 */
+	void append(int x, int y, int z, int oldId, int newId, String author) {
+		long sequence = this.producedSequence;
+
+		while (sequence - this.consumedSequence >= WorldJournal.CAPACITY) {
+			WorldJournal.WRITER.execute(this.flushTask);
+			LockSupport.parkNanos(100000);
+		}
+
+		int slot = (int) (sequence & (WorldJournal.CAPACITY - 1));
+		this.changes[slot] = WorldJournal.packChange(x, y, z, oldId, newId);
+		this.timestamps[slot] = System.currentTimeMillis();
+		this.authors[slot] = author;
+
+		// Publish the block change to the journal writer thread
+		this.producedSequence = sequence + 1;
+	}
+
+	/**
+	 * Marks the moment when a snapshot of the world is taken. The following block
+	 * changes are written to a new segment. The caller must hold the lock of the
+	 * world.
+	 *
+	 * @return The sequence number to pass to {@link #release(long)} once the
+	 *         snapshot is written.
+	 */
+	long markSnapshot() {
+		this.snapshotSequence = this.producedSequence;
+		return this.snapshotSequence;
+	}
+
+	/**
+	 * Tells the journal that the block changes made before the given sequence
+	 * number are saved in the world file. The segments that only contain such
+	 * block changes are deleted by the journal writer thread.
+	 *
+	 * @param sequence The value returned by {@link #markSnapshot()} when the
+	 *                 snapshot of the save was taken.
+	 */
+	void release(long sequence) {
+		if (sequence > this.releasedSequence) {
+			this.releasedSequence = sequence;
+		}
+	}
+
+	/**
+	 * Writes the pending block changes, stops the periodic writes and closes the
+	 * current segment. The segments that are not released yet are kept, so that
+	 * they are replayed on the next load of the world.
+	 */
+	void close() {
+		this.flushFuture.cancel(false);
+
+		try {
+			WorldJournal.WRITER.submit(() -> {
+				this.flush();
+
+				if (this.segmentChannel != null) {
+					try {
+						this.segmentChannel.close();
+					} catch (IOException e) {
+						// Ignore
+					}
+
+					this.segmentChannel = null;
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.SEVERE, "Failed to close a world journal.",
+					e.getCause());
+		}
+	}
+
+	/**
+	 * Writes the pending block changes to the current segment, and deletes the
+	 * segments that are released. This method is called by the journal writer
+	 * thread.
+	 */
+	private void flush() {
+		long produced = this.producedSequence;
+		long sequence = this.consumedSequence;
+
+		try {
+			if (sequence != produced) {
+				long snapshot = this.snapshotSequence;
+
+				if (this.segmentChannel == null) {
+					this.openSegment(sequence);
+				}
+
+				this.beginBatch();
+
+				for (; sequence < produced; sequence++) {
+					if (sequence >= snapshot && this.segmentStartSequence < snapshot) {
+						// The following block changes were made after the snapshot
+						this.commitBatch();
+						this.closeSegment(sequence);
+						this.openSegment(sequence);
+						this.beginBatch();
+					}
+
+					if (this.writeBuffer.remaining() < WorldJournal.MAX_RECORD_SIZE + 8) {
+						this.commitBatch();
+						this.beginBatch();
+					}
+
+					int slot = (int) (sequence & (WorldJournal.CAPACITY - 1));
+					this.writeBuffer.putLong(this.changes[slot]);
+					this.writeBuffer.putLong(this.timestamps[slot]);
+
+					if (this.authors[slot] == null) {
+						this.writeBuffer.put((byte) 0);
+					} else {
+						byte[] author = this.authors[slot].getBytes(StandardCharsets.US_ASCII);
+						int length = Math.min(author.length, 255);
+						this.writeBuffer.put((byte) length);
+						this.writeBuffer.put(author, 0, length);
+						this.authors[slot] = null;
+					}
+
+					this.batchCount++;
+				}
+
+				this.commitBatch();
+				this.segmentChannel.force(false);
+			}
+
+			this.deleteReleasedSegments(produced);
+		} catch (IOException e) {
+			if (!this.errorLogged) {
+				Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.SEVERE,
+						"Failed to write the journal of world file " + this.worldFile + ".", e);
+				this.errorLogged = true;
+			}
+		}
+
+		// The block changes are consumed even if they could not be written, so that
+		// the world never waits for a failing disk.
+		this.consumedSequence = produced;
+	}
+
+	/**
+	 * Starts a new batch in the write buffer.
+	 */
+	private void beginBatch() {
+		this.writeBuffer.clear();
+		this.writeBuffer.position(8);
+		this.batchCount = 0;
+	}
+
+	/**
+	 * Writes the batch being prepared to the current segment, if it is not empty.
+	 *
+	 * @throws IOException If the batch could not be written.
+	 */
+	private void commitBatch() throws IOException {
+		if (this.batchCount == 0) {
+			return;
+		}
+
+		this.writeBuffer.putInt(0, this.batchCount);
+		this.writeBuffer.putInt(4, this.writeBuffer.position() - 8);
+		this.writeBuffer.flip();
+
+		this.checksum.reset();
+		this.checksum.update(this.writeBuffer.duplicate());
+
+		while (this.writeBuffer.hasRemaining()) {
+			this.segmentChannel.write(this.writeBuffer);
+		}
+
+		this.writeBuffer.clear();
+		this.writeBuffer.putLong(this.checksum.getValue());
+		this.writeBuffer.flip();
+
+		while (this.writeBuffer.hasRemaining()) {
+			this.segmentChannel.write(this.writeBuffer);
+		}
+
+		this.batchCount = 0;
+	}
+
+	/**
+	 * Opens a new segment.
+	 *
+	 * @param startSequence The sequence number of the first block change of the
+	 *                      segment.
+	 * @throws IOException If the segment could not be created.
+	 */
+	private void openSegment(long startSequence) throws IOException {
+		this.worldFile.getAbsoluteFile().getParentFile().mkdirs();
+		this.segmentChannel = FileChannel.open(this.getSegmentPath(this.segmentNumber), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.segmentStartSequence = startSequence;
+	}
+
+	/**
+	 * Closes the current segment.
+	 *
+	 * @param endSequence The sequence number that follows the last block change of
+	 *                    the segment.
+	 * @throws IOException If the segment could not be synchronized to the disk.
+	 */
+	private void closeSegment(long endSequence) throws IOException {
+		this.segmentChannel.force(false);
+		this.segmentChannel.close();
+		this.segmentChannel = null;
+		this.closedSegments.add(new ClosedSegment(this.getSegmentPath(this.segmentNumber), endSequence));
+		this.segmentNumber++;
+	}
+
+	/**
+	 * Deletes the segments whose block changes are all saved in the world file.
+	 *
+	 * @param written The sequence number that follows the last written block
+	 *                change.
+	 * @throws IOException If a segment could not be deleted.
+	 */
+	private void deleteReleasedSegments(long written) throws IOException {
+		long released = this.releasedSequence;
+
+		while (!this.closedSegments.isEmpty() && this.closedSegments.peek().endSequence <= released) {
+			Files.deleteIfExists(this.closedSegments.poll().path);
+		}
+
+		// The current segment can be emptied if all of its block changes are saved
+		if (this.segmentChannel != null && written <= released && this.segmentChannel.size() != 0) {
+			this.segmentChannel.truncate(0);
+			this.segmentChannel.force(false);
+		}
+	}
+
+	/**
+	 * Returns the path of the segment with the given number.
+	 *
+	 * @param number The number of the segment.
+	 * @return The path of the segment.
+	 */
+	private Path getSegmentPath(int number) {
+		return this.worldFile.toPath().resolveSibling(this.worldFile.getName() + ".journal." + number);
+	}
+
+	/**
+	 * Packs the position and the block IDs of a block change in a 64-bit integer.
+	 * From the most significant bits to the least significant bits: X (16 bits), Y
+	 * (16 bits), Z (16 bits), old ID (8 bits), new ID (8 bits).
+	 *
+	 * @param x     The position of the block on the X axis.
+	 * @param y     The position of the block on the Y axis.
+	 * @param z     The position of the block on the Z axis.
+	 * @param oldId The previous ID of the block.
+	 * @param newId The new ID of the block.
+	 * @return The packed block change.
+	 */
+	private static long packChange(int x, int y, int z, int oldId, int newId) {
+		return ((long) (x & 0xffff) << 48) | ((long) (y & 0xffff) << 32) | ((long) (z & 0xffff) << 16)
+				| ((oldId & 0xff) << 8) | (newId & 0xff);
+	}
+
+	/**
+	 * Returns the numbers of the existing segments of the given world file, in
+	 * ascending order.
+	 *
+	 * @param worldFile The world file.
+	 * @return The numbers of the existing segments.
+	 */
+	private static List<Integer> listSegments(File worldFile) {
+		List<Integer> numbers = new ArrayList<Integer>();
+		String prefix = worldFile.getName() + ".journal.";
+		File[] files = worldFile.getAbsoluteFile().getParentFile().listFiles();
+
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(prefix)) {
+					try {
+						numbers.add(Integer.parseInt(file.getName().substring(prefix.length())));
+					} catch (NumberFormatException e) {
+						// Not a segment
+					}
+				}
+			}
+		}
+
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * Replays the block changes of the existing segments of the given world file on
+	 * the given world. The batches that are incomplete or whose checksum is wrong
+	 * were interrupted by a crash, so they are ignored, as well as everything that
+	 * follows them in their segment.
+	 *
+	 * @param worldFile The world file.
+	 * @param world     The world, whose block data must be loaded.
+	 * @return The amount of replayed block changes.
+	 * @throws IOException If a segment could not be read.
+	 */
+	static int replay(File worldFile, World world) throws IOException {
+		int replayed = 0;
+		CRC32 checksum = new CRC32();
+
+		for (int number : WorldJournal.listSegments(worldFile)) {
+			File segment = new File(worldFile.getAbsoluteFile().getParentFile(),
+					worldFile.getName() + ".journal." + number);
+
+			try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+				while (true) {
+					byte[] batch;
+
+					try {
+						int count = dis.readInt();
+						int length = dis.readInt();
+
+						if (count <= 0 || length < count * 17 || length > count * WorldJournal.MAX_RECORD_SIZE) {
+							break;
+						}
+
+						batch = new byte[8 + length];
+						ByteBuffer.wrap(batch).putInt(count).putInt(length);
+						dis.readFully(batch, 8, length);
+
+						checksum.reset();
+						checksum.update(batch);
+
+						if (dis.readLong() != checksum.getValue()) {
+							break;
+						}
+					} catch (EOFException e) {
+						break;
+					}
+
+					ByteBuffer records = ByteBuffer.wrap(batch, 8, batch.length - 8);
+
+					while (records.hasRemaining()) {
+						long change = records.getLong();
+
+						// Skip the timestamp and the author
+						records.getLong();
+						int authorLength = records.get() & 0xff;
+						records.position(records.position() + authorLength);
+
+						world.replayBlockChange((int) (change >>> 48), (int) (change >>> 32) & 0xffff,
+								(int) (change >>> 16) & 0xffff, (int) change & 0xff);
+						replayed++;
+					}
+				}
+			}
+		}
+
+		return replayed;
+	}
+
+	/**
+	 * This class is a segment that is closed and waits to be deleted.
+	 *
+	 * @author Ankeraout
+	 *
+	 */
+	private static class ClosedSegment {
+		/**
+		 * The path of the segment.
+		 */
+		private Path path;
+
+		/**
+		 * The sequence number that follows the last block change of the segment.
+		 */
+		private long endSequence;
+
+		/**
+		 * Creates a new {@link ClosedSegment}.
+		 *
+		 * @param path        The path of the segment.
+		 * @param endSequence The sequence number that follows the last block change
+		 *                    of the segment.
+		 */
+		public ClosedSegment(Path path, long endSequence) {
+			this.path = path;
+			this.endSequence = endSequence;
+		}
+	}
+}
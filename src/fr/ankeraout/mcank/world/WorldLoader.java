@@ -1,5 +1,6 @@
 package fr.ankeraout.mcank.world;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 
@@ -35,6 +36,25 @@ public interface WorldLoader {
 	 */
 	public World loadWorld(File file) throws IOException;
 
+	/**
+	 * Loads a world from a world file whose magic value was already read from the
+	 * given stream, and returns the corresponding {@link World} object. This allows
+	 * the world discovery to read every world file only once. Like
+	 * {@link #loadWorld(File)}, this method does not load the block data. The
+	 * default implementation ignores the stream and reopens the world file.
+	 * 
+	 * @param file The file of the world to load.
+	 * @param dis  The stream of the world file, positioned right after the magic
+	 *             value. The caller closes it.
+	 * @return The world that was loaded
+	 * @throws IOException If an I/O error occurs while loading the world file, or
+	 *                     if the world format is not recognized (the world file is
+	 *                     probably corrupt).
+	 */
+	public default World loadWorld(File file, DataInputStream dis) throws IOException {
+		return this.loadWorld(file);
+	}
+
 	/**
 	 * Loads the block data of the given world. This method should probably only be
 	 * called by {@link World#load()}.
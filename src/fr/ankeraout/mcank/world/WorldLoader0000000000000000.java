@@ -1,5 +1,6 @@
 package fr.ankeraout.mcank.world;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -8,14 +9,16 @@ import java.io.IOException;
 /**
  * This class contains the code for loading worlds with the following magic
  * value: 0x0000000000000000 (64-bit hexadecimal representation of value 0).
+ * In this format, every block is stored as a 32-bit integer.
  * 
  * @author Ankeraout
  *
  */
 public class WorldLoader0000000000000000 implements WorldLoader {
-	private static String readString(DataInputStream dis) throws IOException {
+	protected static String readString(DataInputStream dis) throws IOException {
 		int stringLength = dis.readInt();
 		byte[] stringBuffer = new byte[stringLength];
+		dis.readFully(stringBuffer);
 		return new String(stringBuffer);
 	}
 
@@ -27,8 +30,17 @@ public class WorldLoader0000000000000000 implements WorldLoader {
 	@Override
 	public World loadWorld(File file) throws IOException {
 		FileInputStream fis = new FileInputStream(file);
-		DataInputStream dis = new DataInputStream(fis);
 
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(fis))) {
+			// Skip the magic value
+			dis.readLong();
+
+			return this.loadWorld(file, dis);
+		}
+	}
+
+	@Override
+	public World loadWorld(File file, DataInputStream dis) throws IOException {
 		String name = WorldLoader0000000000000000.readString(dis);
 		String motd = WorldLoader0000000000000000.readString(dis);
 		int width = dis.readInt();
@@ -42,18 +54,17 @@ public class WorldLoader0000000000000000 implements WorldLoader {
 		int buildPermission = dis.readInt();
 		int visitPermission = dis.readInt();
 
-		dis.close();
-
-		return new World(name, motd, width, height, depth, spawnX, spawnY, spawnZ, spawnYaw, spawnPitch,
-				buildPermission, visitPermission, file);
+		return new World(name, motd.isEmpty() ? null : motd, width, height, depth, spawnX, spawnY, spawnZ, spawnYaw,
+				spawnPitch, buildPermission, visitPermission, file);
 	}
 
 	@Override
 	public void loadBlockData(World world) throws IOException {
 		FileInputStream fis = new FileInputStream(world.getWorldFile());
-		DataInputStream dis = new DataInputStream(fis);
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(fis, 65536));
 
 		// Skip header
+		dis.readLong();
 		WorldLoader0000000000000000.readString(dis);
 		WorldLoader0000000000000000.readString(dis);
 		dis.readInt();
@@ -68,17 +79,39 @@ public class WorldLoader0000000000000000 implements WorldLoader {
 		dis.readInt();
 
 		// Read world data
-		world.getLock().lock();
-		
-		int volume = world.getVolume();
+		BlockStorage storage = World.createBlockStorage(world.getWidth(), world.getHeight(), world.getDepth());
 
-		for (int i = 0; i < volume; i++) {
-			world.blockData[i] = dis.readInt();
+		try {
+			this.readBlockData(dis, storage);
+		} finally {
+			dis.close();
 		}
-		
+
+		world.getLock().lock();
+		world.blockStorage = storage;
 		world.getLock().unlock();
+	}
+
+	/**
+	 * Reads the block data that follows the header of the world file.
+	 * 
+	 * @param dis     The stream positioned at the beginning of the block data.
+	 * @param storage The storage where the blocks are written.
+	 * @throws IOException If an I/O error occurs while reading the block data.
+	 */
+	protected void readBlockData(DataInputStream dis, BlockStorage storage) throws IOException {
+		int volume = storage.getVolume();
+		byte[] buffer = new byte[Math.min(volume, 65536)];
 
-		dis.close();
+		for (int offset = 0; offset < volume; offset += buffer.length) {
+			int length = Math.min(buffer.length, volume - offset);
+
+			for (int i = 0; i < length; i++) {
+				buffer[i] = (byte) dis.readInt();
+			}
+
+			storage.setBlocks(offset, buffer, 0, length);
+		}
 	}
 
 }
@@ -0,0 +1,32 @@
+package fr.ankeraout.mcank.world;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * This class contains the code for loading worlds with the following magic
+ * value: 0x0000000000000001 (64-bit hexadecimal representation of value 1).
+ * This format has the same header as the format 0x0000000000000000, but every
+ * block is stored as a single byte.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class WorldLoader0000000000000001 extends WorldLoader0000000000000000 {
+	@Override
+	public long getMagicValue() {
+		return 1;
+	}
+
+	@Override
+	protected void readBlockData(DataInputStream dis, BlockStorage storage) throws IOException {
+		int volume = storage.getVolume();
+		byte[] buffer = new byte[Math.min(volume, 65536)];
+
+		for (int offset = 0; offset < volume; offset += buffer.length) {
+			int length = Math.min(buffer.length, volume - offset);
+			dis.readFully(buffer, 0, length);
+			storage.setBlocks(offset, buffer, 0, length);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package fr.ankeraout.mcank.world;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class contains the code for loading worlds with the following magic
+ * value: 0x0000000000000002 (64-bit hexadecimal representation of value 2).
+ * This format has the same header as the format 0x0000000000000000, but every
+ * block is stored as a single byte, starting at offset
+ * {@link #BLOCK_DATA_OFFSET} of the file. The block data is not read but mapped
+ * in memory (see {@link MappedBlockStorage}), which makes loading a world
+ * almost instant whatever its size.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class WorldLoader0000000000000002 extends WorldLoader0000000000000000 {
+	/**
+	 * The offset of the block data in the world file. The header is padded up to
+	 * this offset, so that the block data is aligned on a page boundary.
+	 */
+	static final int BLOCK_DATA_OFFSET = 4096;
+
+	@Override
+	public long getMagicValue() {
+		return 2;
+	}
+
+	@Override
+	public void loadBlockData(World world) throws IOException {
+		int volume = world.getVolume();
+
+		try (FileChannel channel = FileChannel.open(world.getWorldFile().toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// Mapping past the end of the file would silently grow it
+			if (channel.size() < WorldLoader0000000000000002.BLOCK_DATA_OFFSET + (long) volume) {
+				throw new IOException("The world file is truncated.");
+			}
+
+			// The mapping stays valid after the channel is closed
+			MappedBlockStorage storage = new MappedBlockStorage(world.getWidth(), world.getHeight(),
+					world.getDepth(),
+					channel.map(FileChannel.MapMode.READ_WRITE, WorldLoader0000000000000002.BLOCK_DATA_OFFSET, volume));
+
+			world.getLock().lock();
+			world.blockStorage = storage;
+			world.getLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package fr.ankeraout.mcank.world;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * This class contains the code for loading worlds with the following magic
+ * value: 0x0000000000000003 (64-bit hexadecimal representation of value 3).
+ * This is the incremental world file format. It starts like the format
+ * 0x0000000000000001 (the header followed by one byte per block), and it is
+ * followed by zero or more batches of modified sections, that are appended by
+ * the incremental saves. A batch is made of:
+ * <ul>
+ * <li>the amount of sections in the batch (32-bit integer),</li>
+ * <li>for every section, its index (32-bit integer, see
+ * {@link World#saveAsync()}) and its 4096 blocks (one byte per block, see
+ * {@link BlockStorage#getSection(int, int, int, byte[])}),</li>
+ * <li>the CRC-32 of all the previous data of the batch (64-bit integer).</li>
+ * </ul>
+ * The batches are applied in order when the world is loaded. A batch that is
+ * incomplete or whose checksum is wrong was interrupted by a crash, so it is
+ * ignored, as well as everything after it.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class WorldLoader0000000000000003 extends WorldLoader0000000000000001 {
+	/**
+	 * The size of a section in a batch: its index and its blocks.
+	 */
+	private static final int SECTION_RECORD_SIZE = 4 + 4096;
+
+	/**
+	 * Returns the size of a batch of sections in the world file.
+	 * 
+	 * @param sectionCount The amount of sections in the batch.
+	 * @return The size of the batch in bytes.
+	 */
+	static long getBatchSize(int sectionCount) {
+		return 4 + (long) sectionCount * WorldLoader0000000000000003.SECTION_RECORD_SIZE + 8;
+	}
+
+	@Override
+	public long getMagicValue() {
+		return 3;
+	}
+
+	@Override
+	public void loadBlockData(World world) throws IOException {
+		FileInputStream fis = new FileInputStream(world.getWorldFile());
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(fis, 65536));
+		BlockStorage storage = World.createBlockStorage(world.getWidth(), world.getHeight(), world.getDepth());
+		long validLength;
+
+		try {
+			// Skip the header, while computing its length
+			long headerLength = 56;
+			dis.readLong();
+
+			for (int i = 0; i < 2; i++) {
+				int stringLength = dis.readInt();
+				dis.readFully(new byte[stringLength]);
+				headerLength += stringLength;
+			}
+
+			// Dimensions, spawn and permissions
+			dis.readFully(new byte[40]);
+
+			// Read the blocks, then the modified sections
+			this.readBlockData(dis, storage);
+			validLength = headerLength + storage.getVolume() + this.readSectionBatches(dis, storage);
+		} finally {
+			dis.close();
+		}
+
+		world.getLock().lock();
+		world.blockStorage = storage;
+		world.getLock().unlock();
+
+		world.worldFileLength = validLength;
+	}
+
+	/**
+	 * Reads the batches of modified sections and applies them to the given
+	 * storage.
+	 * 
+	 * @param dis     The stream positioned at the first batch.
+	 * @param storage The storage where the sections are written.
+	 * @return The length of the valid batches in bytes.
+	 * @throws IOException If an I/O error occurs or if a valid batch contains a
+	 *                     section that is outside of the world.
+	 */
+	private long readSectionBatches(DataInputStream dis, BlockStorage storage) throws IOException {
+		int sectionsX = storage.getWidth() / 16;
+		int sectionsZ = storage.getDepth() / 16;
+		int sectionCount = sectionsX * (storage.getHeight() / 16) * sectionsZ;
+		byte[] sectionData = new byte[4096];
+		CRC32 checksum = new CRC32();
+		long length = 0;
+
+		while (true) {
+			byte[] batch;
+
+			try {
+				int batchSectionCount = dis.readInt();
+
+				if (batchSectionCount <= 0 || batchSectionCount > sectionCount) {
+					break;
+				}
+
+				batch = new byte[4 + batchSectionCount * WorldLoader0000000000000003.SECTION_RECORD_SIZE];
+				ByteBuffer.wrap(batch).putInt(batchSectionCount);
+				dis.readFully(batch, 4, batch.length - 4);
+
+				checksum.reset();
+				checksum.update(batch);
+
+				if (dis.readLong() != checksum.getValue()) {
+					break;
+				}
+			} catch (EOFException e) {
+				break;
+			}
+
+			ByteBuffer records = ByteBuffer.wrap(batch, 4, batch.length - 4);
+
+			while (records.hasRemaining()) {
+				int sectionIndex = records.getInt();
+
+				if (sectionIndex < 0 || sectionIndex >= sectionCount) {
+					throw new IOException("The world file contains a section outside of the world.");
+				}
+
+				records.get(sectionData);
+				storage.setSection(sectionIndex % sectionsX, sectionIndex / sectionsX / sectionsZ,
+						(sectionIndex / sectionsX) % sectionsZ, sectionData);
+			}
+
+			length += batch.length + 8;
+		}
+
+		return length;
+	}
+}
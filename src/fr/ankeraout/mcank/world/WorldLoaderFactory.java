@@ -32,6 +32,9 @@ public class WorldLoaderFactory {
 		// Register world loaders
 		this.worldLoaders = new HashMap<Long, WorldLoader>();
 		this.addWorldLoader(new WorldLoader0000000000000000());
+		this.addWorldLoader(new WorldLoader0000000000000001());
+		this.addWorldLoader(new WorldLoader0000000000000002());
+		this.addWorldLoader(new WorldLoader0000000000000003());
 	}
 
 	/**
@@ -0,0 +1,612 @@
+package fr.ankeraout.mcank.world;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fr.ankeraout.mcank.ClassicubeServer;
+
+/**
+ * This class keeps track of the worlds of the server, and decides when their
+ * block data is loaded and unloaded. Only the header of the world files is read
+ * when the worlds are discovered: the block data of a world is loaded when the
+ * first player enters it.
+ * 
+ * The manager counts the players in every world and remembers when each world
+ * was last entered or left. When the memory used by the loaded worlds exceeds
+ * the memory budget (see the <code>world-memory-budget</code> property of the
+ * server), the least recently used worlds that have no players are saved and
+ * unloaded, in the background, until the loaded worlds fit in the budget again.
+ * 
+ * @author Ankeraout
+ *
+ */
+public class WorldManager {
+	/**
+	 * The executor of the world unloader thread, that unloads the idle worlds in
+	 * the background.
+	 */
+	private static final ExecutorService UNLOAD_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "World unloader thread");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The managed worlds, by name. Accessing this map, as well as the player
+	 * counts and the access times of the worlds, requires holding the lock of the
+	 * manager (<code>this</code>).
+	 */
+	private HashMap<String, ManagedWorld> worlds;
+
+	/**
+	 * The worlds whose block data is loaded. The ticks of the server iterate this
+	 * list, so it is copied on write and iterated without any lock. A world is
+	 * added to or removed from it while the load lock of its managed world is
+	 * held.
+	 */
+	private CopyOnWriteArrayList<World> loadedWorlds;
+
+	/**
+	 * The maximum amount of bytes of the Java heap that the loaded worlds should
+	 * use. If this is 0, the worlds are never unloaded.
+	 */
+	private long memoryBudget;
+
+	/**
+	 * The future that is completed when the worlds discovered in the background
+	 * (see {@link #discoverWorldsAsync(File, ThreadFactory)}) are added to the
+	 * manager. It is already completed if no discovery is running.
+	 */
+	private volatile CompletableFuture<Void> discoveryFuture;
+
+	/**
+	 * Creates a new {@link WorldManager} with no worlds.
+	 * 
+	 * @param memoryBudget The maximum amount of bytes of the Java heap that the
+	 *                     loaded worlds should use, or 0 if the worlds must never
+	 *                     be unloaded.
+	 */
+	public WorldManager(long memoryBudget) {
+		this.worlds = new HashMap<String, ManagedWorld>();
+		this.loadedWorlds = new CopyOnWriteArrayList<World>();
+		this.memoryBudget = memoryBudget;
+		this.discoveryFuture = CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Adds a world to the manager. If a world with the same name was already
+	 * added, it is replaced.
+	 * 
+	 * @param world The world to add.
+	 */
+	public void addWorld(World world) {
+		// A generated world is already loaded
+		boolean loaded = world.isLoaded();
+
+		synchronized (this) {
+			ManagedWorld replacedWorld = this.worlds.put(world.getName(), new ManagedWorld(world));
+
+			if (replacedWorld != null) {
+				this.loadedWorlds.remove(replacedWorld.world);
+			}
+
+			if (loaded) {
+				this.loadedWorlds.add(world);
+			}
+		}
+	}
+
+	/**
+	 * Discovers the worlds of the given directory, and adds them to the manager.
+	 * The world files are read in parallel, and only their header is read: the
+	 * magic value and the header of every world file are read in a single pass.
+	 * The time taken to read every world file is logged.
+	 * 
+	 * The block change journals and the temporary files of the saves, that are
+	 * stored next to the world files, are ignored. A world file is also ignored if
+	 * the manager already has a world with the same name.
+	 * 
+	 * @param directory     The directory that contains the world files.
+	 * @param threadFactory The factory of the threads that read the world files.
+	 * @throws IOException If a world file could not be read. No world is added to
+	 *                     the manager in this case.
+	 */
+	public void discoverWorlds(File directory, ThreadFactory threadFactory) throws IOException {
+		long startTime = System.nanoTime();
+		File[] files = directory.listFiles();
+
+		if (files == null) {
+			// No worlds to load
+			return;
+		}
+
+		List<File> worldFiles = new ArrayList<File>(files.length);
+
+		for (File file : files) {
+			if (!file.getName().contains(".journal.") && !file.getName().endsWith(".tmp")) {
+				worldFiles.add(file);
+			}
+		}
+
+		if (worldFiles.isEmpty()) {
+			return;
+		}
+
+		// Reading a header is mostly waiting for the disk, so there are more threads
+		// than processors.
+		int threadCount = Math.min(worldFiles.size(), Runtime.getRuntime().availableProcessors() * 4);
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount, threadFactory);
+		List<World> worlds = new ArrayList<World>(worldFiles.size());
+
+		try {
+			List<Future<World>> futures = new ArrayList<Future<World>>(worldFiles.size());
+
+			for (File file : worldFiles) {
+				futures.add(executor.submit(() -> WorldManager.readWorldHeader(file)));
+			}
+
+			for (Future<World> future : futures) {
+				worlds.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while discovering the worlds.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+
+			throw new RuntimeException("Failed to discover the worlds.", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// The worlds are added in the order of the directory listing
+		int addedCount = 0;
+
+		synchronized (this) {
+			for (World world : worlds) {
+				ManagedWorld existingWorld = this.worlds.get(world.getName());
+
+				if (existingWorld == null) {
+					this.worlds.put(world.getName(), new ManagedWorld(world));
+					addedCount++;
+				} else if (!existingWorld.world.getWorldFile().equals(world.getWorldFile())) {
+					Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.WARNING, "Ignored world file "
+							+ world.getWorldFile() + ": a world named \"" + world.getName() + "\" already exists.");
+				}
+			}
+		}
+
+		Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO, "Discovered " + addedCount + " worlds in "
+				+ (System.nanoTime() - startTime) / 1000000 + " ms using " + threadCount + " threads.");
+	}
+
+	/**
+	 * Discovers the worlds of the given directory in the background (see
+	 * {@link #discoverWorlds(File, ThreadFactory)}). Until the discovery is
+	 * finished, looking up a world that is not discovered yet waits for the end of
+	 * the discovery. If the discovery fails, the error is logged and the worlds
+	 * that were not discovered are missing.
+	 * 
+	 * @param directory     The directory that contains the world files.
+	 * @param threadFactory The factory of the threads that read the world files.
+	 */
+	public void discoverWorldsAsync(File directory, ThreadFactory threadFactory) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		this.discoveryFuture = future;
+
+		threadFactory.newThread(() -> {
+			try {
+				this.discoverWorlds(directory, threadFactory);
+			} catch (IOException | RuntimeException e) {
+				Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.SEVERE, "Failed to discover the worlds.", e);
+			} finally {
+				future.complete(null);
+			}
+		}).start();
+	}
+
+	/**
+	 * Reads the header of the given world file, and adds the world to the manager.
+	 * 
+	 * @param file The world file.
+	 * @return The world, whose block data is not loaded.
+	 * @throws IOException If the world file could not be read, or if its format is
+	 *                     unknown.
+	 */
+	public World discoverWorld(File file) throws IOException {
+		World world = WorldManager.readWorldHeader(file);
+		this.addWorld(world);
+		return world;
+	}
+
+	/**
+	 * Reads the header of the given world file. This method is called by the
+	 * threads of {@link #discoverWorlds(File, ThreadFactory)}.
+	 * 
+	 * @param file The world file.
+	 * @return The world, whose block data is not loaded.
+	 * @throws IOException If the world file could not be read, or if its format is
+	 *                     unknown.
+	 */
+	private static World readWorldHeader(File file) throws IOException {
+		long startTime = System.nanoTime();
+		World world;
+
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 4096))) {
+			long magic = dis.readLong();
+			WorldLoader loader = WorldLoaderFactory.getInstance().getWorldLoader(magic);
+
+			if (loader == null) {
+				throw new IOException("Unknown format of world file " + file + ".");
+			}
+
+			world = loader.loadWorld(file, dis);
+		}
+
+		Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO, "Read the header of world \""
+				+ world.getName() + "\" in " + (System.nanoTime() - startTime) / 1000 + " us.");
+
+		return world;
+	}
+
+	/**
+	 * Returns a world by its name, or <code>null</code> if no world has this name.
+	 * If the worlds are being discovered in the background and the world is not
+	 * discovered yet, this method waits for the end of the discovery.
+	 * 
+	 * @param name The name of the world.
+	 * @return The world with the given name.
+	 */
+	public World getWorld(String name) {
+		return this.getWorldAsync(name).join();
+	}
+
+	/**
+	 * Returns a future that is completed with the world that has the given name,
+	 * or with <code>null</code> if no world has this name. If the worlds are being
+	 * discovered in the background and the world is not discovered yet, the future
+	 * is completed at the end of the discovery.
+	 * 
+	 * @param name The name of the world.
+	 * @return A future that is completed with the world that has the given name.
+	 */
+	public CompletableFuture<World> getWorldAsync(String name) {
+		// Read the future first, so that a world added by the discovery is not missed
+		CompletableFuture<Void> discoveryFuture = this.discoveryFuture;
+		World world = this.findWorld(name);
+
+		if (world != null || discoveryFuture.isDone()) {
+			return CompletableFuture.completedFuture(world);
+		}
+
+		return discoveryFuture.thenApply(v -> this.findWorld(name));
+	}
+
+	/**
+	 * Returns a world by its name, or <code>null</code> if no world has this name,
+	 * without waiting for the discovery of the worlds.
+	 * 
+	 * @param name The name of the world.
+	 * @return The world with the given name.
+	 */
+	private synchronized World findWorld(String name) {
+		ManagedWorld managedWorld = this.worlds.get(name);
+		return managedWorld == null ? null : managedWorld.world;
+	}
+
+	/**
+	 * Returns a boolean value that determines whether a world with the given name
+	 * exists. This method does not wait for the discovery of the worlds.
+	 * 
+	 * @param name The name of the world.
+	 * @return A boolean value that determines whether a world with the given name
+	 *         exists.
+	 */
+	public synchronized boolean containsWorld(String name) {
+		return this.worlds.containsKey(name);
+	}
+
+	/**
+	 * Returns a copy of the list of the worlds.
+	 * 
+	 * @return The list of the worlds.
+	 */
+	public synchronized List<World> getWorlds() {
+		List<World> worlds = new ArrayList<World>(this.worlds.size());
+
+		for (ManagedWorld managedWorld : this.worlds.values()) {
+			worlds.add(managedWorld.world);
+		}
+
+		return worlds;
+	}
+
+	/**
+	 * Returns the worlds whose block data is loaded. The returned list is not a
+	 * copy: it follows the worlds that are loaded and unloaded by the manager, and
+	 * it can be iterated without any lock.
+	 * 
+	 * @return The list of the loaded worlds.
+	 */
+	public List<World> getLoadedWorlds() {
+		return Collections.unmodifiableList(this.loadedWorlds);
+	}
+
+	/**
+	 * Loads the block data of the given world if it is not loaded, without
+	 * registering a player in it. Like the other worlds that have no players, the
+	 * world is unloaded by the manager when the memory budget is exceeded.
+	 * 
+	 * @param world The world to load.
+	 * @throws IOException              If the world file could not be read.
+	 * @throws IllegalArgumentException If the world is not managed by this
+	 *                                  manager.
+	 */
+	public void loadWorld(World world) throws IOException {
+		ManagedWorld managedWorld;
+
+		synchronized (this) {
+			managedWorld = this.getManagedWorld(world);
+		}
+
+		managedWorld.loadLock.lock();
+
+		try {
+			this.loadManagedWorld(managedWorld);
+		} finally {
+			managedWorld.loadLock.unlock();
+		}
+	}
+
+	/**
+	 * Loads the block data of the given managed world if it is not loaded, and
+	 * adds it to the loaded worlds. The caller must hold the load lock of the
+	 * managed world.
+	 * 
+	 * @param managedWorld The managed world to load.
+	 * @throws IOException If the world file could not be read.
+	 */
+	private void loadManagedWorld(ManagedWorld managedWorld) throws IOException {
+		if (!managedWorld.world.isLoaded()) {
+			managedWorld.world.load();
+			this.loadedWorlds.add(managedWorld.world);
+		}
+	}
+
+	/**
+	 * Registers a player in the given world, and loads the block data of the world
+	 * if it is not loaded. The world is not unloaded until the player leaves it
+	 * with {@link #leaveWorld(World)}.
+	 * 
+	 * @param world The world that the player enters.
+	 * @throws IOException              If the world file could not be read. The
+	 *                                  player is not registered in the world in
+	 *                                  this case.
+	 * @throws IllegalArgumentException If the world is not managed by this
+	 *                                  manager.
+	 */
+	public void enterWorld(World world) throws IOException {
+		ManagedWorld managedWorld;
+
+		synchronized (this) {
+			managedWorld = this.getManagedWorld(world);
+			managedWorld.playerCount++;
+			managedWorld.lastAccessTime = System.nanoTime();
+		}
+
+		// The world cannot be unloaded while the manager holds this lock
+		managedWorld.loadLock.lock();
+
+		try {
+			this.loadManagedWorld(managedWorld);
+		} catch (IOException | RuntimeException e) {
+			synchronized (this) {
+				managedWorld.playerCount--;
+			}
+
+			throw e;
+		} finally {
+			managedWorld.loadLock.unlock();
+		}
+
+		this.requestUnload();
+	}
+
+	/**
+	 * Unregisters a player from the given world. The world can be unloaded once
+	 * all of its players have left it.
+	 * 
+	 * @param world The world that the player leaves.
+	 * @throws IllegalArgumentException If the world is not managed by this
+	 *                                  manager.
+	 */
+	public void leaveWorld(World world) {
+		synchronized (this) {
+			ManagedWorld managedWorld = this.getManagedWorld(world);
+			managedWorld.playerCount--;
+			managedWorld.lastAccessTime = System.nanoTime();
+		}
+
+		this.requestUnload();
+	}
+
+	/**
+	 * Returns the amount of players in the given world.
+	 * 
+	 * @param world The world.
+	 * @return The amount of players in the world.
+	 * @throws IllegalArgumentException If the world is not managed by this
+	 *                                  manager.
+	 */
+	public synchronized int getPlayerCount(World world) {
+		return this.getManagedWorld(world).playerCount;
+	}
+
+	/**
+	 * Returns the managed world that corresponds to the given world. The caller
+	 * must hold the lock of the manager.
+	 * 
+	 * @param world The world.
+	 * @return The managed world.
+	 * @throws IllegalArgumentException If the world is not managed by this
+	 *                                  manager.
+	 */
+	private ManagedWorld getManagedWorld(World world) {
+		ManagedWorld managedWorld = this.worlds.get(world.getName());
+
+		if (managedWorld == null || managedWorld.world != world) {
+			throw new IllegalArgumentException("The world is not managed by this world manager.");
+		}
+
+		return managedWorld;
+	}
+
+	/**
+	 * Asks the world unloader thread to unload the idle worlds if the memory
+	 * budget is exceeded.
+	 */
+	private void requestUnload() {
+		if (this.memoryBudget > 0) {
+			WorldManager.UNLOAD_EXECUTOR.execute(() -> this.unloadIdleWorlds());
+		}
+	}
+
+	/**
+	 * Saves and unloads the least recently used worlds that have no players, until
+	 * the memory used by the loaded worlds fits in the memory budget. This method
+	 * is called by the world unloader thread.
+	 */
+	private void unloadIdleWorlds() {
+		while (true) {
+			List<ManagedWorld> managedWorlds;
+
+			synchronized (this) {
+				managedWorlds = new ArrayList<ManagedWorld>(this.worlds.values());
+			}
+
+			// The memory usage and the load states are read without the lock of the
+			// manager, because they take the lock of every world.
+			long memoryUsage = 0;
+			boolean[] loaded = new boolean[managedWorlds.size()];
+
+			for (int i = 0; i < loaded.length; i++) {
+				ManagedWorld managedWorld = managedWorlds.get(i);
+				memoryUsage += managedWorld.world.getMemoryUsage();
+				loaded[i] = managedWorld.world.isLoaded();
+			}
+
+			if (memoryUsage <= this.memoryBudget) {
+				return;
+			}
+
+			ManagedWorld leastRecentlyUsed = null;
+
+			synchronized (this) {
+				for (int i = 0; i < loaded.length; i++) {
+					ManagedWorld managedWorld = managedWorlds.get(i);
+
+					if (managedWorld.playerCount == 0 && loaded[i] && (leastRecentlyUsed == null
+							|| managedWorld.lastAccessTime - leastRecentlyUsed.lastAccessTime < 0)) {
+						leastRecentlyUsed = managedWorld;
+					}
+				}
+			}
+
+			if (leastRecentlyUsed == null) {
+				// All the loaded worlds have players
+				return;
+			}
+
+			leastRecentlyUsed.loadLock.lock();
+
+			try {
+				boolean idle;
+
+				synchronized (this) {
+					idle = leastRecentlyUsed.playerCount == 0;
+				}
+
+				if (idle && leastRecentlyUsed.world.isLoaded()) {
+					try {
+						leastRecentlyUsed.world.unload();
+						this.loadedWorlds.remove(leastRecentlyUsed.world);
+					} catch (IOException | RuntimeException e) {
+						Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.SEVERE,
+								"Failed to unload world \"" + leastRecentlyUsed.world.getName() + "\".", e);
+						return;
+					}
+
+					Logger.getLogger(ClassicubeServer.LOGGER_NAME).log(Level.INFO,
+							"Unloaded idle world \"" + leastRecentlyUsed.world.getName() + "\".");
+				}
+			} finally {
+				leastRecentlyUsed.loadLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * This class contains the information that the manager keeps about a world.
+	 * The load lock of a managed world is held while its world is loaded or
+	 * unloaded by the manager.
+	 * 
+	 * @author Ankeraout
+	 *
+	 */
+	private static class ManagedWorld {
+		/**
+		 * The world.
+		 */
+		private World world;
+
+		/**
+		 * The amount of players in the world.
+		 */
+		private int playerCount;
+
+		/**
+		 * The value of {@link System#nanoTime()} when a player last entered or left
+		 * the world.
+		 */
+		private long lastAccessTime;
+
+		/**
+		 * The lock held while the world is loaded or unloaded. This is a
+		 * {@link Lock} rather than a monitor so that a virtual thread that loads
+		 * the world does not pin its carrier thread during the disk I/O.
+		 */
+		private Lock loadLock;
+
+		/**
+		 * Creates a new {@link ManagedWorld}.
+		 * 
+		 * @param world The world.
+		 */
+		public ManagedWorld(World world) {
+			this.world = world;
+			this.playerCount = 0;
+			this.lastAccessTime = System.nanoTime();
+			this.loadLock = new ReentrantLock();
+		}
+	}
+}
@@ -1,6 +1,9 @@
 package fr.ankeraout.mcank.worldgen;
 
+import java.util.Arrays;
+
 import fr.ankeraout.mcank.Blocks;
+import fr.ankeraout.mcank.world.BlockStorage;
 
 /**
  * This class is a world generator that will generate flat grass maps. The
@@ -12,40 +15,40 @@ import fr.ankeraout.mcank.Blocks;
  */
 public class FlatgrassWorldGenerator extends WorldGenerator {
 	@Override
-	public void generateChunk(int[] worldData, int worldWidth, int worldHeight, int worldDepth, int chunkX, int chunkZ,
-			long seed) {
+	public void generateChunk(BlockStorage storage, int chunkX, int chunkZ, long seed) {
 		int chunkBlockX = chunkX * 16;
 		int chunkBlockZ = chunkZ * 16;
+		int worldHeight = storage.getHeight();
 
 		for (int y = 0; y < (worldHeight / 2) - 1; y++) {
 			for (int x = chunkBlockX; x < chunkBlockX + 16; x++) {
 				for (int z = chunkBlockZ; z < chunkBlockZ + 16; z++) {
-					worldData[(y * worldDepth + z) * worldWidth + x] = Blocks.DIRT.getBlockId();
+					storage.setBlock(x, y, z, Blocks.DIRT.getBlockId());
 				}
 			}
 		}
 
 		for (int x = chunkBlockX; x < chunkBlockX + 16; x++) {
 			for (int z = chunkBlockZ; z < chunkBlockZ + 16; z++) {
-				worldData[(((worldHeight / 2) - 1) * worldDepth + z) * worldWidth + x] = Blocks.GRASS.getBlockId();
+				storage.setBlock(x, (worldHeight / 2) - 1, z, Blocks.GRASS.getBlockId());
 			}
 		}
 	}
 
 	@Override
-	public void generateWorld(int[] worldData, int worldWidth, int worldHeight, int worldDepth, long seed) {
+	public void generateWorld(BlockStorage storage, long seed) {
+		// Every layer is uniform, so the layers are written in bulk.
+		int layerSize = storage.getWidth() * storage.getDepth();
+		int worldHeight = storage.getHeight();
+		byte[] layer = new byte[layerSize];
+
+		Arrays.fill(layer, (byte) Blocks.DIRT.getBlockId());
+
 		for (int y = 0; y < (worldHeight / 2) - 1; y++) {
-			for (int x = 0; x < worldWidth; x++) {
-				for (int z = 0; z < worldDepth; z++) {
-					worldData[(y * worldDepth + z) * worldWidth + x] = Blocks.DIRT.getBlockId();
-				}
-			}
+			storage.setBlocks(y * layerSize, layer, 0, layerSize);
 		}
 
-		for (int x = 0; x < worldWidth; x++) {
-			for (int z = 0; z < worldDepth; z++) {
-				worldData[(((worldHeight / 2) - 1) * worldDepth + z) * worldWidth + x] = Blocks.GRASS.getBlockId();
-			}
-		}
+		Arrays.fill(layer, (byte) Blocks.GRASS.getBlockId());
+		storage.setBlocks(((worldHeight / 2) - 1) * layerSize, layer, 0, layerSize);
 	}
 }
@@ -0,0 +1,103 @@
+package fr.ankeraout.mcank.worldgen;
+
+import fr.ankeraout.mcank.world.BlockStorage;
+
+/**
+ * This abstract class adapts the world generators written for the former
+ * <code>int[]</code> block data API to the {@link BlockStorage} API. Such a
+ * generator only needs to extend this class instead of {@link WorldGenerator}.
+ * 
+ * The adapter has to allocate a temporary array of integers for the whole
+ * world, which costs 4 bytes per block while the world is generated. New
+ * generators should extend {@link WorldGenerator} directly.
+ * 
+ * @author Ankeraout
+ *
+ */
+public abstract class IntArrayWorldGenerator extends WorldGenerator {
+	/**
+	 * This method generates a chunk of the world.
+	 * @param worldData The block data array of the world.
+	 * @param worldWidth The width of the world, in blocks.
+	 * @param worldHeight The height of the world, in blocks.
+	 * @param worldDepth The depth of the world, in blocks.
+	 * @param chunkX The X position of the chunk, in chunks (16 blocks).
+	 * @param chunkZ The Z position of the chunk, in chunks (16 blocks).
+	 * @param seed The seed for the chunk generation.
+	 */
+	public abstract void generateChunk(int[] worldData, int worldWidth, int worldHeight, int worldDepth, int chunkX,
+			int chunkZ, long seed);
+
+	/**
+	 * This method generates the entire world.
+	 * @param worldData The block data array of the world.
+	 * @param worldWidth The width of the world, in blocks.
+	 * @param worldHeight The height of the world, in blocks.
+	 * @param worldDepth The depth of the world, in blocks.
+	 * @param seed The seed for the world generation.
+	 */
+	public void generateWorld(int[] worldData, int worldWidth, int worldHeight, int worldDepth, long seed) {
+		// Generate chunks
+		for (int x = 0; x < worldWidth / 16; x++) {
+			for (int z = 0; z < worldDepth / 16; z++) {
+				this.generateChunk(worldData, worldWidth, worldHeight, worldDepth, x, z, seed);
+			}
+		}
+	}
+
+	@Override
+	public void generateChunk(BlockStorage storage, int chunkX, int chunkZ, long seed) {
+		int[] worldData = IntArrayWorldGenerator.toIntArray(storage);
+		this.generateChunk(worldData, storage.getWidth(), storage.getHeight(), storage.getDepth(), chunkX, chunkZ,
+				seed);
+
+		// Only copy back the generated chunk
+		for (int y = 0; y < storage.getHeight(); y++) {
+			for (int z = chunkZ * 16; z < chunkZ * 16 + 16; z++) {
+				for (int x = chunkX * 16; x < chunkX * 16 + 16; x++) {
+					storage.setBlock(x, y, z, worldData[(y * storage.getDepth() + z) * storage.getWidth() + x]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void generateWorld(BlockStorage storage, long seed) {
+		int[] worldData = IntArrayWorldGenerator.toIntArray(storage);
+		this.generateWorld(worldData, storage.getWidth(), storage.getHeight(), storage.getDepth(), seed);
+
+		byte[] buffer = new byte[Math.min(worldData.length, 65536)];
+
+		for (int offset = 0; offset < worldData.length; offset += buffer.length) {
+			int length = Math.min(buffer.length, worldData.length - offset);
+
+			for (int i = 0; i < length; i++) {
+				buffer[i] = (byte) worldData[offset + i];
+			}
+
+			storage.setBlocks(offset, buffer, 0, length);
+		}
+	}
+
+	/**
+	 * Copies the content of the given block storage into a new array of integers.
+	 * 
+	 * @param storage The block storage to copy.
+	 * @return The block data array.
+	 */
+	private static int[] toIntArray(BlockStorage storage) {
+		int[] worldData = new int[storage.getVolume()];
+		byte[] buffer = new byte[Math.min(worldData.length, 65536)];
+
+		for (int offset = 0; offset < worldData.length; offset += buffer.length) {
+			int length = Math.min(buffer.length, worldData.length - offset);
+			storage.getBlocks(offset, buffer, 0, length);
+
+			for (int i = 0; i < length; i++) {
+				worldData[offset + i] = buffer[i] & 0xff;
+			}
+		}
+
+		return worldData;
+	}
+}
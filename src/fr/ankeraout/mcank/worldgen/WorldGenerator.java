@@ -1,8 +1,12 @@
 package fr.ankeraout.mcank.worldgen;
 
+import fr.ankeraout.mcank.world.BlockStorage;
+
 /**
  * This abstract class defines how a world generator should be made. All the
- * world generators must extend this class.
+ * world generators must extend this class. The generators that were written
+ * for the former <code>int[]</code> block data API can extend
+ * {@link IntArrayWorldGenerator} instead.
  * 
  * @author Ankeraout
  *
@@ -10,30 +14,23 @@ package fr.ankeraout.mcank.worldgen;
 public abstract class WorldGenerator {
 	/**
 	 * This method generates a chunk of the world.
-	 * @param worldData The block data array of the world.
-	 * @param worldWidth The width of the world, in blocks.
-	 * @param worldHeight The height of the world, in blocks.
-	 * @param worldDepth The depth of the world, in blocks.
+	 * @param storage The block storage of the world.
 	 * @param chunkX The X position of the chunk, in chunks (16 blocks).
 	 * @param chunkZ The Z position of the chunk, in chunks (16 blocks).
 	 * @param seed The seed for the chunk generation.
 	 */
-	public abstract void generateChunk(int[] worldData, int worldWidth, int worldHeight, int worldDepth, int chunkX,
-			int chunkZ, long seed);
+	public abstract void generateChunk(BlockStorage storage, int chunkX, int chunkZ, long seed);
 
 	/**
 	 * This method generates the entire world.
-	 * @param worldData The block data array of the world.
-	 * @param worldWidth The width of the world, in blocks.
-	 * @param worldHeight The height of the world, in blocks.
-	 * @param worldDepth The depth of the world, in blocks.
+	 * @param storage The block storage of the world.
 	 * @param seed The seed for the world generation.
 	 */
-	public void generateWorld(int[] worldData, int worldWidth, int worldHeight, int worldDepth, long seed) {
+	public void generateWorld(BlockStorage storage, long seed) {
 		// Generate chunks
-		for (int x = 0; x < worldWidth / 16; x++) {
-			for (int z = 0; z < worldDepth / 16; z++) {
-				this.generateChunk(worldData, worldWidth, worldHeight, worldDepth, x, z, seed);
+		for (int x = 0; x < storage.getWidth() / 16; x++) {
+			for (int z = 0; z < storage.getDepth() / 16; z++) {
+				this.generateChunk(storage, x, z, seed);
 			}
 		}
 	}